@@ -0,0 +1,64 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/*
+ * MEMORYSOCKET CLASS:
+ * 
+ * Stand-in for a connected Socket so ClientHandlers can be created
+ * without a network, nothing is ever read from it and everything
+ * written to it is only counted
+ * 
+ * The benchmarks drain each ClientHandler's OutboundQueue into
+ * getOutputStream() themselves instead of running writer threads,
+ * so a score covers encoding, queueing and writing the bytes out
+ * but not thread scheduling
+ */
+
+public class MemorySocket extends Socket {
+	private final CountingOutputStream output = new CountingOutputStream();
+	
+	
+	@Override
+	public InputStream getInputStream()
+	{
+		return new ByteArrayInputStream(new byte[0]);
+	}
+	
+	@Override
+	public OutputStream getOutputStream()
+	{
+		return output;
+	}
+	
+	@Override
+	public synchronized void close()
+	{
+		//nothing to release
+	}
+	
+	//bytes written to this socket so far
+	public long getWritten()
+	{
+		return output.written;
+	}
+	
+	private static final class CountingOutputStream extends OutputStream {
+		private long written;
+		
+		@Override
+		public void write(int b)
+		{
+			written++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			written += len;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import protocol.LineDecoder;
+import protocol.TextMessage;
+
+/*
+ * PARSERBENCHMARK CLASS:
+ * 
+ * Compares parsing a stream of text protocol lines the old way
+ * (BufferedReader.readLine(), split() and contains(), as ClientHandler
+ * and ReadThread used to) with LineDecoder and TextMessage
+ * 
+ * -legacyServer / server: lines a Server reads from its Clients
+ * -legacyClient / client: lines a Client reads from the Server
+ * 
+ * Each invocation parses LINES lines, scores are ns per line, run with
+ * "-prof gc" to see the allocation rate (gc.alloc.rate.norm is bytes
+ * allocated per line)
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+	private static final int LINES = 1000;
+	
+	private byte[] fromClients;
+	private byte[] fromServer;
+	private LineDecoder decoder;
+	private TextMessage message;
+
+	
+	@Setup
+	public void setup()
+	{
+		StringBuilder clients = new StringBuilder();
+		StringBuilder server = new StringBuilder();
+		for(int i = 0; i < LINES; i++)
+		{
+			switch(i % 20)
+			{
+			case 0:
+				clients.append("logout\n");
+				server.append("~user").append(i).append('\n');
+				break;
+			case 1:
+			case 2:
+			case 3:
+				clients.append("user").append(i).append("&user").append(i + 1).append("&are you coming to the standup today?\n");
+				server.append("user").append(i).append("&user").append(i + 1).append("&are you coming to the standup today?\n");
+				break;
+			case 4:
+				clients.append("user").append(i).append(": enter\n");
+				server.append("@user").append(i).append('\n');
+				break;
+			default:
+				clients.append("user").append(i).append(": the build is green again, thanks for the quick fix on the parser\n");
+				server.append("user").append(i).append(": the build is green again, thanks for the quick fix on the parser\n");
+				break;
+			}
+		}
+		fromClients = clients.toString().getBytes(LineDecoder.CHARSET);
+		fromServer = server.toString().getBytes(LineDecoder.CHARSET);
+		decoder = new LineDecoder();
+		message = new TextMessage();
+	}
+	
+	//what ClientHandler.run() did for every line before TextMessage
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public void legacyServer(Blackhole blackhole) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(fromClients), LineDecoder.CHARSET));
+		String line;
+		while((line = reader.readLine()) != null)
+		{
+			String[] splitMessage = line.split(":", 2);
+			if(line.equals("logout"))
+			{
+				blackhole.consume(true);
+			}
+			else if(line.contains("&"))
+			{
+				String[] splitDirectMessage = line.split("&", 3);
+				blackhole.consume(splitDirectMessage[1]);
+				blackhole.consume(line);
+			}
+			else
+			{
+				blackhole.consume(splitMessage[0]);
+				blackhole.consume(line);
+			}
+		}
+	}
+	
+	//what ClientHandler does now, ending with the bytes a broadcast sends on
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public void server(Blackhole blackhole) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(fromClients);
+		while(decoder.next(buffer))
+		{
+			message.parse(decoder.getLine(), decoder.getLength());
+			if(message.isLogout())
+			{
+				blackhole.consume(true);
+			}
+			else if(message.isDirect())
+			{
+				blackhole.consume(message.directRecipient());
+				blackhole.consume(message.directText());
+			}
+			else
+			{
+				blackhole.consume(message.copyWithNewline());
+			}
+		}
+	}
+	
+	//what ReadThread.run() did for every line before TextMessage
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public void legacyClient(Blackhole blackhole) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(fromServer), LineDecoder.CHARSET));
+		String response;
+		while((response = reader.readLine()) != null)
+		{
+			if(response.contains("@"))
+			{
+				blackhole.consume(response.substring(1));
+			}
+			else if(response.contains("&"))
+			{
+				String[] splitDirectMessage = response.split("&", 3);
+				blackhole.consume(splitDirectMessage[0]);
+				blackhole.consume(splitDirectMessage[2]);
+			}
+			else if(response.contains("~"))
+			{
+				blackhole.consume(response.substring(1));
+			}
+			else
+			{
+				blackhole.consume(response);
+			}
+		}
+	}
+	
+	//what ReadThread does now, ending with the Strings the UI needs
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public void client(Blackhole blackhole) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(fromServer);
+		while(decoder.next(buffer))
+		{
+			message.parse(decoder.getLine(), decoder.getLength());
+			if(message.isUserJoined() || message.isUserLeft())
+			{
+				blackhole.consume(message.commandName());
+			}
+			else if(message.isDirect())
+			{
+				blackhole.consume(message.directSender());
+				blackhole.consume(message.directText());
+			}
+			else
+			{
+				blackhole.consume(message.text());
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,165 @@
+package bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import protocol.LineDecoder;
+import protocol.TextMessage;
+import server.ClientHandler;
+import server.EncodedMessage;
+import server.OverflowPolicy;
+import server.RoomRegistry;
+import server.Server;
+import server.ServerConfig;
+
+/*
+ * SERVERBENCHMARK CLASS:
+ * 
+ * Benchmarks the Server's hot paths with CLIENTS joined ClientHandlers
+ * on MemorySockets, each operation ends by writing what it queued out
+ * to the MemorySockets, the way the writer threads would
+ * 
+ * -broadcast: one chat line fanned out to every other Client
+ * -directMessage: one "sender&recipient&message" line routed through
+ *  the ClientRegistry to a single Client
+ * -join: a new Client joining, it is sent the whole roster ("@username"
+ *  for every Client) and everyone else gets its join messages
+ * 
+ * Scores are us per operation, run with "-prof gc" for allocations:
+ * 
+ *    java -jar bench/target/benchmarks.jar ServerBenchmark -p clients=1000
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ServerBenchmark {
+	@Param({"10", "100", "1000", "10000"})
+	private int clients;
+	
+	private Server server;
+	private List<ClientHandler> handlers;
+	private MemorySocket sink;
+	private TextMessage message;
+	private byte[] chatLine;
+	private byte[][] directLines;
+	private int nextRecipient;
+	private ClientHandler newcomer;
+	
+	
+	@Setup
+	public void setup()
+	{
+		ServerConfig config = new ServerConfig();
+		//queues are drained after every operation, they never fill
+		config.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+		server = new Server(config);
+		
+		handlers = new ArrayList<ClientHandler>(clients);
+		for(int i = 0; i < clients; i++)
+		{
+			ClientHandler handler = new ClientHandler(new MemorySocket(), server);
+			server.getRegistry().add(handler);
+			server.getRegistry().join("user" + i, handler);
+			handler.setUsername("user" + i);
+			server.getRooms().enter(RoomRegistry.LOBBY, handler);
+			handler.setRoom(server.getRooms().get(RoomRegistry.LOBBY));
+			handlers.add(handler);
+		}
+		
+		sink = new MemorySocket();
+		message = new TextMessage();
+		chatLine = "user0: the build is green again, thanks for the quick fix on the parser\n".getBytes(LineDecoder.CHARSET);
+		directLines = new byte[clients][];
+		for(int i = 0; i < clients; i++)
+		{
+			directLines[i] = ("user0&user" + i + "&are you coming to the standup today?").getBytes(LineDecoder.CHARSET);
+		}
+	}
+	
+	@Benchmark
+	public long broadcast() throws IOException
+	{
+		server.broadcastMessage(EncodedMessage.chatLine(chatLine.clone()), handlers.get(0));
+		return drainAll();
+	}
+	
+	@Benchmark
+	public long directMessage() throws IOException
+	{
+		int recipient = nextRecipient;
+		nextRecipient = (recipient + 1) % clients;
+		
+		byte[] line = directLines[recipient];
+		handlers.get(0).handleLine(message.parse(line, line.length));
+		return drain(handlers.get(recipient));
+	}
+	
+	@Benchmark
+	public long join(Blackhole blackhole) throws IOException
+	{
+		newcomer = new ClientHandler(new MemorySocket(), server);
+		server.getRegistry().add(newcomer);
+		
+		byte[] line = "newcomer: enter".getBytes(LineDecoder.CHARSET);
+		blackhole.consume(newcomer.handleLine(message.parse(line, line.length)));
+		return drain(newcomer) + drainAll();
+	}
+	
+	//takes the newcomer back out without the leave broadcasts, they are not part of join
+	@TearDown(Level.Invocation)
+	public void removeNewcomer()
+	{
+		if(newcomer != null)
+		{
+			server.getRegistry().remove(newcomer);
+			server.getRooms().exit(newcomer.getRoom(), newcomer);
+			newcomer.getOutbound().clear();
+			newcomer = null;
+		}
+	}
+	
+	//writes out everything queued for the joined Clients, returns the bytes written
+	private long drainAll() throws IOException
+	{
+		long written = 0;
+		for(int i = 0; i < clients; i++)
+		{
+			written += drain(handlers.get(i));
+		}
+		return written;
+	}
+	
+	private long drain(ClientHandler handler) throws IOException
+	{
+		long written = 0;
+		EncodedMessage next;
+		while((next = handler.getOutbound().poll()) != null)
+		{
+			next.writeTo(sink.getOutputStream(), handler.getEncoding());
+			written += next.length(handler.getEncoding());
+		}
+		return written;
+	}
+	
+}
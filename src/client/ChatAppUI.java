@@ -2,6 +2,7 @@ package client;
 
 import java.util.Optional;
 import javafx.application.Application;
+import javafx.collections.FXCollections;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
@@ -26,10 +27,6 @@ import javafx.stage.Stage;
  */
 
 public class ChatAppUI extends Application {
-	private boolean messageReady = false;
-	private boolean directMessageReady = false;
-	private String directMessageUsername;
-	private String directMessage;
 	private ListView<String> chatHistory;
 	private ListView<String> membersList;
 	private TextField messageTextField;
@@ -130,14 +127,17 @@ public class ChatAppUI extends Application {
 		 * if user clicks send direct messsage item from contextMenu
 		 * a new direct message dialog is displayed with displayDirectMessageSend()
 		 * 
-		 * directMessageReady boolean tells Client's WriteThread that a direct message
-		 * is ready to send
+		 * the direct message is handed to the Client's WriteThread unless
+		 * the dialog was closed without sending
 		 */
 		directMessageItem.setOnAction(event->
 		{
-			directMessageUsername = membersList.getSelectionModel().getSelectedItem();
-			directMessage = this.displayDirectMessageSend(directMessageUsername);			
-			directMessageReady = true;
+			String directMessageUsername = membersList.getSelectionModel().getSelectedItem();
+			String directMessage = this.displayDirectMessageSend(directMessageUsername);			
+			if(directMessage != null)
+			{
+				client.send(OutgoingMessage.direct(directMessageUsername, directMessage));
+			}
 			membersList.getSelectionModel().clearSelection(membersList.getSelectionModel().getSelectedIndex());
 			contextMenu.hide();
 		});
@@ -151,19 +151,26 @@ public class ChatAppUI extends Application {
 		 * is created with the information in the start window fields
 		 * 
 		 * scene is changed to chatroom scene, and server info text is displayed
-		 * using alertText() 
+		 * using alertText() when the Client uses the text protocol
 		 */
 		joinButton.setOnAction(event->
 		{
 			try 
 			{
 				client = new Client(userNameTextField.getText(), IPAddressTextField.getText(), Integer.parseInt(portTextField.getText()), this);
+				chatHistory.setItems(client.getHistory());
+				membersList.setItems(client.getUsernames());
 				thisUsernameLabel.setText(client.getUserName() + ": ");
 				thisUsernameLabel.setPadding(new Insets(4,1,0,3));				
 				primaryStage.setScene(chatroomScene);
 				primaryStage.setTitle("Chatroom");
 				topOfCenterChatroomVBox.setSpacing(chatHistory.getWidth() - (logoutButton.getWidth() * 2 + 15));
-				alertText("Chatroom Reserverd Characters", "This chatroom reserves these characters for functionality: \n @ \n ~ \n & \nPlease avoid using these characters in your messages\n\nThank you");
+				
+				//only the text protocol gives these characters a meaning
+				if(!client.isBinary())
+				{
+					alertText("Chatroom Reserverd Characters", "This chatroom reserves these characters for functionality: \n @ \n ~ \n & \nPlease avoid using these characters in your messages\n\nThank you");
+				}
 			}
 			catch (Exception e)
 			{
@@ -177,14 +184,13 @@ public class ChatAppUI extends Application {
 		/*
 		 * send button event handler:
 		 * 
-		 * when user hits send, messageReady boolean is set true,
-		 * letting Client WriteThread know that a message is ready,
-		 * and the message TextField is cleared
+		 * when user hits send, the message is handed to the Client's
+		 * WriteThread, which sends it straight away, and the message
+		 * TextField is cleared
 		 */
 		sendButton.setOnAction(event->
 		{
-			setMessageReady(true);
-			messageTextField.clear();
+			sendMessageFromUI();
 		});
 		
 		
@@ -197,8 +203,7 @@ public class ChatAppUI extends Application {
 		messageTextField.setOnKeyPressed(event->{
 			if (event.getCode() == KeyCode.ENTER)
 			{
-				setMessageReady(true);
-				messageTextField.clear();
+				sendMessageFromUI();
 			}
 		});
 		
@@ -212,8 +217,8 @@ public class ChatAppUI extends Application {
 			portTextField.clear();
 			IPAddressTextField.clear();
 			userNameTextField.clear();
-			chatHistory.getItems().clear();
-			client.setLogout(true);
+			closeHistory();
+			client.logout();
 			primaryStage.setScene(loginScene);
 		});
 				
@@ -232,8 +237,8 @@ public class ChatAppUI extends Application {
 				portTextField.clear();
 				IPAddressTextField.clear();
 				userNameTextField.clear();
-				chatHistory.getItems().clear();
-				client.setLogout(true);
+				closeHistory();
+				client.logout();
 				primaryStage.setScene(loginScene);
 			}
 			
@@ -297,7 +302,6 @@ public class ChatAppUI extends Application {
 		
 		if (result.isPresent() && result.get() == sendButton)
 		{
-			directMessageReady = true;
 			return message.getText();
 		}
 		else
@@ -305,11 +309,32 @@ public class ChatAppUI extends Application {
 			dialog.close();
 		}
 		
-		return "FIX";
+		//nothing to send
+		return null;
 		
 	}
 	
 	
+	//empties the chat ListView and drops the Client's history with its spill file
+	private void closeHistory()
+	{
+		chatHistory.setItems(FXCollections.<String>observableArrayList());
+		client.getHistory().close();
+	}
+	
+	/*
+	 * sendMessageFromUI method:
+	 * 
+	 * hands the typed message to the Client's WriteThread and clears
+	 * the message TextField, the text is taken before clearing so
+	 * it can not go missing on the way
+	 */
+	private void sendMessageFromUI()
+	{
+		client.send(OutgoingMessage.chat(messageTextField.getText()));
+		messageTextField.clear();
+	}
+	
 	/*
 	 * NOT WORKING, alertText() is used instead
 	 * displayDirectMessageRecieved method:
@@ -355,62 +380,16 @@ public class ChatAppUI extends Application {
 //		
 //	}
 
-	//GETTERS AND SETTERS
-	public void setMemebers() {
-		membersList.getItems().clear();
-		membersList.getItems().addAll(client.getUsernames());			
-	}
-	
 	/*
-	 * Note on setChat():
+	 * showLatestMessage method:
 	 * 
-	 * scrollTo() is used to focus the latest message,
-	 * this gives the effect of traditional chatroom
-	 * messaging
+	 * the chat and members ListViews show the Client's lists directly
+	 * (see the join button event handler), so new messages appear
+	 * without rebuilding the ListView, this only scrolls to the latest
+	 * message, giving the effect of traditional chatroom messaging
 	 */
-	public void setChat() {
-		chatHistory.getItems().clear();
-		chatHistory.getItems().addAll(client.getHistory());	
-		chatHistory.scrollTo(client.getHistory().get(client.getHistory().size() - 2));
-	}
-	
-	public String getMessageFromUI()
-	{
-		return messageTextField.getText();
-	}
-
-	public boolean getMessageReady()
-	{
-		return this.messageReady;
-	}
-	
-	public void setMessageReady(boolean x)
-	{
-		messageReady = x;
-	}
-	
-	public boolean getDirectMessageReady() {
-		return directMessageReady;
-	}
-
-	public void setDirectMessageReady(boolean directMessageReady) {
-		this.directMessageReady = directMessageReady;
-	}
-
-	public String getDirectMessageUsername() {
-		return directMessageUsername;
-	}
-
-	public void setDirectMessageUsername(String directMessageUsername) {
-		this.directMessageUsername = directMessageUsername;
-	}
-	
-	public String getDirectMessage() {
-		return directMessage;
-	}
-
-	public void setDirectMessage(String directMessage) {
-		this.directMessage = directMessage;
+	public void showLatestMessage() {
+		chatHistory.scrollTo(chatHistory.getItems().size() - 1);
 	}
 	
 	//start ChatAppUI
@@ -0,0 +1,230 @@
+package client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javafx.collections.ObservableListBase;
+
+/*
+ * CHATHISTORY CLASS:
+ * 
+ * The Client's chat history, shown as is by the ChatAppUI's chat ListView,
+ * only the newest messages are kept in memory so a long session in a busy
+ * chatroom does not keep growing the heap
+ * 
+ * The newest capacity messages live in a ring buffer, older ones are spilled
+ * to a temporary file as a 4 byte length and UTF-8 bytes each, the ListView
+ * only asks for the rows it shows, so spilled messages are read back a page
+ * at a time when the user scrolls up to them, a few recently read pages
+ * are cached
+ * 
+ * Only the first message of every page has its file offset remembered,
+ * so the index costs 8 bytes per PAGE_SIZE spilled messages
+ * 
+ * Like the ListView itself it is only used on the JavaFX thread
+ */
+
+public class ChatHistory extends ObservableListBase<String> {
+	private static final int PAGE_SIZE = 64;
+	private static final int CACHED_PAGES = 16;
+	private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+	private final String[] ring;
+	//messages added so far, the first spilled of them are in the file
+	private int size = 0;
+	private int spilled = 0;
+	private File spillFile;
+	private RandomAccessFile spill;
+	private long spillLength = 0;
+	private long[] pageOffsets = new long[16];
+	private final Map<Integer, String[]> pages = new LinkedHashMap<Integer, String[]>(CACHED_PAGES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest)
+		{
+			return size() > CACHED_PAGES;
+		}
+	};
+	private boolean closed = false;
+
+
+	public ChatHistory(int capacity)
+	{
+		this.ring = new String[Math.max(1, capacity)];
+	}
+
+	@Override
+	public String get(int index)
+	{
+		if(index < 0 || index >= size)
+		{
+			throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+		}
+		if(index >= spilled)
+		{
+			return ring[index % ring.length];
+		}
+		return page(index / PAGE_SIZE)[index % PAGE_SIZE];
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	/*
+	 * append method:
+	 * 
+	 * adds the passed messages to the end of the history as one change,
+	 * the messages they push out of the ring buffer are written to the
+	 * spill file with a single write
+	 */
+	public void append(List<String> messages)
+	{
+		if(closed || messages.isEmpty())
+		{
+			return;
+		}
+
+		ByteArrayOutputStream evicted = new ByteArrayOutputStream();
+		DataOutputStream encoder = new DataOutputStream(evicted);
+		int from = size;
+		try
+		{
+			for(String message : messages)
+			{
+				int slot = size % ring.length;
+				if(size >= ring.length)
+				{
+					if(spilled % PAGE_SIZE == 0)
+					{
+						markPage(spilled / PAGE_SIZE, spillLength + evicted.size());
+					}
+					byte[] bytes = ring[slot].getBytes(CHARSET);
+					encoder.writeInt(bytes.length);
+					encoder.write(bytes);
+					spilled++;
+				}
+				ring[slot] = message;
+				size++;
+			}
+			writeSpill(evicted.toByteArray());
+		}
+		catch (IOException e)
+		{
+			//the spilled messages read back as empty lines
+			e.printStackTrace();
+		}
+
+		beginChange();
+		nextAdd(from, size);
+		endChange();
+	}
+
+	//drops the history and deletes the spill file, nothing can be added afterwards
+	public void close()
+	{
+		closed = true;
+		pages.clear();
+		Arrays.fill(ring, null);
+		if(spill != null)
+		{
+			try
+			{
+				spill.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			spillFile.delete();
+		}
+	}
+
+	private void markPage(int page, long offset)
+	{
+		if(page == pageOffsets.length)
+		{
+			pageOffsets = Arrays.copyOf(pageOffsets, pageOffsets.length * 2);
+		}
+		pageOffsets[page] = offset;
+	}
+
+	private void writeSpill(byte[] bytes) throws IOException
+	{
+		if(bytes.length == 0)
+		{
+			return;
+		}
+		if(spill == null)
+		{
+			spillFile = File.createTempFile("chat-history", ".bin");
+			spillFile.deleteOnExit();
+			spill = new RandomAccessFile(spillFile, "rw");
+		}
+		spill.seek(spillLength);
+		spill.write(bytes);
+		spillLength += bytes.length;
+	}
+
+	/*
+	 * page method:
+	 * 
+	 * returns the spilled messages of the passed page, reading them from
+	 * the spill file unless the page is cached, only full pages are
+	 * cached since the last one still grows
+	 */
+	private String[] page(int page)
+	{
+		String[] messages = pages.get(page);
+		if(messages != null)
+		{
+			return messages;
+		}
+
+		int first = page * PAGE_SIZE;
+		int count = Math.min(PAGE_SIZE, spilled - first);
+		long start = pageOffsets[page];
+		long end = first + PAGE_SIZE < spilled ? pageOffsets[page + 1] : spillLength;
+		messages = new String[PAGE_SIZE];
+		Arrays.fill(messages, "");
+
+		try
+		{
+			byte[] bytes = new byte[(int) (end - start)];
+			spill.seek(start);
+			spill.readFully(bytes);
+
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			for(int i = 0; i < count && buffer.remaining() >= 4; i++)
+			{
+				int length = buffer.getInt();
+				messages[i] = new String(bytes, buffer.position(), length, CHARSET);
+				buffer.position(buffer.position() + length);
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			e.printStackTrace();
+		}
+
+		if(count == PAGE_SIZE)
+		{
+			pages.put(page, messages);
+		}
+		return messages;
+	}
+
+}
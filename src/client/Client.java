@@ -3,6 +3,18 @@ package client;
 import java.io.IOException;
 import java.net.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import protocol.Frame;
 
 /*
  * CLIENT CLASS:
@@ -13,17 +25,61 @@ import java.util.ArrayList;
  * creates a socket that links the user's session
  * to the server by creating ReadThread and WriteThread threads
  * that manage input/output streams for the socket
+ * 
+ * the ChatAppUI hands messages to send to the WriteThread through
+ * send(), which queues them, the WriteThread blocks on that queue
+ * 
+ * chat history and usernames are ObservableLists the ChatAppUI's
+ * ListViews show directly, they are only changed on the JavaFX thread,
+ * see addMessage() and applyUpdates(), only the newest messages are
+ * kept in memory (-Dchat.history=1000 by default), see ChatHistory
+ * 
+ * the members list is also kept in a LinkedHashSet, so joins and leaves
+ * are O(1) however big the Room is, a ROSTER snapshot replaces it, and
+ * versioned changes at or below the snapshot's version are skipped, they
+ * are already in it
+ * 
+ * the session speaks the binary protocol (protocol.Frame) unless started
+ * with -Dchat.protocol=text, which falls back to the newline delimited
+ * text protocol for servers that only know that one, a server that does
+ * not answer the binary HELLO at all is taken for one of those too and
+ * the session reconnects speaking text, see fallBackToText()
+ * 
+ * a connection that cannot be opened or breaks before this Client logged
+ * out is reported to the user, see connectionLost()
+ * 
+ * a binary session offers FLAG_DEFLATE unless started with
+ * -Dchat.deflate=false, once the server agrees large Frames are sent
+ * both ways as DEFLATED Frames, see Frame.deflated()
  */
 
 public class Client {
+	//messages kept in memory, older ones are spilled to disk, see ChatHistory
+	private static final int HISTORY_SIZE = Integer.getInteger("chat.history", 1000);
+	
 	private int port;
-	private boolean logout = false;
+	private volatile boolean logout = false;
+	private volatile boolean binary = !"text".equals(System.getProperty("chat.protocol"));
+	private boolean deflate = !"false".equals(System.getProperty("chat.deflate"));
+	//HELLO flags the server agreed on, 0 until its HELLO arrives
+	private volatile int flags = 0;
+	private volatile boolean helloAnswered = false;
 	private String ip;
 	private String userName;
-	private String[] filler = new String[16];
-	private ArrayList<String> chatHistory = new ArrayList<String>();
-	private ArrayList<String> usernames	 = new ArrayList<String>();
+	private ChatHistory chatHistory = new ChatHistory(HISTORY_SIZE);
+	private ObservableList<String> usernames = FXCollections.observableArrayList();
+	//changes from the ReadThread and WriteThread waiting for the JavaFX thread
+	private ConcurrentLinkedQueue<String> pendingMessages = new ConcurrentLinkedQueue<String>();
+	private ConcurrentLinkedQueue<RosterUpdate> pendingRoster = new ConcurrentLinkedQueue<RosterUpdate>();
+	//members list and the version of its last snapshot, only touched on the JavaFX thread
+	private LinkedHashSet<String> roster = new LinkedHashSet<String>();
+	private long rosterVersion = 0;
+	private AtomicBoolean updateScheduled = new AtomicBoolean();
+	//System.nanoTime() of the scheduleUpdate() that queued the pending applyUpdates()
+	private volatile long updateScheduledNanos;
+	private BlockingDeque<OutgoingMessage> outgoing = new LinkedBlockingDeque<OutgoingMessage>();
 	private Socket socket;
+	private WriteThread writeThread;
 	private ChatAppUI gui;
 
 	
@@ -33,16 +89,6 @@ public class Client {
 		this.ip = hostname;
 		this.port = port;
 		this.gui = gui;
-		
-		/*
-		 * adding filler lines to Client's ChatAppUI message box
-		 * to simulate chatroom like messaging
-		 */
-		for(int i = 0; i < filler.length;i++)
-		{
-			filler[i] = "";
-			chatHistory.add(filler[i]);
-		}
 		this.run();
 	}
 	
@@ -63,24 +109,210 @@ public class Client {
 			
 
 			new ReadThread(socket, this).start();
-			new WriteThread(socket, this).start();
+			writeThread = new WriteThread(socket, this);
+			writeThread.start();
 		}
 		catch (Exception e)
 		{
 			e.printStackTrace();
+			connectionLost("Could not connect to " + ip + ":" + port + ", " + e.getMessage());
 		}
 	}
 	
-	//adds message to Client's chatHistory list
+	/*
+	 * fallBackToText method:
+	 * 
+	 * called by the ReadThread when the server did not answer the HELLO,
+	 * which a text protocol server never does, stops the WriteThread and
+	 * connects again speaking the text protocol, messages the ChatAppUI
+	 * queued meanwhile are sent on the new connection, after the ones the
+	 * WriteThread already took, which the server ignored as binary Frames
+	 */
+	public void fallBackToText()
+	{
+		System.out.println("Server did not answer the binary protocol HELLO, falling back to the text protocol");
+		binary = false;
+		WriteThread stopped = writeThread;
+		//it is waiting for the ChatAppUI in nextOutgoing() or writing to the socket disconnect() closes
+		stopped.interrupt();
+		disconnect();
+		try
+		{
+			stopped.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		//a pong is no use to a server that never pinged
+		List<OutgoingMessage> unanswered = stopped.getUnanswered();
+		for(int i = unanswered.size() - 1; i >= 0; i--)
+		{
+			if(unanswered.get(i).getType() != Frame.PONG)
+			{
+				outgoing.addFirst(unanswered.get(i).resent());
+			}
+		}
+		run();
+	}
+	
+	//tells the user the connection is gone, unless they logged out, safe to call from any thread
+	public void connectionLost(String reason)
+	{
+		if(!logout)
+		{
+			Platform.runLater(()->{
+				gui.alertText("Disconnected", reason);
+			});
+		}
+	}
+	
+	//queues message for this Client's WriteThread, called from the ChatAppUI
+	public void send(OutgoingMessage message)
+	{
+		outgoing.add(message);
+	}
+	
+	//blocks the WriteThread until the ChatAppUI has sent a message
+	public OutgoingMessage nextOutgoing() throws InterruptedException
+	{
+		return outgoing.take();
+	}
+	
+	/*
+	 * logout method:
+	 * 
+	 * marks this Client as logged out and queues the logout message,
+	 * the WriteThread sends it and disconnects
+	 */
+	public void logout()
+	{
+		logout = true;
+		send(OutgoingMessage.logout());
+	}
+	
+	//adds message to Client's chatHistory list, safe to call from any thread
 	public void addMessage(String message)
 	{
-		chatHistory.add(message);
+		pendingMessages.add(message);
+		scheduleUpdate();
+	}
+	
+	//adds username to Client's usernames list, safe to call from any thread
+	public void userJoined(String username)
+	{
+		rosterDelta(0, true, username);
+	}
+	
+	//removes username from Client's usernames list, safe to call from any thread
+	public void userLeft(String username)
+	{
+		rosterDelta(0, false, username);
 	}
 	
-	//adds username to Client's usernames list
-	public void addUsername(String username)
+	//replaces Client's usernames list with a ROSTER snapshot, safe to call from any thread
+	public void rosterSnapshot(long version, List<String> usernames)
 	{
-		usernames.add(username);
+		pendingRoster.add(new RosterUpdate(version, true, true, usernames));
+		scheduleUpdate();
+	}
+	
+	//adds or removes username at the passed version, 0 for unversioned changes, safe to call from any thread
+	public void rosterDelta(long version, boolean joined, String username)
+	{
+		pendingRoster.add(new RosterUpdate(version, false, joined, Collections.singletonList(username)));
+		scheduleUpdate();
+	}
+	
+	/*
+	 * scheduleUpdate method:
+	 * 
+	 * makes sure one applyUpdates() is waiting to run on the JavaFX
+	 * thread, everything that arrives before it runs is applied with
+	 * it, so a burst of messages costs one UI update rather than one each
+	 */
+	private void scheduleUpdate()
+	{
+		if(updateScheduled.compareAndSet(false, true))
+		{
+			updateScheduledNanos = System.nanoTime();
+			Platform.runLater(this::applyUpdates);
+		}
+	}
+	
+	/*
+	 * applyUpdates method:
+	 * 
+	 * runs on the JavaFX thread, appends the new messages to chatHistory
+	 * in one change and applies the roster changes to the roster set,
+	 * usernames then gets the joined members appended in one change, or,
+	 * after a snapshot or a leave, is set to the roster once, the ListViews
+	 * only lay out what changed instead of once per member
+	 * 
+	 * each run is recorded as a RenderEvent for JDK Flight Recorder
+	 */
+	private void applyUpdates()
+	{
+		RenderEvent event = new RenderEvent();
+		event.begin();
+		long queued = System.nanoTime() - updateScheduledNanos;
+		updateScheduled.set(false);
+		
+		ArrayList<String> messages = new ArrayList<String>();
+		int size = 0;
+		String next;
+		while((next = pendingMessages.poll()) != null)
+		{
+			messages.add(next);
+			size += next.length();
+		}
+		
+		ArrayList<String> joined = new ArrayList<String>();
+		boolean replaced = false;
+		int rosterChanges = 0;
+		RosterUpdate update;
+		while((update = pendingRoster.poll()) != null)
+		{
+			rosterChanges++;
+			if(update.snapshot)
+			{
+				roster.clear();
+				roster.addAll(update.usernames);
+				rosterVersion = update.version;
+				replaced = true;
+			}
+			else if(update.version == 0 || update.version > rosterVersion)
+			{
+				String username = update.usernames.get(0);
+				if(update.joined)
+				{
+					if(roster.add(username))
+					{
+						joined.add(username);
+					}
+				}
+				else if(roster.remove(username))
+				{
+					replaced = true;
+				}
+			}
+		}
+		
+		if(replaced)
+		{
+			usernames.setAll(roster);
+		}
+		else if(!joined.isEmpty())
+		{
+			usernames.addAll(joined);
+		}
+		
+		if(!messages.isEmpty())
+		{
+			chatHistory.append(messages);
+			gui.showLatestMessage();
+		}
+		event.finish(messages.size(), rosterChanges, size, queued);
 	}
 	
 	//close Client's socket
@@ -111,7 +343,7 @@ public class Client {
 		return this.socket;
 	}
 	
-	public ArrayList<String> getHistory()
+	public ChatHistory getHistory()
 	{
 		return this.chatHistory;
 	}
@@ -120,17 +352,54 @@ public class Client {
 		return this.gui;
 	}
 	
-	public ArrayList<String> getUsernames()
+	public ObservableList<String> getUsernames()
 	{
 		return this.usernames;
 	}
 
-	public boolean getLogout() {
-		return logout;
+	//true when this Client speaks the binary protocol
+	public boolean isBinary() {
+		return binary;
+	}
+	
+	//HELLO flags this Client offers
+	public int getOfferedFlags() {
+		return Frame.FLAG_ROSTER | (deflate ? Frame.FLAG_DEFLATE : 0);
+	}
+	
+	public int getFlags() {
+		return flags;
 	}
 	
-	public void setLogout(boolean logout) {
-		this.logout = logout;
+	//called once the server's HELLO has arrived
+	public void setFlags(int flags) {
+		this.flags = flags;
+		this.helloAnswered = true;
+	}
+	
+	public boolean isHelloAnswered() {
+		return helloAnswered;
+	}
+	
+	
+	//a ROSTER snapshot or one username joining or leaving, see applyUpdates()
+	private static final class RosterUpdate {
+		private final long version;
+		private final boolean snapshot;
+		private final boolean joined;
+		private final List<String> usernames;
+		
+		private RosterUpdate(long version, boolean snapshot, boolean joined, List<String> usernames)
+		{
+			this.version = version;
+			this.snapshot = snapshot;
+			this.joined = joined;
+			this.usernames = usernames;
+		}
+	}
+
+	public boolean getLogout() {
+		return logout;
 	}
 
 }
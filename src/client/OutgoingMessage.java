@@ -0,0 +1,84 @@
+package client;
+
+import protocol.Frame;
+
+/*
+ * OUTGOINGMESSAGE CLASS:
+ * 
+ * One message the ChatAppUI wants sent, handed to the Client's
+ * WriteThread through Client.send(), the type is the protocol
+ * Frame opcode it will be sent as
+ * 
+ * The text is captured when the user hits Send, so clearing the
+ * TextField right after can no longer race the WriteThread
+ */
+
+public final class OutgoingMessage {
+	private final byte type;
+	private final String recipient;
+	private final String text;
+	//sent again on a new connection, see resent()
+	private final boolean resent;
+	
+	
+	private OutgoingMessage(byte type, String recipient, String text)
+	{
+		this(type, recipient, text, false);
+	}
+	
+	private OutgoingMessage(byte type, String recipient, String text, boolean resent)
+	{
+		this.type = type;
+		this.recipient = recipient;
+		this.text = text;
+		this.resent = resent;
+	}
+	
+	//regular message for everyone in the chatroom
+	public static OutgoingMessage chat(String text)
+	{
+		return new OutgoingMessage(Frame.CHAT, null, text);
+	}
+	
+	//direct message for one user
+	public static OutgoingMessage direct(String recipient, String text)
+	{
+		return new OutgoingMessage(Frame.DIRECT, recipient, text);
+	}
+	
+	//answer to a Server heartbeat ping
+	public static OutgoingMessage pong()
+	{
+		return new OutgoingMessage(Frame.PONG, null, null);
+	}
+	
+	//logs this Client out, the WriteThread stops after sending it
+	public static OutgoingMessage logout()
+	{
+		return new OutgoingMessage(Frame.LOGOUT, null, null);
+	}
+	
+	//the same message for a new connection after the last one ignored it, it is already in the chat
+	public OutgoingMessage resent()
+	{
+		return new OutgoingMessage(type, recipient, text, true);
+	}
+	
+	//GETTERS AND SETTERS
+	public byte getType() {
+		return type;
+	}
+	
+	public String getRecipient() {
+		return recipient;
+	}
+	
+	public String getText() {
+		return text;
+	}
+	
+	public boolean isResent() {
+		return resent;
+	}
+	
+}
@@ -1,12 +1,18 @@
 package client;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 
 import javafx.application.Platform;
+import protocol.Frame;
+import protocol.LineDecoder;
+import protocol.TextMessage;
 
 /*
  * READTHREAD CLASS:
@@ -22,11 +28,22 @@ import javafx.application.Platform;
  * -maintaining members list (new users/user logout)
  * -recieving direct messages
  * -recieving regular messages
+ * -answering the Server's heartbeat pings
+ * 
+ * a binary protocol Client reads Frames instead of lines, the opcode
+ * says which action to take so nothing is searched for, see readFrames()
+ * 
+ * a connection that breaks before the Client logged out is reported to
+ * the user, see Client.connectionLost()
  */
 
 public class ReadThread extends Thread {
-	private String response;
-	private BufferedReader reader;
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+	//how long the server gets to answer the binary protocol HELLO
+	private static final int HELLO_TIMEOUT_MILLIS = 5000;
+	
+	private InputStream input;
+	private DataInputStream frames;
 	private Socket socket;
 	private Client client;
 	
@@ -38,8 +55,11 @@ public class ReadThread extends Thread {
 		
 		try
 		{
-			InputStream input = socket.getInputStream();
-			reader = new BufferedReader(new InputStreamReader(input));
+			input = socket.getInputStream();
+			if(client.isBinary())
+			{
+				frames = new DataInputStream(new BufferedInputStream(input));
+			}
 		}
 		catch (Exception e)
 		{
@@ -49,105 +69,124 @@ public class ReadThread extends Thread {
 	
 	public void run()
 	{
+		if(client.isBinary())
+		{
+			readFrames();
+			return;
+		}
+		
+		//lines are framed and classified in place, see LineDecoder and TextMessage
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		LineDecoder decoder = new LineDecoder();
+		TextMessage response = new TextMessage();
+		
 		while(true)
 		{		
 			try {
 				
 				//listening
-				response = reader.readLine();
-				
-				
-				//SCANNING NEW MESSAGES
-				
-				
-				/*
-				 * new Client joined check:
-				 * 
-				 * when a new Client joins, the Server broadcasts
-				 * a new Client command message "@username"
-				 * 
-				 * the '@' is removed and added to this Client's username
-				 * list
-				 */
-				if(response.contains("@"))
-				{
-					response = response.substring(1); 
-					if(!client.getUsernames().contains(response))
-					{
-						client.getUsernames().add(response);
-					}					
-				}
-				/*
-				 * direct message check:
-				 * 
-				 * when a Server sends this Client a direct message from
-				 * another Client it is in the format "sender&recipient&message"
-				 *  
-				 * when the command message is recieved it is broken at '&' into 
-				 * an array of strings
-				 * 
-				 * using this array, a new dialog is prompted on this Client's
-				 * ChatAppUI displaying the direct message
-				 */
-				else if(response.contains("&"))				
-				{
-					String[] splitDirectMessage = response.split("&", 3);
-					Platform.runLater(()->{
-						client.getGUI().alertText("Message from " + splitDirectMessage[0], splitDirectMessage[2]);
-				    });			
-				}
-				/*
-				 * Client logged check:
-				 * 
-				 * when a Client logs out, the Server broadcasts 
-				 * a Client logout command message "~username"
-				 * 
-				 * the '~' is removed and the logged Client  is removed
-				 * from this Client's username list
-				 */
-				else if(response.contains("~"))
+				int read = input.read(buffer.array());
+				if(read < 0)
 				{
-					response = response.substring(1);
-					client.getUsernames().remove(response);
+					throw new EOFException("Server closed the connection");
 				}
-				/*
-				 * default action:
-				 * 
-				 * add regular message to this Client's ChatAppUI
-				 */
-				else
+				buffer.position(0).limit(read);
+				
+				while(decoder.next(buffer))
 				{
-					client.addMessage(response);
-				}
-
-				//END SCANNING
+					response.parse(decoder.getLine(), decoder.getLength());
 				
-				/*
-				 * NOTE on next few lines:
-				 * 
-				 * in order to update lists on the fly in the UI, the ReadThread
-				 * must execute methods belonging to the Client's ChatAppUI instance
-				 * 
-				 * calling these methods directly from this regular thread would cause
-				 * a invalid state exception because they are JavaFX() methods from ChatAppUI
-				 * that need to be executed on a JavaFX thread
-				 * 
-				 * the method runLater() is used to execute the lines of code on the ChatAppUI 
-				 * JavaFX thread at a later time
-				 */
-				Platform.runLater(()->{
-			        client.getGUI().setChat();
-			        client.getGUI().setMemebers();
-			    });
+					//SCANNING NEW MESSAGES
+					
+					
+					/*
+					 * new Client joined check:
+					 * 
+					 * when a new Client joins, the Server broadcasts
+					 * a new Client command message "@username"
+					 * 
+					 * the '@' is removed and added to this Client's username
+					 * list
+					 */
+					if(response.isUserJoined())
+					{
+						client.userJoined(response.commandName());
+					}
+					/*
+					 * direct message check:
+					 * 
+					 * when a Server sends this Client a direct message from
+					 * another Client it is in the format "sender&recipient&message"
+					 *  
+					 * the sender and message are taken from between the '&'s
+					 * and a new dialog is prompted on this Client's
+					 * ChatAppUI displaying the direct message
+					 */
+					else if(response.isDirect())				
+					{
+						String sender = response.directSender();
+						String message = response.directText() == null ? "" : response.directText();
+						Platform.runLater(()->{
+							client.getGUI().alertText("Message from " + sender, message);
+					    });			
+					}
+					/*
+					 * Client logged check:
+					 * 
+					 * when a Client logs out, the Server broadcasts 
+					 * a Client logout command message "~username"
+					 * 
+					 * the '~' is removed and the logged Client  is removed
+					 * from this Client's username list
+					 */
+					else if(response.isUserLeft())
+					{
+						client.userLeft(response.commandName());
+					}
+					/*
+					 * heartbeat check:
+					 * 
+					 * a "~" without a username is the Server checking this
+					 * Client is still there, it is answered with "pong"
+					 */
+					else if(response.isPing())
+					{
+						client.send(OutgoingMessage.pong());
+					}
+					/*
+					 * default action:
+					 * 
+					 * add regular message to this Client's ChatAppUI
+					 */
+					else
+					{
+						client.addMessage(response.text());
+					}
+	
+					//END SCANNING
+
+					/*
+					 * NOTE on updating the UI:
+					 * 
+					 * the ChatAppUI's lists are JavaFX objects that may only be changed
+					 * on the JavaFX thread, calling their methods from this regular thread
+					 * would cause a invalid state exception
+					 * 
+					 * addMessage(), userJoined() and userLeft() only queue the change,
+					 * the Client applies everything queued in one runLater() on the
+					 * ChatAppUI JavaFX thread, see Client.applyUpdates()
+					 */
+				}
 				
 					
 			} 
 			catch (Exception e) 
 			{
+				client.connectionLost(reason(e));
 				try {
 					/*
 					 * ReadThread socket is closed when owning Client's
-					 * socket is closed and null pointer is thrown
+					 * socket is closed and reading fails
 					 */
 					socket.close();
 				} catch (IOException e1) {
@@ -157,5 +196,98 @@ public class ReadThread extends Thread {
 				break;
 			}
 		}
-	}	
+	}
+	
+	/*
+	 * readFrames method:
+	 * 
+	 * binary protocol version of the loop in run(), the server first
+	 * answers this Client's HELLO with its own, after that every Frame's
+	 * opcode maps straight onto one of the actions above, once a DEFLATED
+	 * Frame has been unwrapped
+	 * 
+	 * no answer to the HELLO within HELLO_TIMEOUT_MILLIS means a text
+	 * protocol server, see Client.fallBackToText()
+	 */
+	private void readFrames()
+	{
+		try
+		{
+			Frame hello;
+			socket.setSoTimeout(HELLO_TIMEOUT_MILLIS);
+			try
+			{
+				hello = Frame.read(frames);
+			}
+			catch (SocketTimeoutException e)
+			{
+				client.fallBackToText();
+				return;
+			}
+			socket.setSoTimeout(0);
+			if(hello == null || !hello.isHello())
+			{
+				throw new IOException("Server did not answer with a binary protocol HELLO");
+			}
+			client.setFlags(hello.helloFlags());
+			
+			Frame frame;
+			while((frame = Frame.read(frames)) != null)
+			{
+				if(frame.getOpcode() == Frame.DEFLATED)
+				{
+					frame = frame.inflated();
+				}
+				switch(frame.getOpcode())
+				{
+				case Frame.USER_JOINED:
+					client.userJoined(frame.field(0));
+					break;
+				case Frame.USER_LEFT:
+					client.userLeft(frame.field(0));
+					break;
+				case Frame.PING:
+					client.send(OutgoingMessage.pong());
+					break;
+				case Frame.ROSTER:
+					client.rosterSnapshot(frame.rosterVersion(), frame.rosterNames());
+					break;
+				case Frame.ROSTER_DELTA:
+					client.rosterDelta(frame.rosterVersion(), frame.rosterJoined(), frame.rosterName());
+					break;
+				case Frame.DIRECT:
+					String sender = frame.field(0);
+					String message = frame.field(2);
+					Platform.runLater(()->{
+						client.getGUI().alertText("Message from " + sender, message);
+				    });
+					break;
+				case Frame.CHAT:
+					client.addMessage(frame.field(0));
+					break;
+				default:
+					break;
+				}
+			}
+			throw new EOFException("Server closed the connection");
+		}
+		catch (Exception e)
+		{
+			//see catch in run()
+			client.connectionLost(reason(e));
+		}
+		
+		try {
+			socket.close();
+		} catch (IOException e1) {
+			
+			e1.printStackTrace();
+		}
+	}
+	
+	//what to tell the user about a broken connection
+	private static String reason(Exception e)
+	{
+		return e.getMessage() != null ? e.getMessage() : e.toString();
+	}
 }
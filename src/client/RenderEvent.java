@@ -0,0 +1,56 @@
+package client;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * RENDEREVENT CLASS:
+ * 
+ * JDK Flight Recorder event for one Client.applyUpdates() on the JavaFX
+ * thread, the messages and members list changes it applied and how long
+ * they waited for Platform.runLater() to get to them, so a lagging chat
+ * can be told apart from a busy JavaFX thread
+ */
+
+@Name("chatapp.Render")
+@Label("Client Render")
+@Category({"ChatApp", "Client"})
+@Description("Messages and members list changes applied on the JavaFX thread")
+@StackTrace(false)
+public class RenderEvent extends Event {
+	@Label("Messages")
+	int messages;
+	
+	@Label("Roster Changes")
+	int rosterChanges;
+	
+	@Label("Characters")
+	@Description("Characters of the messages applied")
+	int size;
+	
+	@Label("Queued")
+	@Description("Time from the first change to the update running")
+	@Timespan(Timespan.NANOSECONDS)
+	long queued;
+	
+	
+	//ends the event and commits it with the passed fields, if the recording wants it
+	void finish(int messages, int rosterChanges, int size, long queued)
+	{
+		end();
+		if(shouldCommit())
+		{
+			this.messages = messages;
+			this.rosterChanges = rosterChanges;
+			this.size = size;
+			this.queued = queued;
+			commit();
+		}
+	}
+
+}
@@ -4,7 +4,10 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
-import javafx.application.Platform;
+import java.util.ArrayList;
+import java.util.List;
+
+import protocol.Frame;
 
 /*
  * WRITETHREAD CLASS:
@@ -13,20 +16,37 @@ import javafx.application.Platform;
  * a WriteThread is created to handle all traffic sent by
  * the Client on a new thread
  * 
- * The WriteThread listens for messages sent from the Client's
- * ChatAppUI and performs actions when the UI sends a command message
+ * The WriteThread waits on the Client's outgoing queue for messages
+ * sent from the Client's ChatAppUI and performs actions when the UI
+ * sends a command message, it sleeps until there is one instead of
+ * polling the UI
  * 
  * Actions Include:
  * -sending log in and log out messages for client's session
  * -sending direct messages
  * -sending regular messages
+ * 
+ * each message is sent either as a text protocol line or as a
+ * binary protocol Frame, depending on Client.isBinary()
+ * 
+ * a long message sent before the server's HELLO has arrived goes out
+ * as it is even if the server later agrees on FLAG_DEFLATE
+ * 
+ * a binary WriteThread keeps the messages it took before the server's
+ * HELLO arrived, a server that never answers is a text protocol one and
+ * the Client sends them again on a text connection, see
+ * Client.fallBackToText()
  */
 
 public class WriteThread extends Thread{
-    	private String message;
 	 	private PrintWriter writer;
+	 	private OutputStream output;
 	    private Socket socket;
 	    private Client client;
+	    //protocol of this connection, the Client's may change once this thread is stopped
+	    private boolean binary;
+	    //messages taken before the server answered the HELLO, see getUnanswered()
+	    private final List<OutgoingMessage> unanswered = new ArrayList<OutgoingMessage>();
 
 	    
 	    public WriteThread(Socket socket, Client client) {
@@ -34,7 +54,7 @@ public class WriteThread extends Thread{
 	        this.client = client;
 	        
 	        try {
-	            OutputStream output = socket.getOutputStream();
+	            output = socket.getOutputStream();
 	            writer = new PrintWriter(output, true);
 	        } catch (IOException ex) {
 	            System.out.println("Error getting output stream: " + ex.getMessage());
@@ -44,12 +64,40 @@ public class WriteThread extends Thread{
 	    
 	    public void run() {
 	    	
-	        //on first cycle send message to server with new username
-	        writer.println(client.getUserName() + ": enter");
+	    	binary = client.isBinary();
+	        /*
+	         * on first cycle send message to server with new username,
+	         * a binary Client first announces its protocol version with HELLO
+	         */
+	        if(binary)
+	        {
+	        	sendFrame(Frame.hello(Frame.VERSION, client.getOfferedFlags()));
+	        	sendFrame(Frame.encode(Frame.JOIN, client.getUserName()));
+	        }
+	        else
+	        {
+	        	writer.println(client.getUserName() + ": enter");
+	        }
 	        
 	        do {
-	        	//listening
-	        	message = client.getGUI().getMessageFromUI();
+	        	//listening, blocks until the ChatAppUI hands over a message
+	        	OutgoingMessage message;
+	        	try
+	        	{
+	        		message = client.nextOutgoing();
+	        	}
+	        	catch (InterruptedException e)
+	        	{
+	        		break;
+	        	}
+	        	if(binary && !client.isHelloAnswered())
+	        	{
+	        		unanswered.add(message);
+	        	}
+	        	else if(!unanswered.isEmpty())
+	        	{
+	        		unanswered.clear();
+	        	}
 	        	
 	        	//SCANNING UI
 	        	
@@ -57,14 +105,21 @@ public class WriteThread extends Thread{
 	        	 * this Client logout check:
 	        	 * 
 	        	 * when this user types "logout" or hits logout button,
-	        	 * Client.logout boolean is set true
+	        	 * the ChatAppUI hands over a logout message
 	        	 * 
 	        	 * this Client sends "logout" command message to server,
 	        	 * alerting other Clients of its logout, and is disconnected
 	        	 */
-	        	if(client.getLogout() == true)
+	        	if(message.getType() == Frame.LOGOUT)
 	        	{
-	        		writer.println("logout");
+	        		if(binary)
+	        		{
+	        			sendFrame(Frame.encode(Frame.LOGOUT));
+	        		}
+	        		else
+	        		{
+	        			writer.println("logout");
+	        		}
 	        		client.disconnect();
 	        		break;
 	        	}
@@ -72,41 +127,71 @@ public class WriteThread extends Thread{
 	        	 * regular message sent check:
 	        	 * 
 	        	 * when user hits send button or hits enter after
-	        	 * typing a message, ChatAppUI.messageReady boolean is 
-	        	 * set true
+	        	 * typing a message, the ChatAppUI hands over a chat message
 	        	 * 
 	        	 * the raw message from the ChatAppUI TextField is formated
 	        	 * into a regular message "username: message", then is added to
-	        	 * this Clients message list and sent to the server
+	        	 * this Clients message list and sent to the server (a binary
+	        	 * Client sends just the message, the server adds the username)
+	        	 * 
+	        	 * room commands ("/join room", "/leave") are sent the same way
+	        	 * but not added to the message list, the server answers them
 	        	 */
-	        	else if (client.getGUI().getMessageReady() == true)
+	        	else if (message.getType() == Frame.CHAT)
 	        	{
 
-			        String text = client.getUserName() + ": " + message;
-			        
-			        client.addMessage(text);
-			        writer.println(text);
-			        
-			        //see ReadThread NOTE for more info
-			        Platform.runLater(()->{
-			        	client.getGUI().setChat();
-			        });
+			        String text = client.getUserName() + ": " + message.getText();
 			        
-			        client.getGUI().setMessageReady(false);
+			        if(!message.getText().startsWith("/") && !message.isResent())
+			        {
+			        	client.addMessage(text);
+			        }
+			        if(binary)
+			        {
+			        	sendFrame(Frame.encode(Frame.CHAT, message.getText()));
+			        }
+			        else
+			        {
+			        	writer.println(text);
+			        }
+
+	        	}
+	        	/*
+	        	 * heartbeat check:
+	        	 * 
+	        	 * the ReadThread hands over a pong when the server pings
+	        	 * this Client, which is dropped if it does not answer
+	        	 */
+	        	else if (message.getType() == Frame.PONG)
+	        	{
+	        		if(binary)
+	        		{
+	        			sendFrame(Frame.encode(Frame.PONG));
+	        		}
+	        		else
+	        		{
+	        			writer.println("pong");
+	        		}
 	        	}
 	        	/*
 	        	 * direct message check:
 	        	 * 
-	        	 * when user sends direct message, ChatAppUI.directMessageReady
-	        	 * boolean is set true
+	        	 * when user sends direct message, the ChatAppUI hands over
+	        	 * a direct message with its recipient
 	        	 * 
 	        	 * direct message is then formated into a command message 
-	        	 * "sender&recipient&message" and sent to server
+	        	 * "sender&recipient&message" (or a DIRECT Frame) and sent to server
 	        	 */
-	        	else if (client.getGUI().getDirectMessageReady() == true)
+	        	else if (message.getType() == Frame.DIRECT)
 	        	{
-	        		writer.println(client.getUserName()+ "&" + client.getGUI().getDirectMessageUsername() + "&" + client.getGUI().getDirectMessage());
-	        		client.getGUI().setDirectMessageReady(false);
+	        		if(binary)
+	        		{
+	        			sendFrame(Frame.encode(Frame.DIRECT, client.getUserName(), message.getRecipient(), message.getText()));
+	        		}
+	        		else
+	        		{
+	        			writer.println(client.getUserName()+ "&" + message.getRecipient() + "&" + message.getText());
+	        		}
 	        	}
 	        		            
 	        	//END SCANNING
@@ -123,4 +208,27 @@ public class WriteThread extends Thread{
 	            System.out.println("Error writing to server: " + ex.getMessage());
 	        }
 	    }
+	    
+	    //messages this thread took before the server's HELLO arrived, read once the thread has ended
+	    public List<OutgoingMessage> getUnanswered() {
+	    	return unanswered;
+	    }
+	    
+	    //writes one encoded binary protocol Frame to the server, deflated if the server agreed on it
+	    private void sendFrame(byte[] frame)
+	    {
+	    	if((client.getFlags() & Frame.FLAG_DEFLATE) != 0)
+	    	{
+	    		frame = Frame.deflated(frame);
+	    	}
+	    	try
+	    	{
+	    		output.write(frame);
+	    		output.flush();
+	    	}
+	    	catch (IOException ex)
+	    	{
+	    		System.out.println("Error writing to server: " + ex.getMessage());
+	    	}
+	    }
 }
@@ -0,0 +1,475 @@
+package protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * FRAME CLASS:
+ * 
+ * One message of the binary wire protocol, shared by the Server
+ * and the Client
+ * 
+ * Every frame is laid out as
+ * 
+ *    [opcode: 1 byte][payload length: 4 bytes][payload: UTF-8]
+ * 
+ * and the payload is a list of fields, every field but the last is
+ * prefixed with its 2 byte length, the last one runs to the end, so
+ * a message can contain '@', '~', '&' or ':' freely
+ * 
+ * The first frame a binary Client sends is HELLO, whose opcode byte
+ * (0x00) can never start a line of the text protocol, which is how the
+ * Server tells the two protocols apart, the Server answers with its own
+ * HELLO carrying the version it will speak
+ * 
+ * Opcodes and fields:
+ * -HELLO: magic "CHAT", version byte, flags byte
+ * -JOIN: username (Client to Server)
+ * -CHAT: text (Client to Server), display line (Server to Client)
+ * -DIRECT: sender, recipient, text (sender is ignored from Clients)
+ * -LOGOUT: no fields
+ * -USER_JOINED / USER_LEFT: username (Server to Client)
+ * -ROSTER: version 8B, flags 1B, usernames (Server to Client)
+ * -ROSTER_DELTA: version 8B, joined 1B, username (Server to Client)
+ * -DEFLATED: another complete frame, header included, deflated (both ways)
+ * -PING: no fields (Server to Client), to be answered with a PONG
+ * -PONG: no fields (Client to Server)
+ * 
+ * HELLO flags:
+ * -FLAG_ROSTER: the Client takes a Room's members list as one ROSTER
+ *  snapshot and keeps it up to date with versioned ROSTER_DELTAs instead
+ *  of one USER_JOINED per member, see roster() and rosterDelta()
+ * -FLAG_DEFLATE: frames of DEFLATE_BYTES or more may be sent wrapped in a
+ *  DEFLATED frame, see deflated(), in both directions
+ * 
+ * Flags are offered in the Client's HELLO, the Server answers with the
+ * ones it will use
+ * 
+ * DEFLATED frames are deflated with a preset DICTIONARY of what chat
+ * traffic is full of (the padded entered and left lines, links, common
+ * words), so even a frame of a few hundred bytes shrinks, each one is
+ * deflated on its own, a frame never depends on the ones before it, so
+ * the Server can deflate a broadcast once for every recipient
+ */
+
+public final class Frame {
+	public static final byte HELLO = 0x00;
+	public static final byte JOIN = 0x01;
+	public static final byte CHAT = 0x02;
+	public static final byte DIRECT = 0x03;
+	public static final byte LOGOUT = 0x04;
+	public static final byte USER_JOINED = 0x05;
+	public static final byte USER_LEFT = 0x06;
+	public static final byte ROSTER = 0x07;
+	public static final byte ROSTER_DELTA = 0x08;
+	public static final byte DEFLATED = 0x09;
+	public static final byte PING = 0x0A;
+	public static final byte PONG = 0x0B;
+	
+	public static final int FLAG_ROSTER = 0x01;
+	public static final int FLAG_DEFLATE = 0x02;
+	//frames smaller than this are sent as they are, deflating them saves next to nothing
+	public static final int DEFLATE_BYTES = 256;
+	//ROSTER usernames are deflated once they take up more than this
+	public static final int ROSTER_COMPRESS_BYTES = 1024;
+	private static final int ROSTER_DEFLATED = 0x01;
+	//version 8B and flags or joined 1B, ahead of a ROSTER or ROSTER_DELTA frame's usernames
+	private static final int ROSTER_HEADER_LENGTH = 9;
+	
+	public static final int VERSION = 1;
+	public static final int HEADER_LENGTH = 5;
+	public static final int MAX_PAYLOAD = 1024 * 1024;
+	//longest field that can be followed by others, its length has 2 bytes
+	public static final int MAX_FIELD_LENGTH = 0xFFFF;
+	public static final Charset CHARSET = StandardCharsets.UTF_8;
+	private static final byte[] MAGIC = {'C', 'H', 'A', 'T'};
+	//most common strings last, deflate finds the nearest match first
+	private static final byte[] DICTIONARY = ("http://https://www..com.org.net/watch?v= you are that this with have what just like your they there "
+			+ "would about know think will from time good really when then them well yeah okay thanks lol haha the and for not "
+			+ "---" + " has left room " + " has entered room " + " has left the chatroom---"
+			+ "                                           ---" + " has entered the chatroom---").getBytes(StandardCharsets.UTF_8);
+	//a Deflater and an Inflater per thread, reset between frames, creating them allocates native memory
+	private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(()->new Deflater(Deflater.BEST_SPEED));
+	private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+	
+	private final byte opcode;
+	private final byte[] payload;
+
+	
+	public Frame(byte opcode, byte[] payload)
+	{
+		this.opcode = opcode;
+		this.payload = payload;
+	}
+	
+	/*
+	 * encode method:
+	 * 
+	 * builds the complete wire bytes (header included) of a frame
+	 * holding the passed fields
+	 */
+	public static byte[] encode(byte opcode, String... fields)
+	{
+		byte[][] encoded = new byte[fields.length][];
+		int length = 0;
+		for(int i = 0; i < fields.length; i++)
+		{
+			encoded[i] = fields[i].getBytes(CHARSET);
+			length += encoded[i].length + (i < fields.length - 1 ? 2 : 0);
+		}
+		
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + length);
+		frame.put(opcode).putInt(length);
+		for(int i = 0; i < encoded.length; i++)
+		{
+			if(i < encoded.length - 1)
+			{
+				frame.putShort((short) encoded[i].length);
+			}
+			frame.put(encoded[i]);
+		}
+		return frame.array();
+	}
+	
+	//wire bytes of a HELLO frame announcing the passed version and flags
+	public static byte[] hello(int version, int flags)
+	{
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + MAGIC.length + 2);
+		frame.put(HELLO).putInt(MAGIC.length + 2).put(MAGIC).put((byte) version).put((byte) flags);
+		return frame.array();
+	}
+	
+	/*
+	 * roster method:
+	 * 
+	 * wire bytes of a ROSTER frame, the complete members list at the
+	 * passed version, usernames are each prefixed with their 2 byte
+	 * length and deflated as a whole when they are large enough for it
+	 * to pay off, a 10000 member Room is one frame of a few KB
+	 */
+	public static byte[] roster(long version, Collection<String> usernames)
+	{
+		ByteArrayOutputStream names = new ByteArrayOutputStream();
+		for(String username : usernames)
+		{
+			byte[] name = username.getBytes(CHARSET);
+			names.write(name.length >> 8);
+			names.write(name.length);
+			names.write(name, 0, name.length);
+		}
+		
+		byte[] body = names.toByteArray();
+		int flags = 0;
+		if(body.length > ROSTER_COMPRESS_BYTES)
+		{
+			body = deflate(body, 0, body.length, null);
+			flags = ROSTER_DEFLATED;
+		}
+		
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + 9 + body.length);
+		frame.put(ROSTER).putInt(9 + body.length).putLong(version).put((byte) flags).put(body);
+		return frame.array();
+	}
+	
+	//wire bytes of a ROSTER_DELTA frame, username joined or left at the passed version
+	public static byte[] rosterDelta(long version, boolean joined, String username)
+	{
+		byte[] name = username.getBytes(CHARSET);
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + 9 + name.length);
+		frame.put(ROSTER_DELTA).putInt(9 + name.length).putLong(version).put((byte) (joined ? 1 : 0)).put(name);
+		return frame.array();
+	}
+	
+	/*
+	 * deflated method:
+	 * 
+	 * wire bytes of a DEFLATED frame wrapping the passed complete frame,
+	 * or the frame itself if it is smaller than DEFLATE_BYTES or does not
+	 * get any smaller, for peers that agreed on FLAG_DEFLATE
+	 */
+	public static byte[] deflated(byte[] frame)
+	{
+		if(frame.length < DEFLATE_BYTES || frame[0] == DEFLATED)
+		{
+			return frame;
+		}
+		
+		byte[] body = deflate(frame, 0, frame.length, DICTIONARY);
+		if(HEADER_LENGTH + body.length >= frame.length)
+		{
+			return frame;
+		}
+		ByteBuffer deflated = ByteBuffer.allocate(HEADER_LENGTH + body.length);
+		deflated.put(DEFLATED).putInt(body.length).put(body);
+		return deflated.array();
+	}
+	
+	//deflates the passed bytes with the thread's Deflater, preset with the passed dictionary unless it is null
+	private static byte[] deflate(byte[] bytes, int offset, int length, byte[] dictionary)
+	{
+		Deflater deflater = DEFLATERS.get();
+		deflater.reset();
+		if(dictionary != null)
+		{
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(bytes, offset, length);
+		deflater.finish();
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream(length / 2 + 16);
+		byte[] chunk = new byte[8 * 1024];
+		while(!deflater.finished())
+		{
+			deflated.write(chunk, 0, deflater.deflate(chunk));
+		}
+		return deflated.toByteArray();
+	}
+	
+	/*
+	 * read method:
+	 * 
+	 * blocks until a whole frame has been read from the stream, returns
+	 * null when the stream ends cleanly between frames
+	 */
+	public static Frame read(DataInputStream input) throws IOException
+	{
+		int opcode = input.read();
+		if(opcode < 0)
+		{
+			return null;
+		}
+		
+		int length = input.readInt();
+		checkLength(length);
+		byte[] payload = new byte[length];
+		input.readFully(payload);
+		return new Frame((byte) opcode, payload);
+	}
+	
+	//rejects lengths a well behaved peer never sends
+	static void checkLength(int length) throws IOException
+	{
+		if(length < 0 || length > MAX_PAYLOAD)
+		{
+			throw new ProtocolException("Bad frame length " + length);
+		}
+	}
+	
+	/*
+	 * field method:
+	 * 
+	 * decodes field number index of the payload, fields before it are
+	 * skipped using their length prefixes without being decoded
+	 */
+	public String field(int index) throws IOException
+	{
+		return field(index, fieldCount());
+	}
+	
+	//same for frames of opcodes defined outside this class, which carry fieldCount fields
+	public String field(int index, int fieldCount) throws IOException
+	{
+		int position = 0;
+		for(int i = 0; i < index; i++)
+		{
+			position += 2 + fieldLength(position);
+		}
+		
+		int length = index < fieldCount - 1 ? fieldLength(position) : payload.length - position;
+		int start = index < fieldCount - 1 ? position + 2 : position;
+		if(start + length > payload.length)
+		{
+			throw new ProtocolException("Field " + index + " runs past the end of the frame");
+		}
+		return new String(payload, start, length, CHARSET);
+	}
+	
+	private int fieldLength(int position) throws IOException
+	{
+		if(position + 2 > payload.length)
+		{
+			throw new ProtocolException("Field length runs past the end of the frame");
+		}
+		return ((payload[position] & 0xFF) << 8) | (payload[position + 1] & 0xFF);
+	}
+	
+	//number of fields the opcode carries
+	public int fieldCount()
+	{
+		switch(opcode)
+		{
+		case DIRECT:
+			return 3;
+		case LOGOUT:
+		case HELLO:
+		case PING:
+		case PONG:
+			return 0;
+		default:
+			return 1;
+		}
+	}
+	
+	//version of a ROSTER or ROSTER_DELTA frame
+	public long rosterVersion() throws IOException
+	{
+		checkRoster();
+		return ByteBuffer.wrap(payload).getLong(0);
+	}
+	
+	//usernames of a ROSTER frame, inflated if the Server deflated them
+	public List<String> rosterNames() throws IOException
+	{
+		checkRoster();
+		byte[] body = Arrays.copyOfRange(payload, ROSTER_HEADER_LENGTH, payload.length);
+		if((payload[8] & ROSTER_DEFLATED) != 0)
+		{
+			body = inflate(body, null, MAX_PAYLOAD);
+		}
+		
+		List<String> usernames = new ArrayList<String>();
+		ByteBuffer names = ByteBuffer.wrap(body);
+		while(names.remaining() >= 2)
+		{
+			int length = names.getShort() & 0xFFFF;
+			if(length > names.remaining())
+			{
+				throw new ProtocolException("Roster username runs past the end of the frame");
+			}
+			usernames.add(new String(body, names.position(), length, CHARSET));
+			names.position(names.position() + length);
+		}
+		return usernames;
+	}
+	
+	//true if a ROSTER_DELTA frame says its username joined, false if it left
+	public boolean rosterJoined() throws IOException
+	{
+		checkRoster();
+		return payload[8] != 0;
+	}
+	
+	//username of a ROSTER_DELTA frame
+	public String rosterName() throws IOException
+	{
+		checkRoster();
+		return new String(payload, ROSTER_HEADER_LENGTH, payload.length - ROSTER_HEADER_LENGTH, CHARSET);
+	}
+	
+	//a ROSTER or ROSTER_DELTA frame too short for its version and flags is a protocol error, not a crash
+	private void checkRoster() throws IOException
+	{
+		if(payload.length < ROSTER_HEADER_LENGTH)
+		{
+			throw new ProtocolException("Roster frame of " + payload.length + " bytes is cut short");
+		}
+	}
+	
+	/*
+	 * inflated method:
+	 * 
+	 * the frame a DEFLATED frame wraps, its length is checked like that
+	 * of a frame read off the wire, and a DEFLATED frame inside another
+	 * one is refused, so a small frame can not inflate without bound
+	 */
+	public Frame inflated() throws IOException
+	{
+		byte[] frame = inflate(payload, DICTIONARY, HEADER_LENGTH + MAX_PAYLOAD);
+		if(frame.length < HEADER_LENGTH || frame[0] == DEFLATED)
+		{
+			throw new ProtocolException("Bad deflated frame");
+		}
+		
+		int length = ByteBuffer.wrap(frame).getInt(1);
+		checkLength(length);
+		if(length != frame.length - HEADER_LENGTH)
+		{
+			throw new ProtocolException("Deflated frame is cut short");
+		}
+		return new Frame(frame[0], Arrays.copyOfRange(frame, HEADER_LENGTH, frame.length));
+	}
+	
+	//inflates the passed bytes with the thread's Inflater, refusing to inflate past limit bytes
+	private static byte[] inflate(byte[] bytes, byte[] dictionary, int limit) throws IOException
+	{
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		inflater.setInput(bytes);
+		ByteArrayOutputStream inflated = new ByteArrayOutputStream(bytes.length * 4);
+		byte[] chunk = new byte[8 * 1024];
+		try
+		{
+			while(!inflater.finished())
+			{
+				int length = inflater.inflate(chunk);
+				if(length == 0 && inflater.needsDictionary() && dictionary != null)
+				{
+					inflater.setDictionary(dictionary);
+					continue;
+				}
+				if(length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+				{
+					throw new ProtocolException("Deflated bytes are cut short");
+				}
+				inflated.write(chunk, 0, length);
+				if(inflated.size() > limit)
+				{
+					throw new ProtocolException("Deflated bytes inflate past " + limit + " bytes");
+				}
+			}
+		}
+		catch (DataFormatException | IllegalArgumentException e)
+		{
+			//IllegalArgumentException: deflated with some other dictionary
+			throw new ProtocolException("Bad deflated bytes", e);
+		}
+		return inflated.toByteArray();
+	}
+	
+	//true if this is a HELLO frame with the protocol's magic bytes
+	public boolean isHello()
+	{
+		if(opcode != HELLO || payload.length < MAGIC.length + 2)
+		{
+			return false;
+		}
+		for(int i = 0; i < MAGIC.length; i++)
+		{
+			if(payload[i] != MAGIC[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public int helloVersion()
+	{
+		return payload[MAGIC.length] & 0xFF;
+	}
+	
+	public int helloFlags()
+	{
+		return payload[MAGIC.length + 1] & 0xFF;
+	}
+	
+	//GETTERS AND SETTERS
+	public byte getOpcode() {
+		return opcode;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+}
@@ -0,0 +1,63 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * FRAMEDECODER CLASS:
+ * 
+ * Frames binary protocol Frames out of the raw bytes read from a
+ * non-blocking channel, the binary counterpart of the Server's
+ * LineDecoder
+ * 
+ * A read may hold part of a frame or several frames, so the header
+ * and payload read so far are kept until the frame is complete
+ */
+
+public class FrameDecoder {
+	private final ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_LENGTH);
+	private byte[] payload;
+	private int payloadRead;
+	
+	
+	/*
+	 * next method:
+	 * 
+	 * consumes bytes from the passed buffer until a full frame is found
+	 * and returns it, or returns null once the buffer is used up
+	 * without completing a frame
+	 */
+	public Frame next(ByteBuffer buffer) throws IOException
+	{
+		if(payload == null)
+		{
+			while(header.hasRemaining() && buffer.hasRemaining())
+			{
+				header.put(buffer.get());
+			}
+			if(header.hasRemaining())
+			{
+				return null;
+			}
+			
+			int length = header.getInt(1);
+			Frame.checkLength(length);
+			payload = new byte[length];
+			payloadRead = 0;
+		}
+		
+		int count = Math.min(buffer.remaining(), payload.length - payloadRead);
+		buffer.get(payload, payloadRead, count);
+		payloadRead += count;
+		if(payloadRead < payload.length)
+		{
+			return null;
+		}
+		
+		Frame frame = new Frame(header.get(0), payload);
+		header.clear();
+		payload = null;
+		return frame;
+	}
+	
+}
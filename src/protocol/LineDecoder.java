@@ -0,0 +1,111 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/*
+ * LINEDECODER CLASS:
+ * 
+ * Frames the newline delimited text protocol out of raw bytes, used by
+ * the Server for every text Client and by the Client's ReadThread
+ * 
+ * A read may hold half a line or several lines, so bytes that
+ * are not yet terminated by '\n' are kept until the next read
+ * 
+ * Lines are not turned into Strings here, the finished line is left in
+ * a reusable byte array (see getLine() and getLength()) for a TextMessage
+ * to classify, so framing allocates nothing once the array is big enough
+ * 
+ * Text is in the platform charset, the same one the Client's PrintWriter
+ * and InputStreamReader use, and a trailing '\r' is dropped just like
+ * BufferedReader.readLine() does
+ */
+
+public class LineDecoder {
+	public static final Charset CHARSET = Charset.defaultCharset();
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	private byte[] line = new byte[256];
+	private int length = 0;
+	private boolean complete = false;
+
+
+	/*
+	 * next method:
+	 * 
+	 * consumes bytes from the passed buffer until a full line is found,
+	 * returns true when one was, it stays in getLine() until the next
+	 * call, or false once the buffer is used up without completing a line
+	 */
+	public boolean next(ByteBuffer buffer) throws IOException
+	{
+		if(complete)
+		{
+			length = 0;
+			complete = false;
+		}
+
+		int start = buffer.position();
+		int limit = buffer.limit();
+		int end = start;
+		while(end < limit && buffer.get(end) != '\n')
+		{
+			end++;
+		}
+
+		append(buffer, end - start);
+		if(end == limit)
+		{
+			return false;
+		}
+
+		//skipping the '\n' itself
+		buffer.get();
+		if(length > 0 && line[length - 1] == '\r')
+		{
+			length--;
+		}
+		complete = true;
+		return true;
+	}
+
+	/*
+	 * nextLine method:
+	 * 
+	 * same as next() but returns the line as a String, or null when
+	 * no line was completed
+	 */
+	public String nextLine(ByteBuffer buffer) throws IOException
+	{
+		return next(buffer) ? new String(line, 0, length, CHARSET) : null;
+	}
+
+	private void append(ByteBuffer buffer, int count) throws IOException
+	{
+		if(length + count > line.length)
+		{
+			if(length + count > MAX_LINE_LENGTH)
+			{
+				throw new ProtocolException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+			}
+			line = Arrays.copyOf(line, Math.min(MAX_LINE_LENGTH, Math.max(line.length * 2, length + count)));
+		}
+
+		buffer.get(line, length, count);
+		length += count;
+	}
+
+	//GETTERS AND SETTERS
+
+	//bytes of the last completed line, only the first getLength() are valid
+	public byte[] getLine() {
+		return line;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+}
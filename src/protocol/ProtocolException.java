@@ -0,0 +1,28 @@
+package protocol;
+
+import java.io.IOException;
+
+/*
+ * PROTOCOLEXCEPTION CLASS:
+ * 
+ * Thrown when a peer sends bytes that break the text or binary protocol
+ * (bad frame lengths, fields running past their frame, overlong lines,
+ * unexpected opcodes), as opposed to the connection itself failing, so
+ * the Server can count malformed messages apart from dropped connections
+ */
+
+public class ProtocolException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	
+	public ProtocolException(String message)
+	{
+		super(message);
+	}
+	
+	public ProtocolException(String message, Throwable cause)
+	{
+		super(message, cause);
+	}
+
+}
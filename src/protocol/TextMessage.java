@@ -0,0 +1,209 @@
+package protocol;
+
+/*
+ * TEXTMESSAGE CLASS:
+ * 
+ * Classifies one text protocol line in a single pass over its bytes,
+ * without the readLine()/split()/contains() Strings and arrays the
+ * protocol used to be parsed with
+ * 
+ * One TextMessage is reused for every line of a connection, parse()
+ * only records where the separators are, Strings are only made for
+ * the parts a command actually needs (a username, a recipient)
+ * 
+ * Lines from a Client:
+ * -"logout": isLogout()
+ * -"pong": isPong(), the answer to a ping
+ * -"sender&recipient&message": isDirect()
+ * -"username: /join room" or "username: /leave": isCommand()
+ * -"username: message": anything else, the first one joins
+ * 
+ * Lines from the Server:
+ * -"@username": isUserJoined()
+ * -"~username": isUserLeft()
+ * -"~" on its own: isPing(), to be answered with "pong"
+ * -"sender&recipient&message": isDirect()
+ * -anything else is a regular chat line
+ */
+
+public final class TextMessage {
+	private static final byte[] LOGOUT = {'l', 'o', 'g', 'o', 'u', 't'};
+	private static final byte[] PONG = {'p', 'o', 'n', 'g'};
+
+	private byte[] line;
+	//the line starts this far into line, separators are counted from there
+	private int offset;
+	private int length;
+	private int colon;
+	private int firstAmpersand;
+	private int secondAmpersand;
+
+
+	/*
+	 * parse method:
+	 * 
+	 * points this TextMessage at the first length bytes of line and
+	 * finds the separators, line must not change while it is in use
+	 */
+	public TextMessage parse(byte[] line, int length)
+	{
+		return parse(line, 0, length);
+	}
+
+	//same, for a line that starts offset bytes into the array, a WebSocket payload in its read buffer for example
+	public TextMessage parse(byte[] line, int offset, int length)
+	{
+		this.line = line;
+		this.offset = offset;
+		this.length = length;
+		colon = -1;
+		firstAmpersand = -1;
+		secondAmpersand = -1;
+
+		for(int i = 0; i < length; i++)
+		{
+			byte b = line[offset + i];
+			if(b == ':' && colon < 0)
+			{
+				colon = i;
+			}
+			else if(b == '&')
+			{
+				if(firstAmpersand < 0)
+				{
+					firstAmpersand = i;
+				}
+				else if(secondAmpersand < 0)
+				{
+					secondAmpersand = i;
+				}
+			}
+		}
+		return this;
+	}
+
+	public boolean isLogout()
+	{
+		return is(LOGOUT);
+	}
+
+	public boolean isPong()
+	{
+		return is(PONG);
+	}
+
+	//a "~" without a username, old Clients just remove nobody from their members list
+	public boolean isPing()
+	{
+		return length == 1 && line[offset] == '~';
+	}
+
+	//true if the line is exactly the passed bytes
+	private boolean is(byte[] word)
+	{
+		if(length != word.length)
+		{
+			return false;
+		}
+		for(int i = 0; i < length; i++)
+		{
+			if(line[offset + i] != word[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean isDirect()
+	{
+		return firstAmpersand >= 0;
+	}
+
+	public boolean isUserJoined()
+	{
+		return length > 0 && line[offset] == '@';
+	}
+
+	public boolean isUserLeft()
+	{
+		return length > 1 && line[offset] == '~';
+	}
+
+	//true when the message part of "username: message" starts with '/'
+	public boolean isCommand()
+	{
+		int start = bodyStart();
+		return colon >= 0 && start < length && line[offset + start] == '/';
+	}
+
+	//message part of "username: message", without the space after the ':'
+	public String body()
+	{
+		return string(bodyStart(), length);
+	}
+
+	//text before the first ':', the sender's name in "username: message"
+	public String prefix()
+	{
+		return string(0, colon < 0 ? length : colon);
+	}
+
+	//username of an "@username" or "~username" line
+	public String commandName()
+	{
+		return string(1, length);
+	}
+
+	public String directSender()
+	{
+		return string(0, firstAmpersand);
+	}
+
+	public String directRecipient()
+	{
+		return string(firstAmpersand + 1, secondAmpersand < 0 ? length : secondAmpersand);
+	}
+
+	//message part of a direct message, null when the line has no second '&'
+	public String directText()
+	{
+		return secondAmpersand < 0 ? null : string(secondAmpersand + 1, length);
+	}
+
+	//the whole line as a String
+	public String text()
+	{
+		return string(0, length);
+	}
+
+	//copy of the line's bytes followed by '\n', ready to be sent on as is
+	public byte[] copyWithNewline()
+	{
+		byte[] copy = new byte[length + 1];
+		System.arraycopy(line, offset, copy, 0, length);
+		copy[length] = '\n';
+		return copy;
+	}
+
+	private int bodyStart()
+	{
+		int start = colon + 1;
+		if(start < length && line[offset + start] == ' ')
+		{
+			start++;
+		}
+		return start;
+	}
+
+	private String string(int start, int end)
+	{
+		return new String(line, offset + start, end - start, LineDecoder.CHARSET);
+	}
+
+	//GETTERS AND SETTERS
+	public int getLength() {
+		return length;
+	}
+
+}
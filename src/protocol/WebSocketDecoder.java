@@ -0,0 +1,206 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * WEBSOCKETDECODER CLASS:
+ * 
+ * Frames the WebSocketFrames a browser sends out of the raw bytes read
+ * from a non-blocking channel, the WebSocket counterpart of the
+ * FrameDecoder
+ * 
+ * Frames are decoded where they were read, in the read buffer itself:
+ * the header is parsed in place, the payload is unmasked in place and
+ * handed out as that buffer's array with an offset and a length (see
+ * getPayload(), getOffset() and getLength()), so an unfragmented message
+ * is never copied, a TextMessage can parse it right there
+ * 
+ * A frame is only decoded once it is all in the buffer, a partial one
+ * is left at the buffer's position for the caller to keep and read more
+ * bytes behind, so a frame must fit in the buffer, MAX_FRAME_LENGTH
+ * 
+ * The parts of a fragmented message are gathered in an array of their
+ * own (the one copy there is), control frames between them are handed
+ * out as they come
+ */
+
+public class WebSocketDecoder {
+	public static final int MAX_MESSAGE_LENGTH = 64 * 1024;
+	public static final int MAX_FRAME_LENGTH = MAX_MESSAGE_LENGTH + WebSocketFrame.MAX_HEADER_LENGTH;
+	
+	//parts of a fragmented message so far, and its opcode, CONTINUATION while there is none
+	private byte[] fragments;
+	private int fragmentsLength = 0;
+	private byte fragmentedOpcode = WebSocketFrame.CONTINUATION;
+	//the last message or control frame decoded
+	private byte opcode;
+	private byte[] payload;
+	private int offset;
+	private int length;
+	
+	
+	/*
+	 * next method:
+	 * 
+	 * decodes frames from the passed buffer, which must be backed by an
+	 * array, until a whole message or a control frame is found, returns
+	 * true when one was, it stays valid until the buffer is changed, or
+	 * false once only part of a frame (or nothing) is left
+	 */
+	public boolean next(ByteBuffer buffer) throws IOException
+	{
+		byte[] array = buffer.array();
+		while(true)
+		{
+			int start = buffer.arrayOffset() + buffer.position();
+			int available = buffer.remaining();
+			if(available < 2)
+			{
+				return false;
+			}
+			
+			int first = array[start] & 0xFF;
+			int second = array[start + 1] & 0xFF;
+			if((first & 0x70) != 0)
+			{
+				throw new ProtocolException("WebSocket extensions were not negotiated");
+			}
+			if((second & WebSocketFrame.MASK) == 0)
+			{
+				throw new ProtocolException("WebSocket frames from a browser must be masked");
+			}
+			boolean fin = (first & WebSocketFrame.FIN) != 0;
+			byte frameOpcode = (byte) (first & 0x0F);
+			
+			int header = 2;
+			long frameLength = second & 0x7F;
+			if(frameLength == 126)
+			{
+				if(available < 4)
+				{
+					return false;
+				}
+				frameLength = ((array[start + 2] & 0xFF) << 8) | (array[start + 3] & 0xFF);
+				header = 4;
+			}
+			else if(frameLength == 127)
+			{
+				if(available < 10)
+				{
+					return false;
+				}
+				frameLength = 0;
+				for(int i = 0; i < 8; i++)
+				{
+					frameLength = (frameLength << 8) | (array[start + 2 + i] & 0xFF);
+				}
+				header = 10;
+			}
+			
+			if(WebSocketFrame.isControl(frameOpcode) && (!fin || frameLength > WebSocketFrame.MAX_CONTROL_PAYLOAD))
+			{
+				throw new ProtocolException("WebSocket control frames must be whole and at most " + WebSocketFrame.MAX_CONTROL_PAYLOAD + " bytes");
+			}
+			if(frameLength < 0 || frameLength > MAX_MESSAGE_LENGTH)
+			{
+				throw new ProtocolException("WebSocket frame longer than " + MAX_MESSAGE_LENGTH + " bytes");
+			}
+			int mask = start + header;
+			header += 4;
+			if(available < header + frameLength)
+			{
+				return false;
+			}
+			
+			int payloadStart = start + header;
+			int payloadLength = (int) frameLength;
+			for(int i = 0; i < payloadLength; i++)
+			{
+				array[payloadStart + i] ^= array[mask + (i & 3)];
+			}
+			buffer.position(buffer.position() + header + payloadLength);
+			
+			switch(frameOpcode)
+			{
+			case WebSocketFrame.CLOSE:
+			case WebSocketFrame.PING:
+			case WebSocketFrame.PONG:
+				decoded(frameOpcode, array, payloadStart, payloadLength);
+				return true;
+			case WebSocketFrame.TEXT:
+			case WebSocketFrame.BINARY:
+				if(fragmentedOpcode != WebSocketFrame.CONTINUATION)
+				{
+					throw new ProtocolException("WebSocket message started before the last one was finished");
+				}
+				if(fin)
+				{
+					decoded(frameOpcode, array, payloadStart, payloadLength);
+					return true;
+				}
+				fragmentedOpcode = frameOpcode;
+				fragmentsLength = 0;
+				append(array, payloadStart, payloadLength);
+				break;
+			case WebSocketFrame.CONTINUATION:
+				if(fragmentedOpcode == WebSocketFrame.CONTINUATION)
+				{
+					throw new ProtocolException("WebSocket continuation without a message to continue");
+				}
+				append(array, payloadStart, payloadLength);
+				if(fin)
+				{
+					decoded(fragmentedOpcode, fragments, 0, fragmentsLength);
+					fragmentedOpcode = WebSocketFrame.CONTINUATION;
+					return true;
+				}
+				break;
+			default:
+				throw new ProtocolException("Unknown WebSocket opcode " + frameOpcode);
+			}
+		}
+	}
+	
+	private void decoded(byte opcode, byte[] payload, int offset, int length)
+	{
+		this.opcode = opcode;
+		this.payload = payload;
+		this.offset = offset;
+		this.length = length;
+	}
+	
+	private void append(byte[] array, int start, int count) throws IOException
+	{
+		if(fragmentsLength + count > MAX_MESSAGE_LENGTH)
+		{
+			throw new ProtocolException("WebSocket message longer than " + MAX_MESSAGE_LENGTH + " bytes");
+		}
+		if(fragments == null || fragmentsLength + count > fragments.length)
+		{
+			fragments = Arrays.copyOf(fragments == null ? new byte[0] : fragments, Math.min(MAX_MESSAGE_LENGTH, Math.max(256, Math.max(fragmentsLength * 2, fragmentsLength + count))));
+		}
+		System.arraycopy(array, start, fragments, fragmentsLength, count);
+		fragmentsLength += count;
+	}
+	
+	//GETTERS AND SETTERS
+	public byte getOpcode() {
+		return opcode;
+	}
+	
+	//array holding the payload of the last message, from getOffset() for getLength() bytes
+	public byte[] getPayload() {
+		return payload;
+	}
+	
+	public int getOffset() {
+		return offset;
+	}
+	
+	public int getLength() {
+		return length;
+	}
+
+}
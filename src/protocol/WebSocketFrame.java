@@ -0,0 +1,191 @@
+package protocol;
+
+import java.io.ByteArrayOutputStream;
+
+/*
+ * WEBSOCKETFRAME CLASS:
+ * 
+ * Wire format of RFC 6455 WebSocket frames, for browsers connected to
+ * the Server's WebSocket port, see WebSocketDecoder for the frames they
+ * send and WebSocketHandshake for the HTTP upgrade before them
+ * 
+ * Every frame is laid out as
+ * 
+ *    [FIN, RSV1-3, opcode: 1 byte][MASK, length: 1 byte]
+ *    [extended length: 0, 2 or 8 bytes][masking key: 0 or 4 bytes][payload]
+ * 
+ * a length of 126 means a 2 byte length follows, 127 an 8 byte one,
+ * frames from a browser are always masked, frames to it never are
+ * 
+ * Opcodes:
+ * -CONTINUATION: the next part of a fragmented message
+ * -TEXT: a text protocol line, UTF-8, without its '\n', a message that
+ *  is not valid UTF-8 closes the connection with CLOSE_INVALID_DATA
+ * -BINARY: not spoken by the Server, the connection is closed
+ * -CLOSE: status code 2B and reason, answered with a CLOSE
+ * -PING: answered with a PONG carrying the same payload
+ * -PONG: the answer to a PING, the Server's heartbeat
+ * 
+ * Server to browser, every text protocol line is one TEXT frame, so a
+ * page never splits lines itself, "@name", "~name" and
+ * "sender&recipient&message" mean what they mean to a text Client
+ */
+
+public final class WebSocketFrame {
+	public static final byte CONTINUATION = 0x0;
+	public static final byte TEXT = 0x1;
+	public static final byte BINARY = 0x2;
+	public static final byte CLOSE = 0x8;
+	public static final byte PING = 0x9;
+	public static final byte PONG = 0xA;
+	
+	public static final int FIN = 0x80;
+	public static final int MASK = 0x80;
+	//opcode, length, 8 byte extended length and masking key
+	public static final int MAX_HEADER_LENGTH = 14;
+	//control frames carry at most this much, so they always fit in a 2 byte header
+	public static final int MAX_CONTROL_PAYLOAD = 125;
+	
+	//close status codes
+	public static final int CLOSE_NORMAL = 1000;
+	public static final int CLOSE_PROTOCOL_ERROR = 1002;
+	public static final int CLOSE_UNSUPPORTED_DATA = 1003;
+	public static final int CLOSE_INVALID_DATA = 1007;
+	
+	
+	private WebSocketFrame()
+	{
+	}
+	
+	/*
+	 * textFrames method:
+	 * 
+	 * wire bytes of one TEXT frame per '\n' terminated line of the passed
+	 * text protocol bytes, the '\n' itself is left out, a ROSTER sent as
+	 * several "@name" lines becomes several frames
+	 */
+	public static byte[] textFrames(byte[] lines)
+	{
+		ByteArrayOutputStream frames = new ByteArrayOutputStream(lines.length + 16);
+		int start = 0;
+		for(int i = 0; i < lines.length; i++)
+		{
+			if(lines[i] == '\n')
+			{
+				write(frames, TEXT, lines, start, i - start);
+				start = i + 1;
+			}
+		}
+		if(start < lines.length)
+		{
+			write(frames, TEXT, lines, start, lines.length - start);
+		}
+		return frames.toByteArray();
+	}
+	
+	//wire bytes of an unfragmented, unmasked frame with the passed payload
+	public static byte[] encode(byte opcode, byte[] payload, int offset, int length)
+	{
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(length + MAX_HEADER_LENGTH);
+		write(frame, opcode, payload, offset, length);
+		return frame.toByteArray();
+	}
+	
+	//wire bytes of a CLOSE frame with the passed status code and no reason
+	public static byte[] close(int code)
+	{
+		return encode(CLOSE, new byte[] {(byte) (code >> 8), (byte) code}, 0, 2);
+	}
+	
+	private static void write(ByteArrayOutputStream frame, byte opcode, byte[] payload, int offset, int length)
+	{
+		frame.write(FIN | opcode);
+		if(length < 126)
+		{
+			frame.write(length);
+		}
+		else if(length <= 0xFFFF)
+		{
+			frame.write(126);
+			frame.write(length >> 8);
+			frame.write(length);
+		}
+		else
+		{
+			frame.write(127);
+			for(int shift = 56; shift >= 0; shift -= 8)
+			{
+				frame.write((int) ((long) length >> shift));
+			}
+		}
+		frame.write(payload, offset, length);
+	}
+	
+	/*
+	 * isUtf8 method:
+	 * 
+	 * true if the passed bytes are well formed UTF-8 (RFC 3629), which
+	 * RFC 6455 requires of TEXT messages: no overlong forms, no surrogates
+	 * and nothing past U+10FFFF
+	 */
+	public static boolean isUtf8(byte[] bytes, int offset, int length)
+	{
+		int end = offset + length;
+		int i = offset;
+		while(i < end)
+		{
+			int first = bytes[i] & 0xFF;
+			if(first < 0x80)
+			{
+				i++;
+				continue;
+			}
+			
+			int following;
+			if(first >= 0xC2 && first <= 0xDF)
+			{
+				following = 1;
+			}
+			else if(first >= 0xE0 && first <= 0xEF)
+			{
+				following = 2;
+			}
+			else if(first >= 0xF0 && first <= 0xF4)
+			{
+				following = 3;
+			}
+			else
+			{
+				return false;
+			}
+			if(i + following >= end)
+			{
+				return false;
+			}
+			
+			//the second byte's range is narrower after these lead bytes
+			int second = bytes[i + 1] & 0xFF;
+			if((first == 0xE0 && second < 0xA0) || (first == 0xED && second > 0x9F)
+					|| (first == 0xF0 && second < 0x90) || (first == 0xF4 && second > 0x8F))
+			{
+				return false;
+			}
+			for(int j = 1; j <= following; j++)
+			{
+				if((bytes[i + j] & 0xC0) != 0x80)
+				{
+					return false;
+				}
+			}
+			i += following + 1;
+		}
+		return true;
+	}
+	
+	//true for CLOSE, PING and PONG, which may arrive between the fragments of a message
+	public static boolean isControl(byte opcode)
+	{
+		return (opcode & 0x8) != 0;
+	}
+
+}
@@ -0,0 +1,157 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * WEBSOCKETHANDSHAKE CLASS:
+ * 
+ * The HTTP upgrade a browser starts a WebSocket connection with (RFC 6455
+ * section 4), read from the same buffer as the frames that follow it
+ * 
+ * A request is accepted when it is a GET with "Upgrade: websocket",
+ * "Connection: Upgrade", a Sec-WebSocket-Key and Sec-WebSocket-Version 13,
+ * the answer is "101 Switching Protocols" with the key's
+ * Sec-WebSocket-Accept, anything else is answered with a 400 (or a 426
+ * naming version 13) and the connection is closed
+ * 
+ * Neither subprotocols nor extensions (permessage-deflate) are agreed
+ * on, so frames are plain RFC 6455 frames, see WebSocketFrame, and any
+ * path or Origin is accepted
+ */
+
+public class WebSocketHandshake {
+	//the GUID RFC 6455 appends to the key before hashing it
+	private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	public static final int MAX_REQUEST_LENGTH = 8 * 1024;
+	private static final byte[] END = {'\r', '\n', '\r', '\n'};
+	
+	private boolean accepted = false;
+	private byte[] response;
+	
+	
+	/*
+	 * read method:
+	 * 
+	 * looks for a whole request at the buffer's position, returns false
+	 * if it has not all arrived yet, otherwise consumes it, works out
+	 * the response (see isAccepted() and getResponse()) and returns true
+	 */
+	public boolean read(ByteBuffer buffer) throws IOException
+	{
+		int end = find(buffer);
+		if(end < 0)
+		{
+			if(buffer.remaining() >= MAX_REQUEST_LENGTH)
+			{
+				throw new ProtocolException("WebSocket upgrade request longer than " + MAX_REQUEST_LENGTH + " bytes");
+			}
+			return false;
+		}
+		
+		byte[] request = new byte[end - buffer.position()];
+		buffer.get(request);
+		buffer.position(buffer.position() + END.length);
+		answer(new String(request, StandardCharsets.ISO_8859_1));
+		return true;
+	}
+	
+	//index of the blank line ending the request, -1 if it has not arrived
+	private static int find(ByteBuffer buffer)
+	{
+		for(int i = buffer.position(); i + END.length <= buffer.limit(); i++)
+		{
+			int matched = 0;
+			while(matched < END.length && buffer.get(i + matched) == END[matched])
+			{
+				matched++;
+			}
+			if(matched == END.length)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	private void answer(String request)
+	{
+		String[] lines = request.split("\r\n");
+		Map<String, String> headers = new HashMap<String, String>();
+		for(int i = 1; i < lines.length; i++)
+		{
+			int colon = lines[i].indexOf(':');
+			if(colon > 0)
+			{
+				headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+			}
+		}
+		
+		String key = headers.get("sec-websocket-key");
+		if(!lines[0].startsWith("GET ") || !contains(headers.get("upgrade"), "websocket")
+				|| !contains(headers.get("connection"), "upgrade") || key == null || key.isEmpty())
+		{
+			response = ("HTTP/1.1 400 Bad Request\r\nConnection: close\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			return;
+		}
+		if(!"13".equals(headers.get("sec-websocket-version")))
+		{
+			response = ("HTTP/1.1 426 Upgrade Required\r\nSec-WebSocket-Version: 13\r\nConnection: close\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			return;
+		}
+		
+		accepted = true;
+		response = ("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: " + accept(key) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	}
+	
+	//true if the comma separated header value lists the passed token, in any case
+	private static boolean contains(String value, String token)
+	{
+		if(value == null)
+		{
+			return false;
+		}
+		for(String part : value.split(","))
+		{
+			if(part.trim().equalsIgnoreCase(token))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	//Sec-WebSocket-Accept for the passed Sec-WebSocket-Key
+	public static String accept(String key)
+	{
+		try
+		{
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return Base64.getEncoder().encodeToString(sha1.digest((key + GUID).getBytes(StandardCharsets.ISO_8859_1)));
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			//every JDK has SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	//GETTERS AND SETTERS
+	public boolean isAccepted() {
+		return accepted;
+	}
+	
+	//the HTTP response to send back, whether or not the request was accepted
+	public byte[] getResponse() {
+		return response;
+	}
+
+}
@@ -0,0 +1,50 @@
+package server;
+
+import java.io.IOException;
+import java.util.List;
+
+import protocol.Frame;
+
+/*
+ * BACKPLANE INTERFACE:
+ * 
+ * Transport that connects the Server nodes of a Cluster, the Cluster
+ * decides what is sent (room broadcasts, direct messages, members
+ * entering and leaving Rooms, see Cluster), a Backplane only carries
+ * those events, encoded as protocol Frames, between the nodes
+ * 
+ * Picked with -backplane, TcpMeshBackplane is the only one so far
+ * 
+ * Events from one link arrive in the order they were published, each
+ * link a Backplane opens is told apart by its own link name, so a
+ * node that reconnects starts over with a fresh snapshot()
+ */
+
+public interface Backplane {
+
+	//starts linking up with the other nodes and handing their events to the passed Listener
+	void start(Listener listener) throws IOException;
+
+	//sends the passed event to every other node, never blocks the caller
+	void publish(byte[] event);
+
+	void close();
+
+	//one line summary for the stats reporter
+	String describe();
+
+
+	//what the Cluster does with the events of the other nodes
+	interface Listener {
+
+		//events sent first on every new link, this node's current state
+		List<byte[]> snapshot();
+
+		//an event another node published, link names the connection it came on
+		void onEvent(String link, Frame event);
+
+		//the named link is gone, everything learned over it no longer holds
+		void onLinkDown(String link);
+	}
+
+}
@@ -0,0 +1,53 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/*
+ * BUFFERPOOL CLASS:
+ * 
+ * Read buffers of one size handed out and taken back by the connections
+ * of one EventLoop, so a connection only holds a buffer while it has
+ * part of a message to keep, and thousands of idle connections hold none
+ * 
+ * Buffers are heap buffers, whose array a decoder can work on in place,
+ * at most maxPooled are kept, any more given back are left to the GC
+ * 
+ * Only used from its EventLoop's thread, so nothing is synchronized
+ */
+
+public class BufferPool {
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	
+	
+	public BufferPool(int bufferSize, int maxPooled)
+	{
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+	
+	//an empty buffer, a pooled one if there is one
+	public ByteBuffer acquire()
+	{
+		ByteBuffer buffer = free.poll();
+		return buffer != null ? buffer : ByteBuffer.allocate(bufferSize);
+	}
+	
+	//takes a buffer back, it must not be used after this
+	public void release(ByteBuffer buffer)
+	{
+		if(free.size() < maxPooled)
+		{
+			buffer.clear();
+			free.push(buffer);
+		}
+	}
+	
+	//GETTERS AND SETTERS
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+}
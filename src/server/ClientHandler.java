@@ -1,11 +1,19 @@
 package server;
 
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import protocol.Frame;
+import protocol.LineDecoder;
+import protocol.ProtocolException;
+import protocol.TextMessage;
 
 /*
  * CLIENTHANDLER CLASS:
@@ -13,137 +21,919 @@ import java.net.Socket;
  * When Server accepts new Client a ClientHandler is created to
  * handle messages sent and recieved by the new client on a new thread
  * 
+ * In nio mode the same command handling is driven by an EventLoop
+ * through NioClientHandler instead of a dedicated thread
+ * 
  * The ClientHandler listens for messages sent through the Server and
  * performs actions depending on command messages sent by Clients
  * 
  * if no command is detected, the normal message, sent by this ClientHandler's
  * Client, gets echoed to all other Clients
+ * 
+ * every joined Client is in one Room, the lobby until it sends "/join room",
+ * and its messages are only echoed to that Room's members
+ * 
+ * Clients speak either the newline delimited text protocol or the binary
+ * protocol of protocol.Frame, both end up in the same join, chat,
+ * directMessage and leave actions, handled by handleLine() and
+ * handleFrame() respectively
+ * 
+ * messages sent to this ClientHandler's Client are put in its OutboundQueue
+ * as EncodedMessages and written by a separate writer thread, so a Client
+ * that reads slowly never holds up the thread that is broadcasting to it
+ * 
+ * every message handled is recorded as a ReceiveEvent and every socket
+ * write as a WriteEvent for JDK Flight Recorder
+ * 
+ * a Client that sends nothing for -heartbeatSeconds is pinged, and
+ * dropped if it still sends nothing for as long again, its reading
+ * thread (or EventLoop) then sees the socket close and leaves as on a
+ * logout, see checkHeartbeat()
+ * 
+ * with -clientRate or -roomRate a joined Client's messages go through
+ * its own TokenBucket, and its broadcasts through its Room's too,
+ * before anything is sent on, messages over a limit are dropped, held
+ * back or get the Client disconnected, see admit()
  */
 
-public class ClientHandler extends Thread {
-	private String message;
+public class ClientHandler implements Runnable {
+	//sender name used for direct messages that come from the Server itself
+	public static final String SERVER_NAME = "Server";
+	//a write batch is sent once it holds this many bytes
+	private static final int BATCH_BYTES = 64 * 1024;
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+	//how long a refused Client's writer thread gets to write the refusal before the socket is closed
+	private static final long REFUSAL_LINGER_MILLIS = 1000;
+	//queued behind a refusal, the writer thread stops once it gets to it
+	private static final EncodedMessage LAST = EncodedMessage.chat("");
+	
 	private String username;
 	private Socket socket;
-	private Server server;
-	private PrintWriter writer;
+	protected Server server;
+	protected OutboundQueue<EncodedMessage> outbound;
+	private OutputStream output;
+	private Thread writerThread;
+	private volatile boolean disconnected = false;
+	//set by join() when the username was refused, only used by the reading thread
+	private boolean refused = false;
+	//true for binary protocol Clients, decided by the first byte they send
+	protected volatile boolean binary = false;
+	//EncodedMessage encoding this Client is sent, its HELLO flags once it is binary
+	protected volatile int encoding = EncodedMessage.TEXT;
+	private boolean helloReceived = false;
+	private final AtomicBoolean left = new AtomicBoolean();
+	//Room this Client is in once it has joined, changed under roomLock
+	private volatile Room room;
+	private final Object roomLock = new Object();
+	//System.nanoTime() of the last message from the Client, and the heartbeat check waiting for it to go quiet
+	private volatile long lastReceived = System.nanoTime();
+	//System.nanoTime() of the unanswered ping, 0 if there is none, only touched by the TimingWheel's thread
+	private long pingSent = 0;
+	private volatile TimingWheel.Timeout heartbeat;
+	//null unless -clientRate limits Clients, and whether the Client was told its last message was dropped
+	private final TokenBucket limit;
+	private boolean throttled = false;
 
 
 	public ClientHandler(Socket socket, Server server)
 	{
 		this.socket = socket;
 		this.server = server;
+		this.outbound = new OutboundQueue<EncodedMessage>(server.getConfig().getOutboundQueueCapacity(), server.getConfig().getOverflowPolicy());
+		int rate = server.getConfig().getClientRate();
+		this.limit = rate > 0 ? new TokenBucket(rate, server.getConfig().getClientBurst()) : null;
 	}
 	
 	public void run()
 	{
+		//before the first read, which blocks forever on a peer that never sends anything
+		startHeartbeat();
 		try
 		{
 
-			InputStream input = socket.getInputStream();
-			BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+			BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+			output = socket.getOutputStream();
 			
-			OutputStream output = socket.getOutputStream();
-			writer = new PrintWriter(output, true);
-				
-			while(true)
-			{			
-				//listening
-				message = reader.readLine();
-				
-				String[] splitMessage = message.split(":", 2);
-				
-				//SCANNING NEW MESSAGES
-				
-				
-				/*
-				 * Client logout check:
-				 * 
-				 * when a Client sends a "logout" message to the server, or hits their logout 
-				 * button, the Server broadcasts a Client logout command message, "~username",
-				 * and a regular message
-				 * 
-				 * this alerts the other Clients of the logout and to remove
-				 * the logged out Client from their members list
-				 */
-				if(message.equals("logout"))
+			//the first byte tells a binary Client's HELLO from a text line
+			input.mark(1);
+			binary = input.read() == Frame.HELLO;
+			encoding = binary ? EncodedMessage.BINARY : EncodedMessage.TEXT;
+			input.reset();
+			
+			//writer thread is the same kind of thread as this one (platform or virtual)
+			writerThread = server.getHandlerThreads().newThread(this::writeLoop);
+			writerThread.start();
+			
+			if(binary)
+			{
+				DataInputStream frames = new DataInputStream(input);
+				while(true)
 				{
-					server.broadcastMessage("~" + this.username, this);
-					server.broadcastMessage("                                           ---" + this.username + " has left the chatroom---", this);
+					//listening
+					Frame frame = Frame.read(frames);
 					
-					server.getUsernames().remove(this.username);
-					break;
+					if(frame == null)
+					{
+						break;
+					}
+					server.getMetrics().recordBytesIn(Frame.HEADER_LENGTH + frame.getPayload().length);
+					if(!handleFrame(frame))
+					{
+						break;
+					}
 				}
-				/*
-				 * direct message check:
-				 * 
-				 * when a Client sends a direct message it is formated to 
-				 * "sender&recipient&message" , when this command message 
-				 * is recieved it is broken at '&' into an array of strings
-				 * 
-				 * using this array, the recipient Client is found and the 
-				 * original direct message command message is sent
-				 */
-				else if(message.contains("&"))
-				{
-					String[] splitDirectMessage = message.split("&", 3);
+			}
+			else
+			{
+				//lines are framed and classified in place, see LineDecoder and TextMessage
+				ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+				LineDecoder decoder = new LineDecoder();
+				TextMessage message = new TextMessage();
+				
+				reading:
+				while(true)
+				{			
+					//listening
+					int read = input.read(buffer.array());
+					if(read < 0)
+					{
+						break;
+					}
+					server.getMetrics().recordBytesIn(read);
+					buffer.position(0).limit(read);
 					
-					for(ClientHandler x : server.getClients())
+					while(decoder.next(buffer))
 					{
-						if(x.getUsername().contentEquals(splitDirectMessage[1]))
+						if(!handleLine(message.parse(decoder.getLine(), decoder.getLength())))
 						{
-							x.sendMessage(message);
+							break reading;
 						}
 					}
 				}
-				/*
-				 * new Client check:
-				 * 
-				 * detects new Client by checking if the name attached to 
-				 * message is contained in the Server's list of usernames
-				 * 
-				 * broadcasts new Client command message so that 
-				 * all clients can add the new Client to their
-				 * members list
-				 */
-				else if(!server.getUsernames().contains(splitMessage[0]))
+			}
+		}
+		catch (Exception e)
+		{
+			readFailed(e);
+			//reading fails once disconnect() has closed the socket
+			if(!disconnected)
+			{
+				e.printStackTrace();
+			}
+		}
+		
+		//closing socket, a refused Client first gets the refusal
+		leave();
+		if(refused && writerThread != null && !disconnected)
+		{
+			lingerForWriter();
+		}
+		disconnect();
+		if(writerThread != null)
+		{
+			writerThread.interrupt();
+		}
+		System.out.println("User Disconnected (" + outbound.describe() + ")");
+	}
+	
+	/*
+	 * writeLoop method:
+	 * 
+	 * runs on this ClientHandler's writer thread, writing the already
+	 * encoded bytes of queued messages to the Client until the socket
+	 * is closed
+	 * 
+	 * messages are coalesced, everything already queued (and, with
+	 * -flushMicros, anything arriving within that window) is copied into
+	 * one batch and written with a single call, so a burst of messages
+	 * costs one syscall and usually one TCP segment instead of one each
+	 */
+	private void writeLoop()
+	{
+		ByteArrayOutputStream batch = new ByteArrayOutputStream(BATCH_BYTES);
+		long window = TimeUnit.MICROSECONDS.toNanos(server.getConfig().getFlushMicros());
+		
+		try
+		{
+			while(!disconnected)
+			{
+				batch.reset();
+				EncodedMessage first = outbound.take();
+				if(first == LAST)
+				{
+					return;
+				}
+				first.writeTo(batch, encoding);
+				int messages = 1;
+				boolean last = false;
+				long deadline = System.nanoTime() + window;
+				
+				while(batch.size() < BATCH_BYTES)
 				{
-					this.username = splitMessage[0];
-					server.getUsernames().add(splitMessage[0]);
-					
-					for(String x : server.getUsernames())
+					EncodedMessage next = outbound.poll();
+					if(next == null && window > 0)
 					{
-						this.sendMessage("@" + x);
+						long remaining = deadline - System.nanoTime();
+						if(remaining > 0)
+						{
+							next = outbound.poll(remaining, TimeUnit.NANOSECONDS);
+						}
 					}
-					
-					server.broadcastMessage("                                           ---" + this.username + " has entered the chatroom---", this);					
-					server.broadcastMessage("@" + splitMessage[0], this);
+					if(next == null)
+					{
+						break;
+					}
+					if(next == LAST)
+					{
+						last = true;
+						break;
+					}
+					next.writeTo(batch, encoding);
+					messages++;
+				}
+				
+				WriteEvent event = new WriteEvent();
+				event.begin();
+				batch.writeTo(output);
+				event.finish(username, messages, batch.size());
+				server.getMetrics().recordFlush(messages, batch.size());
+				if(last)
+				{
+					return;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			//interrupted by run() once the Client is gone
+		}
+		catch (IOException e)
+		{
+			disconnect();
+		}
+	}
+	
+	//lets the writer thread write what is queued, up to LAST, for at most REFUSAL_LINGER_MILLIS
+	private void lingerForWriter()
+	{
+		try
+		{
+			outbound.offer(LAST);
+			writerThread.join(REFUSAL_LINGER_MILLIS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/*
+	 * handleMessage method:
+	 * 
+	 * performs the command found in a single text protocol message,
+	 * see handleLine(), for callers that already hold the line as a String
+	 */
+	public boolean handleMessage(String message)
+	{
+		byte[] line = message.getBytes(LineDecoder.CHARSET);
+		return handleLine(new TextMessage().parse(line, line.length));
+	}
+	
+	/*
+	 * handleLine method:
+	 * 
+	 * performs the command found in a single text protocol message
+	 * recieved from this ClientHandler's Client, shared by every server
+	 * mode so that all connections follow the same rules
+	 * 
+	 * the TextMessage has already found the separators in one pass over
+	 * the line's bytes, so nothing is split and a regular message is
+	 * passed on as the bytes it arrived as
+	 * 
+	 * returns false once the Client has logged out
+	 */
+	public boolean handleLine(TextMessage message)
+	{
+		received();
+		server.getMetrics().recordMessageIn();
+		ReceiveEvent event = new ReceiveEvent();
+		event.begin();
+		boolean open = performLine(message);
+		event.finish(username, false, message.isDirect() ? Frame.DIRECT : Frame.CHAT, message.getLength());
+		return open;
+	}
+	
+	private boolean performLine(TextMessage message)
+	{
+		//SCANNING NEW MESSAGES
+		
+		
+		/*
+		 * Client logout check:
+		 * 
+		 * when a Client sends a "logout" message to the server, or hits their logout 
+		 * button, the Server broadcasts a Client logout command message, "~username",
+		 * and a regular message
+		 * 
+		 * this alerts the other Clients of the logout and to remove
+		 * the logged out Client from their members list
+		 */
+		if(message.isLogout())
+		{
+			leave();
+			return false;
+		}
+		//the answer to a ping only has to arrive, see checkHeartbeat()
+		else if(message.isPong())
+		{
+			return true;
+		}
+		/*
+		 * flood check:
+		 * 
+		 * a joined Client's direct messages, commands and broadcasts are
+		 * counted against its rate limit, broadcasts against its Room's
+		 * too, see admit()
+		 */
+		else if(this.username != null && !admit(!message.isDirect() && !message.isCommand()))
+		{
+			return server.getConfig().getThrottlePolicy() != ThrottlePolicy.DISCONNECT;
+		}
+		/*
+		 * direct message check:
+		 * 
+		 * when a Client sends a direct message it is formated to 
+		 * "sender&recipient&message" , the recipient and message are
+		 * passed on to directMessage()
+		 */
+		else if(this.username != null && message.isDirect())
+		{
+			directMessage(message.directRecipient(), message.directText());
+		}
+		/*
+		 * room command check:
+		 * 
+		 * "/join room" and "/leave" typed by a joined Client move it to
+		 * another Room, see roomCommand()
+		 */
+		else if(this.username != null && message.isCommand())
+		{
+			roomCommand(message.body());
+		}
+		/*
+		 * new Client check and default action:
+		 * 
+		 * the first message of a new Client joins it under the name attached
+		 * to the message, see join(), a refused Client is disconnected, any
+		 * other message is a regular message and is echoed back to all
+		 * Clients
+		 */
+		else if(this.username == null)
+		{
+			return join(message.prefix());
+		}
+		else
+		{
+			server.broadcastMessage(EncodedMessage.chatLine(message.copyWithNewline()), this);
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * handleFrame method:
+	 * 
+	 * binary protocol counterpart of handleLine(), the opcode says
+	 * what the Frame is so nothing has to be searched for, the first
+	 * Frame must be the Client's HELLO, a DEFLATED Frame is unwrapped
+	 * first if FLAG_DEFLATE was agreed on
+	 * 
+	 * returns false once the Client has logged out or broke the protocol
+	 */
+	public boolean handleFrame(Frame frame) throws IOException
+	{
+		received();
+		server.getMetrics().recordMessageIn();
+		ReceiveEvent event = new ReceiveEvent();
+		event.begin();
+		boolean open = performFrame(frame);
+		event.finish(username, true, frame.getOpcode(), Frame.HEADER_LENGTH + frame.getPayload().length);
+		return open;
+	}
+	
+	private boolean performFrame(Frame frame) throws IOException
+	{
+		if(!helloReceived)
+		{
+			if(!frame.isHello())
+			{
+				return false;
+			}
+			helloReceived = true;
+			//the flags this Server knows, of those the Client offered
+			encoding = frame.helloFlags() & (Frame.FLAG_ROSTER | (server.getConfig().isDeflate() ? Frame.FLAG_DEFLATE : 0));
+			sendMessage(EncodedMessage.hello(Math.min(frame.helloVersion(), Frame.VERSION), encoding));
+			return true;
+		}
+		
+		if(frame.getOpcode() == Frame.DEFLATED && (encoding & Frame.FLAG_DEFLATE) != 0)
+		{
+			frame = frame.inflated();
+		}
+		
+		switch(frame.getOpcode())
+		{
+		case Frame.JOIN:
+			if(this.username != null)
+			{
+				return true;
+			}
+			return join(frame.field(0));
+		case Frame.CHAT:
+			if(this.username != null)
+			{
+				String text = oneLine(frame.field(0));
+				if(!admit(!text.startsWith("/")))
+				{
+					return server.getConfig().getThrottlePolicy() != ThrottlePolicy.DISCONNECT;
+				}
+				if(text.startsWith("/"))
+				{
+					roomCommand(text);
 				}
-				/*
-				 * default action:
-				 * 
-				 * echo regular message back to all Clients
-				 */
 				else
 				{
-					server.broadcastMessage(message, this);
+					server.broadcastMessage(this.username + ": " + text, this);
 				}
 			}
+			return true;
+		case Frame.DIRECT:
+			if(this.username != null)
+			{
+				if(!admit(false))
+				{
+					return server.getConfig().getThrottlePolicy() != ThrottlePolicy.DISCONNECT;
+				}
+				directMessage(oneLine(frame.field(1)), oneLine(frame.field(2)));
+			}
+			return true;
+		case Frame.LOGOUT:
+			leave();
+			return false;
+		case Frame.PONG:
+			return true;
+		default:
+			throw new ProtocolException("Unexpected opcode " + frame.getOpcode());
+		}
+	}
+	
+	/*
+	 * admit method:
+	 * 
+	 * takes a token for one message from this Client's TokenBucket and,
+	 * for a broadcast, from its Room's, the Client's token is given back if
+	 * the Room's bucket is empty, returns false if the message must not be
+	 * sent on, what happens then is up to the ThrottlePolicy:
+	 * -DROP: the Client gets a direct message from the Server, once until
+	 *  one of its messages gets through again
+	 * -DELAY: the tokens are taken anyway and this thread sleeps until
+	 *  they are due, nothing more is read from the Client meanwhile
+	 * -DISCONNECT: the caller closes the connection
+	 */
+	protected boolean admit(boolean broadcast)
+	{
+		Room current = room;
+		TokenBucket roomLimit = broadcast && current != null ? current.getLimit() : null;
+		if(limit == null && roomLimit == null)
+		{
+			return true;
+		}
+		
+		ThrottlePolicy policy = server.getConfig().getThrottlePolicy();
+		if(policy == ThrottlePolicy.DELAY)
+		{
+			long wait = Math.max(limit != null ? limit.reserve() : 0, roomLimit != null ? roomLimit.reserve() : 0);
+			if(wait > 0)
+			{
+				server.getMetrics().recordThrottled(wait);
+				try
+				{
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			return true;
+		}
+		
+		if(limit == null || limit.tryAcquire())
+		{
+			if(roomLimit == null || roomLimit.tryAcquire())
+			{
+				throttled = false;
+				return true;
+			}
+			//the Room refused it, the message does not count against this Client
+			if(limit != null)
+			{
+				limit.release();
+			}
+		}
+		
+		server.getMetrics().recordThrottled(0);
+		if(policy == ThrottlePolicy.DISCONNECT)
+		{
+			System.out.println("Dropping " + this.username + ", over its message rate");
+			server.getMetrics().recordThrottleDisconnect();
+		}
+		else if(!throttled)
+		{
+			throttled = true;
+			sendMessage(EncodedMessage.direct(SERVER_NAME, this.username, "You are sending too fast, your messages are dropped for now"));
+		}
+		return false;
+	}
+	
+	/*
+	 * join method:
+	 * 
+	 * claims the username in the Server's ClientRegistry and enters
+	 * the lobby, see enterRoom()
+	 * 
+	 * returns false if the username is refused (see refusal()) or already
+	 * taken, here or on another node of the Cluster, the Client is told
+	 * why by a direct message from SERVER_NAME in either protocol and is
+	 * to be disconnected
+	 */
+	protected boolean join(String name)
+	{
+		String refusal = refusal(name);
+		if(refusal == null && (name.equals(SERVER_NAME) || server.isRemoteUser(name) || !server.getRegistry().join(name, this)))
+		{
+			refusal = "The username " + name + " is already taken";
+		}
+		if(refusal != null)
+		{
+			//a refused name may not even fit in the text protocol's "sender&recipient&message"
+			sendMessage(EncodedMessage.direct(SERVER_NAME, "", refusal));
+			refused = true;
+			return false;
+		}
+		this.username = name;
+		
+		synchronized(roomLock)
+		{
+			if(!left.get())
+			{
+				enterRoom(RoomRegistry.LOBBY);
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * refusal method:
+	 * 
+	 * why the passed username can never be joined, null if it can, a
+	 * name must not be empty, must fit in a Frame field and must not
+	 * hold the text protocol's '&' and ':' separators or line breaks
+	 */
+	private static String refusal(String name)
+	{
+		if(name.isEmpty())
+		{
+			return "Usernames can not be empty";
+		}
+		if(name.indexOf('&') >= 0 || name.indexOf(':') >= 0 || name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0)
+		{
+			return "Usernames can not contain '&', ':' or line breaks";
+		}
+		if(name.length() > Frame.MAX_FIELD_LENGTH / 3 && name.getBytes(Frame.CHARSET).length > Frame.MAX_FIELD_LENGTH)
+		{
+			return "Usernames can not be longer than " + Frame.MAX_FIELD_LENGTH + " bytes";
+		}
+		return null;
+	}
+	
+	/*
+	 * oneLine method:
+	 * 
+	 * text of a binary Client's Frame field with any '\r' or '\n' turned
+	 * into a space, text Clients and browsers get every message as a line
+	 * and a line break in it would start a line of its own, a fake
+	 * "@username" or "~" for instance
+	 */
+	static String oneLine(String text)
+	{
+		if(text == null || (text.indexOf('\n') < 0 && text.indexOf('\r') < 0))
+		{
+			return text;
+		}
+		return text.replace('\r', ' ').replace('\n', ' ');
+	}
+	
+	/*
+	 * roomCommand method:
+	 * 
+	 * "/join room" moves this Client to the named Room, creating it if
+	 * nobody is in it yet, "/leave" takes it back to the lobby, anything
+	 * else gets a direct message from the Server listing the commands
+	 */
+	protected void roomCommand(String command)
+	{
+		String[] parts = command.trim().split("\\s+", 2);
+		if(parts[0].equals("/join") && parts.length == 2)
+		{
+			changeRoom(parts[1]);
+		}
+		else if(parts[0].equals("/leave"))
+		{
+			changeRoom(RoomRegistry.LOBBY);
+		}
+		else
+		{
+			sendMessage(EncodedMessage.direct(SERVER_NAME, this.username, "Unknown command " + parts[0] + ", use /join room or /leave"));
+		}
+	}
+	
+	/*
+	 * changeRoom method:
+	 * 
+	 * leaves the current Room, clearing its members from this Client's
+	 * members list with Client logout command messages (unless it takes
+	 * ROSTER snapshots, which replace the whole list), and enters the
+	 * named one
+	 */
+	protected void changeRoom(String name)
+	{
+		if(!RoomRegistry.isValidName(name))
+		{
+			sendMessage(EncodedMessage.direct(SERVER_NAME, this.username, "Room names are 1 to " + RoomRegistry.MAX_NAME_LENGTH + " characters without spaces"));
+			return;
+		}
+		
+		synchronized(roomLock)
+		{
+			Room previous = this.room;
+			if(left.get() || previous == null || previous.getName().equals(name))
+			{
+				return;
+			}
 			
-			
-			//closing socket
-			socket.close();
-			System.out.println("User Disconnected");
+			exitRoom();
+			if(!takesRoster())
+			{
+				for(ClientHandler x : previous.members())
+				{
+					this.sendMessage(EncodedMessage.userLeft(x.getUsername()));
+				}
+				for(String x : previous.remoteMembers())
+				{
+					this.sendMessage(EncodedMessage.userLeft(x));
+				}
+				this.sendMessage(EncodedMessage.userLeft(this.username));
+			}
+			enterRoom(name);
+			this.sendMessage(EncodedMessage.notice("                                           ---you are now in " + title(room) + "---"));
 		}
-		catch (Exception e)
-		{		
-			e.printStackTrace();
+	}
+	
+	/*
+	 * enterRoom method:
+	 * 
+	 * adds this Client to the named Room, sends it every member's name and
+	 * the Room's chat history (see Server.history()) and broadcasts the new
+	 * Client command message so that the members can add the new Client
+	 * to their members list, called under roomLock
+	 * 
+	 * the members are sent as one roster message, a single ROSTER Frame
+	 * for Clients with FLAG_ROSTER, and the broadcast carries the members
+	 * list version of this change, see RoomRegistry
+	 */
+	private void enterRoom(String name)
+	{
+		long version = server.getRooms().enter(name, this);
+		this.room = server.getRooms().get(name);
+		
+		this.sendMessage(server.getRooms().roster(room));
+		for(EncodedMessage x : server.history(room))
+		{
+			this.sendMessage(x);
+		}
+		
+		server.broadcastMessage(room, EncodedMessage.notice("                                           ---" + this.username + " has entered " + title(room) + "---"), this);
+		server.broadcastMessage(room, EncodedMessage.userJoined(this.username, version), this);
+	}
+	
+	//takes this Client out of its Room and tells the members, called under roomLock
+	private void exitRoom()
+	{
+		Room previous = this.room;
+		this.room = null;
+		long version = server.getRooms().exit(previous, this);
+		
+		server.broadcastMessage(previous, EncodedMessage.userLeft(this.username, version), this);
+		server.broadcastMessage(previous, EncodedMessage.notice("                                           ---" + this.username + " has left " + title(previous) + "---"), this);
+	}
+	
+	//true if this Client agreed on FLAG_ROSTER, so it is sent ROSTER snapshots and ROSTER_DELTAs
+	private boolean takesRoster()
+	{
+		return encoding != EncodedMessage.TEXT && (encoding & Frame.FLAG_ROSTER) != 0;
+	}
+	
+	//how the Room is named in entered and left messages
+	private static String title(Room room)
+	{
+		return room.getName().equals(RoomRegistry.LOBBY) ? "the chatroom" : "room " + room.getName();
+	}
+	
+	/*
+	 * directMessage method:
+	 * 
+	 * the recipient Client is looked up by name in the Server's
+	 * ClientRegistry and sent the direct message, if nobody by that
+	 * name is online (or there is no message) the sender gets a direct
+	 * message from the Server saying so
+	 * 
+	 * delivered direct messages are kept in the MessageLog too, direct
+	 * messages for a Client of another node are passed on to the Cluster
+	 * and logged by the node that delivers them
+	 */
+	protected void directMessage(String recipientName, String message)
+	{
+		long start = System.nanoTime();
+		ClientHandler recipient = message != null ? server.getRegistry().get(recipientName) : null;
+		if(recipient != null)
+		{
+			EncodedMessage direct = EncodedMessage.direct(this.username, recipientName, message);
+			server.logMessage("", direct);
+			recipient.sendMessage(direct);
+		}
+		else if(message != null && server.isRemoteUser(recipientName))
+		{
+			server.getCluster().direct(this.username, recipientName, message);
+		}
+		else
+		{
+			this.sendMessage(EncodedMessage.direct(SERVER_NAME, this.username, recipientName + " is not online, your message was not delivered"));
 		}
+		server.getMetrics().recordDirect(System.nanoTime() - start);
 	}
 	
-	//passed message is sent with this ClientHandler's output writer
+	/*
+	 * leave method:
+	 * 
+	 * removes this ClientHandler from the Server's ClientRegistry and, if the
+	 * Client had joined, broadcasts the Client logout command message "~username"
+	 * and a regular message to its Room
+	 * 
+	 * called on logout and again whenever the connection closes, so Clients
+	 * that vanish without logging out are cleaned up too, only the first
+	 * call has any effect
+	 */
+	public void leave()
+	{
+		if(!left.compareAndSet(false, true))
+		{
+			return;
+		}
+		
+		server.getRegistry().remove(this);
+		TimingWheel.Timeout pending = heartbeat;
+		if(pending != null)
+		{
+			pending.cancel();
+		}
+		
+		synchronized(roomLock)
+		{
+			if(this.room != null)
+			{
+				exitRoom();
+			}
+		}
+	}
+	
+	//records that the Client was heard from, anything it sends answers a heartbeat
+	protected void received()
+	{
+		lastReceived = System.nanoTime();
+	}
+	
+	//schedules the first heartbeat check, unless heartbeats are off
+	protected void startHeartbeat()
+	{
+		if(server.getHeartbeats() != null)
+		{
+			heartbeat = server.getHeartbeats().schedule(this::checkHeartbeat, server.getConfig().getHeartbeatSeconds(), TimeUnit.SECONDS);
+		}
+	}
+	
+	/*
+	 * checkHeartbeat method:
+	 * 
+	 * runs on the Server's TimingWheel, a Client heard from within the
+	 * last -heartbeatSeconds is checked again once that long has passed
+	 * since then, a quiet one is pinged and checked again after as long,
+	 * and one that sent nothing since its ping is dropped
+	 * 
+	 * every message only stores the time it arrived, so a busy Client
+	 * costs one check per -heartbeatSeconds, not one Timeout per message
+	 */
+	private void checkHeartbeat()
+	{
+		if(left.get())
+		{
+			return;
+		}
+		
+		long interval = TimeUnit.SECONDS.toNanos(server.getConfig().getHeartbeatSeconds());
+		long now = System.nanoTime();
+		long quiet = now - lastReceived;
+		if(pingSent != 0 && lastReceived - pingSent < 0)
+		{
+			System.out.println("Dropping " + (username != null ? username : "unjoined user") + ", no answer to heartbeat");
+			server.getMetrics().recordReaped();
+			disconnect();
+		}
+		else if(quiet < interval)
+		{
+			pingSent = 0;
+			heartbeat = server.getHeartbeats().schedule(this::checkHeartbeat, interval - quiet, TimeUnit.NANOSECONDS);
+		}
+		else
+		{
+			pingSent = now;
+			sendMessage(EncodedMessage.ping());
+			heartbeat = server.getHeartbeats().schedule(this::checkHeartbeat, interval, TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	//counts the passed reading failure as a parse error if the Client broke the protocol
+	protected void readFailed(Exception e)
+	{
+		if(e instanceof ProtocolException)
+		{
+			server.getMetrics().recordParseError();
+		}
+	}
+	
+	//passed chat line is encoded and queued for this ClientHandler's writer thread
 	public void sendMessage(String message)
 	{
-		writer.println(message);
+		sendMessage(EncodedMessage.chat(message));
+	}
+	
+	//passed message, already encoded by a broadcast, is queued as is
+	public void sendMessage(EncodedMessage message)
+	{
+		if(!queueMessage(message))
+		{
+			disconnect();
+		}
+	}
+	
+	/*
+	 * queueMessage method:
+	 * 
+	 * offers the message to the OutboundQueue, returns false when the
+	 * OverflowPolicy says this slow Client has to be disconnected
+	 */
+	protected boolean queueMessage(EncodedMessage message)
+	{
+		try
+		{
+			return outbound.offer(message);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return true;
+		}
+	}
+	
+	/*
+	 * disconnect method:
+	 * 
+	 * closes the socket, which also ends the blocked readLine() in run(),
+	 * safe to call more than once and from any thread
+	 */
+	public void disconnect()
+	{
+		disconnected = true;
+		outbound.clear();
+		
+		try
+		{
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
 	}
 	
 	//GETTERS AND SETTERS
@@ -155,4 +945,25 @@ public class ClientHandler extends Thread {
 		this.username = username;
 	}
 
+	//Room this Client is in, null before it joined and after it left
+	public Room getRoom() {
+		return room;
+	}
+
+	public void setRoom(Room room) {
+		this.room = room;
+	}
+
+	public OutboundQueue<EncodedMessage> getOutbound() {
+		return outbound;
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public int getEncoding() {
+		return encoding;
+	}
+
 }
@@ -0,0 +1,91 @@
+package server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * CLIENTREGISTRY CLASS:
+ * 
+ * Thread safe record of every ClientHandler connected to the Server,
+ * replacing the Server's old clients and usernames ArrayLists
+ * 
+ * connections holds every connected ClientHandler, named or not, and is
+ * what broadcasts iterate, byUsername maps each joined Client's name to
+ * its ClientHandler
+ * 
+ * Both are backed by ConcurrentHashMap, so join, leave and lookup are
+ * O(1) and can be called from any thread, and iterating clients() while
+ * others join or leave never throws ConcurrentModificationException, it
+ * simply may or may not see the Clients that changed meanwhile
+ */
+
+public class ClientRegistry {
+	private final Set<ClientHandler> connections = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<String, ClientHandler> byUsername = new ConcurrentHashMap<String, ClientHandler>();
+
+	
+	//adds a newly accepted connection, it has no username yet
+	public void add(ClientHandler handler)
+	{
+		connections.add(handler);
+	}
+	
+	/*
+	 * join method:
+	 * 
+	 * claims a username for the passed ClientHandler, returns false
+	 * if another ClientHandler already holds that name
+	 */
+	public boolean join(String username, ClientHandler handler)
+	{
+		return byUsername.putIfAbsent(username, handler) == null;
+	}
+	
+	/*
+	 * remove method:
+	 * 
+	 * forgets a disconnected ClientHandler and frees its username,
+	 * only if the name still belongs to that ClientHandler
+	 */
+	public void remove(ClientHandler handler)
+	{
+		connections.remove(handler);
+		
+		String username = handler.getUsername();
+		if(username != null)
+		{
+			byUsername.remove(username, handler);
+		}
+	}
+	
+	//ClientHandler holding the passed username, null if nobody does
+	public ClientHandler get(String username)
+	{
+		return byUsername.get(username);
+	}
+	
+	public boolean contains(String username)
+	{
+		return byUsername.containsKey(username);
+	}
+	
+	//live view of every connection, safe to iterate while Clients come and go
+	public Collection<ClientHandler> clients()
+	{
+		return Collections.unmodifiableSet(connections);
+	}
+	
+	//live view of every joined username
+	public Set<String> usernames()
+	{
+		return Collections.unmodifiableSet(byUsername.keySet());
+	}
+	
+	public int size()
+	{
+		return connections.size();
+	}
+	
+}
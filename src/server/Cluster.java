@@ -0,0 +1,237 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import protocol.Frame;
+
+/*
+ * CLUSTER CLASS:
+ * 
+ * Lets several Server nodes share Rooms and usernames, started with
+ * -clusterPort (and -peers naming the other nodes), the nodes are
+ * linked by a Backplane
+ * 
+ * Events, each a protocol Frame with these opcodes (decoded with
+ * Frame.field(index, fieldCount) since Frame does not know them):
+ * -CHAT [room, line]: a chat line broadcast in a Room
+ * -NOTICE [room, line]: a chat line the Server wrote itself, see
+ *  EncodedMessage.notice()
+ * -DIRECT [sender, recipient, message]: a direct message for a Client
+ *  of another node, only the node the recipient is on delivers it
+ * -ENTER [room, username]: a Client entered a Room
+ * -EXIT [room, username]: a Client left a Room
+ * 
+ * Each node delivers the events of the others to its own Clients, so
+ * a Client sees the same Rooms, members lists and messages whichever
+ * node it is connected to
+ * 
+ * The Clients of other nodes are kept in remoteUsers, with the link they
+ * were announced on and their Room, and as remote members of that Room,
+ * when a link goes down they leave their Rooms
+ * 
+ * Usernames are checked against remoteUsers before a join, two Clients
+ * joining different nodes under one name at the same moment can still
+ * both get it, the nodes do not vote
+ */
+
+public class Cluster implements Backplane.Listener {
+	public static final byte CHAT = 0x41;
+	public static final byte DIRECT = 0x42;
+	public static final byte ENTER = 0x43;
+	public static final byte EXIT = 0x44;
+	public static final byte NOTICE = 0x45;
+
+	private final Server server;
+	private final Backplane backplane;
+	private final Map<String, RemoteUser> remoteUsers = new ConcurrentHashMap<String, RemoteUser>();
+
+
+	public Cluster(Server server, Backplane backplane)
+	{
+		this.server = server;
+		this.backplane = backplane;
+	}
+
+	public void start() throws IOException
+	{
+		backplane.start(this);
+	}
+
+	/*
+	 * broadcast method:
+	 * 
+	 * passes a broadcast in the passed Room on to the other nodes, chat
+	 * lines as they are, members list changes as ENTER and EXIT events
+	 */
+	public void broadcast(Room room, EncodedMessage message)
+	{
+		switch(message.getType())
+		{
+		case Frame.CHAT:
+			backplane.publish(Frame.encode(message.isNotice() ? NOTICE : CHAT, room.getName(), message.fields()[0]));
+			break;
+		case Frame.USER_JOINED:
+			backplane.publish(Frame.encode(ENTER, room.getName(), message.fields()[0]));
+			break;
+		case Frame.USER_LEFT:
+			backplane.publish(Frame.encode(EXIT, room.getName(), message.fields()[0]));
+			break;
+		default:
+			break;
+		}
+	}
+
+	//passes a direct message on to the node the recipient is on
+	public void direct(String sender, String recipient, String message)
+	{
+		backplane.publish(Frame.encode(DIRECT, sender, recipient, message));
+	}
+
+	//true if the named Client is connected to another node
+	public boolean isRemoteUser(String username)
+	{
+		return remoteUsers.containsKey(username);
+	}
+
+	//ENTER events for every local Client, sent first on every new link
+	public List<byte[]> snapshot()
+	{
+		List<byte[]> snapshot = new ArrayList<byte[]>();
+		for(Room room : server.getRooms().rooms())
+		{
+			for(ClientHandler member : room.members())
+			{
+				snapshot.add(Frame.encode(ENTER, room.getName(), member.getUsername()));
+			}
+		}
+		return snapshot;
+	}
+
+	public void onEvent(String link, Frame event)
+	{
+		try
+		{
+			switch(event.getOpcode())
+			{
+			case CHAT:
+				Room room = server.getRooms().get(event.field(0, 2));
+				if(room != null)
+				{
+					server.deliver(room, EncodedMessage.chat(event.field(1, 2)), null);
+				}
+				break;
+			case NOTICE:
+				Room noticed = server.getRooms().get(event.field(0, 2));
+				if(noticed != null)
+				{
+					server.deliver(noticed, EncodedMessage.notice(event.field(1, 2)), null);
+				}
+				break;
+			case DIRECT:
+				ClientHandler recipient = server.getRegistry().get(event.field(1, 3));
+				if(recipient != null)
+				{
+					EncodedMessage direct = EncodedMessage.direct(event.field(0, 3), event.field(1, 3), event.field(2, 3));
+					server.logMessage("", direct);
+					recipient.sendMessage(direct);
+				}
+				break;
+			case ENTER:
+				entered(link, event.field(0, 2), event.field(1, 2));
+				break;
+			case EXIT:
+				String username = event.field(1, 2);
+				RemoteUser user = remoteUsers.get(username);
+				if(user != null && user.room.equals(event.field(0, 2)) && remoteUsers.remove(username, user))
+				{
+					exited(user, username);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	//every Client announced on the link leaves its Room
+	public void onLinkDown(String link)
+	{
+		for(Map.Entry<String, RemoteUser> entry : remoteUsers.entrySet())
+		{
+			if(entry.getValue().link.equals(link) && remoteUsers.remove(entry.getKey(), entry.getValue()))
+			{
+				exited(entry.getValue(), entry.getKey());
+			}
+		}
+	}
+
+	/*
+	 * entered method:
+	 * 
+	 * records a Client of another node in its new Room and adds it to the
+	 * members lists of the local Clients in that Room, an ENTER repeated
+	 * by a snapshot only moves the Client over to the newer link
+	 */
+	private void entered(String link, String roomName, String username)
+	{
+		RemoteUser previous = remoteUsers.put(username, new RemoteUser(link, roomName));
+		if(previous != null)
+		{
+			if(previous.room.equals(roomName))
+			{
+				return;
+			}
+			exited(previous, username);
+		}
+
+		long version = server.getRooms().enterRemote(roomName, username);
+		Room room = server.getRooms().get(roomName);
+		if(room != null)
+		{
+			server.deliver(room, EncodedMessage.userJoined(username, version), null);
+		}
+	}
+
+	private void exited(RemoteUser user, String username)
+	{
+		long version = server.getRooms().exitRemote(user.room, username);
+		Room room = server.getRooms().get(user.room);
+		//a dropped Room has no local members left to tell
+		if(room != null)
+		{
+			server.deliver(room, EncodedMessage.userLeft(username, version), null);
+		}
+	}
+
+	public void close()
+	{
+		backplane.close();
+	}
+
+	public String describe()
+	{
+		return backplane.describe() + ", " + remoteUsers.size() + " remote users";
+	}
+
+
+	//a Client of another node, the link it was announced on and its Room
+	private static final class RemoteUser {
+		private final String link;
+		private final String room;
+
+		private RemoteUser(String link, String room)
+		{
+			this.link = link;
+			this.room = room;
+		}
+	}
+
+}
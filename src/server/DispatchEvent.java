@@ -0,0 +1,54 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * DISPATCHEVENT CLASS:
+ * 
+ * JDK Flight Recorder event for one broadcast queued for the members of
+ * a Room on this node, see Server.deliver(), a long one with few
+ * recipients points at a blocked OutboundQueue rather than a big Room
+ */
+
+@Name("chatapp.Dispatch")
+@Label("Message Dispatch")
+@Category({"ChatApp", "Server"})
+@Description("A broadcast queued for every member of a Room")
+@StackTrace(false)
+public class DispatchEvent extends Event {
+	@Label("Room")
+	String room;
+	
+	@Label("Opcode")
+	int opcode;
+	
+	@Label("Size")
+	@Description("Size of the message's text, the UTF-8 bytes of its fields, whichever encodings it is sent in")
+	@DataAmount
+	int size;
+	
+	@Label("Recipients")
+	int recipients;
+	
+	
+	//ends the event and commits it with the passed fields, if the recording wants it
+	void finish(Room room, EncodedMessage message, int recipients)
+	{
+		end();
+		if(shouldCommit())
+		{
+			this.room = room.getName();
+			this.opcode = message.getType();
+			this.size = message.payloadLength();
+			this.recipients = recipients;
+			commit();
+		}
+	}
+
+}
@@ -0,0 +1,491 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import protocol.Frame;
+import protocol.LineDecoder;
+import protocol.WebSocketFrame;
+
+/*
+ * ENCODEDMESSAGE CLASS:
+ * 
+ * A message sent by the Server, kept as its type (a protocol Frame
+ * opcode) and fields, together with the bytes that go on the wire for
+ * each protocol once they have been built
+ * 
+ * Text protocol Clients get the classic command lines ("@name", "~name",
+ * "sender&recipient&message" or a plain line) followed by '\n', binary
+ * protocol Clients get a Frame, a '&' a binary Client put in a chat line
+ * or in front of a direct message's text is escaped in the text lines
+ * 
+ * broadcastMessage() hands the same EncodedMessage to every recipient
+ * and each protocol's bytes are built at most once, by whichever writer
+ * needs them first, so N recipients cost one encode per protocol
+ * instead of N, each writer only copies the finished bytes out
+ * 
+ * The bytes are kept in heap buffers in every mode, SocketChannel.write()
+ * copies them through its thread's cached temporary direct buffer, a
+ * copy of a chat line per recipient is far cheaper than allocating (and
+ * later freeing) a direct buffer per message and encoding
+ * 
+ * Binary protocol Clients may have agreed on HELLO flags that change the
+ * Frames some messages are sent as (see protocol.Frame), each message
+ * is encoded for the flags that matter to it at most once as well, see
+ * bytes(), the encoding a Client needs is TEXT or its HELLO flags
+ * 
+ * Clients with FLAG_DEFLATE get Frames of Frame.DEFLATE_BYTES or more
+ * wrapped in a DEFLATED Frame, which is also built at most once per
+ * message, so a large paste broadcast to a Room is deflated once, not
+ * once per member
+ * 
+ * WebSocket Clients get the text protocol lines in UTF-8, as one
+ * WebSocketFrame TEXT frame each, and the heartbeat as a WebSocket PING,
+ * which browsers answer by themselves, built at most once per message too
+ * 
+ * Chat lines replayed from the MessageLog keep the Frame they were logged
+ * as, which already is their binary protocol bytes, see logged()
+ */
+
+public class EncodedMessage {
+	//encodings, see bytes(), any other value is BINARY with those HELLO flags
+	public static final int WEBSOCKET = -2;
+	public static final int TEXT = -1;
+	public static final int BINARY = 0;
+	//stands in for '&' in chat lines sent to text Clients, see escaped()
+	private static final char FULLWIDTH_AMPERSAND = '\uFF06';
+	
+	private final byte type;
+	private final String[] fields;
+	//text protocol bytes handed over as is, in which case fields is null,
+	//both are null for a logged() chat line
+	private final byte[] textLine;
+	//Room members list version of USER_JOINED, USER_LEFT and ROSTER messages, 0 if unversioned
+	private long version = 0;
+	//chat line written by the Server itself, see notice()
+	private boolean notice = false;
+	//built lazily, two writers racing to build one just build equal copies
+	private volatile ByteBuffer text;
+	private volatile ByteBuffer webSocket;
+	private volatile ByteBuffer binary;
+	private volatile ByteBuffer flagged;
+	private volatile ByteBuffer deflated;
+	private volatile ByteBuffer deflatedFlagged;
+
+	
+	private EncodedMessage(byte type, String[] fields, byte[] textLine)
+	{
+		this.type = type;
+		this.fields = fields;
+		this.textLine = textLine;
+	}
+	
+	private EncodedMessage(byte type, String[] fields)
+	{
+		this(type, fields, null);
+	}
+	
+	//regular chat line, shown as is in the chat
+	public static EncodedMessage chat(String line)
+	{
+		return new EncodedMessage(Frame.CHAT, new String[] {line});
+	}
+	
+	/*
+	 * notice method:
+	 * 
+	 * chat line the Server writes itself, such as a Client entering or
+	 * leaving a Room, sent like any chat line but not kept in the
+	 * MessageLog, a joining Client's history is what Clients said, not
+	 * who came and went
+	 */
+	public static EncodedMessage notice(String line)
+	{
+		EncodedMessage notice = chat(line);
+		notice.notice = true;
+		return notice;
+	}
+	
+	/*
+	 * chatLine method:
+	 * 
+	 * regular chat line recieved from a text Client, passed as its raw
+	 * bytes ending in '\n', text Clients are sent those bytes unchanged
+	 * and the line is only decoded if a binary Client needs a Frame
+	 */
+	public static EncodedMessage chatLine(byte[] line)
+	{
+		return new EncodedMessage(Frame.CHAT, null, line);
+	}
+	
+	//new Client command message, "@username" in the text protocol
+	public static EncodedMessage userJoined(String username)
+	{
+		return new EncodedMessage(Frame.USER_JOINED, new String[] {username});
+	}
+	
+	//same, as of the passed members list version, Clients with FLAG_ROSTER get a ROSTER_DELTA
+	public static EncodedMessage userJoined(String username, long version)
+	{
+		EncodedMessage joined = userJoined(username);
+		joined.version = version;
+		return joined;
+	}
+	
+	//Client logout command message, "~username" in the text protocol
+	public static EncodedMessage userLeft(String username)
+	{
+		return new EncodedMessage(Frame.USER_LEFT, new String[] {username});
+	}
+	
+	//same, as of the passed members list version, Clients with FLAG_ROSTER get a ROSTER_DELTA
+	public static EncodedMessage userLeft(String username, long version)
+	{
+		EncodedMessage left = userLeft(username);
+		left.version = version;
+		return left;
+	}
+	
+	/*
+	 * roster method:
+	 * 
+	 * a Room's complete members list as of the passed version, one ROSTER
+	 * Frame for Clients with FLAG_ROSTER, one new Client command message
+	 * per member, as before, for every other Client
+	 */
+	public static EncodedMessage roster(long version, List<String> usernames)
+	{
+		EncodedMessage roster = new EncodedMessage(Frame.ROSTER, usernames.toArray(new String[0]));
+		roster.version = version;
+		return roster;
+	}
+	
+	//direct message, "sender&recipient&message" in the text protocol
+	public static EncodedMessage direct(String sender, String recipient, String message)
+	{
+		return new EncodedMessage(Frame.DIRECT, new String[] {sender, recipient, message});
+	}
+	
+	/*
+	 * logged method:
+	 * 
+	 * chat line read back from the MessageLog, passed as the Frame it was
+	 * logged as (usually a slice of a memory mapped log segment, see
+	 * LogSegment.read()), binary Clients
+	 * are sent that slice as is, the text line is only decoded from it
+	 * if a text Client needs it
+	 */
+	public static EncodedMessage logged(ByteBuffer frame)
+	{
+		EncodedMessage logged = new EncodedMessage(Frame.CHAT, null, null);
+		logged.binary = frame;
+		return logged;
+	}
+	
+	//heartbeat the Client has to answer, "~" without a username in the text protocol
+	public static EncodedMessage ping()
+	{
+		return new EncodedMessage(Frame.PING, new String[0]);
+	}
+	
+	//answer to a binary Client's HELLO, never sent to text Clients
+	public static EncodedMessage hello(int version, int flags)
+	{
+		EncodedMessage hello = new EncodedMessage(Frame.HELLO, new String[0]);
+		hello.binary = ByteBuffer.wrap(Frame.hello(version, flags));
+		return hello;
+	}
+	
+	//WebSocket PONG frame answering the PING of one WebSocket Client, never sent to other Clients
+	public static EncodedMessage webSocketControl(byte[] frame)
+	{
+		EncodedMessage control = new EncodedMessage(Frame.PONG, new String[0]);
+		control.webSocket = ByteBuffer.wrap(frame);
+		return control;
+	}
+	
+	/*
+	 * buffer method:
+	 * 
+	 * returns a read only view of the wire bytes for the passed encoding,
+	 * with its own position, so several EventLoops can write the same
+	 * message at once
+	 */
+	public ByteBuffer buffer(int encoding)
+	{
+		return bytes(encoding).asReadOnlyBuffer();
+	}
+	
+	//writes the bytes to a blocking stream, used by thread and virtual mode writers
+	public void writeTo(OutputStream output, int encoding) throws IOException
+	{
+		ByteBuffer bytes = bytes(encoding);
+		if(bytes.hasArray())
+		{
+			output.write(bytes.array(), bytes.arrayOffset(), bytes.remaining());
+		}
+		else
+		{
+			byte[] copy = new byte[bytes.remaining()];
+			bytes.duplicate().get(copy);
+			output.write(copy);
+		}
+	}
+	
+	//number of bytes on the wire for the passed encoding
+	public int length(int encoding)
+	{
+		return bytes(encoding).remaining();
+	}
+	
+	/*
+	 * payloadLength method:
+	 * 
+	 * size of what the message says, the UTF-8 bytes of its fields, the
+	 * bytes of a text Client's line without its '\n' or the payload of a
+	 * logged Frame, the same whichever encodings were built already and
+	 * counted without building or allocating anything
+	 */
+	int payloadLength()
+	{
+		if(textLine != null)
+		{
+			return textLine.length - 1;
+		}
+		if(fields == null)
+		{
+			return binary.remaining() - Frame.HEADER_LENGTH;
+		}
+		int length = 0;
+		for(String field : fields)
+		{
+			length += utf8Length(field);
+		}
+		return length;
+	}
+	
+	//UTF-8 bytes the passed String encodes to, a surrogate pair is one 4 byte character
+	private static int utf8Length(String text)
+	{
+		int length = 0;
+		for(int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if(c < 0x80)
+			{
+				length++;
+			}
+			else if(c < 0x800)
+			{
+				length += 2;
+			}
+			else if(Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1)))
+			{
+				length += 4;
+				i++;
+			}
+			else
+			{
+				length += 3;
+			}
+		}
+		return length;
+	}
+	
+	/*
+	 * bytes method:
+	 * 
+	 * the wire bytes for the passed encoding, text Clients share one
+	 * encoding, WebSocket Clients share one, binary Clients share one
+	 * unless their HELLO flags change how this message is sent (see
+	 * usesFlags()), then those Clients share a second one, and the Clients
+	 * with FLAG_DEFLATE among either share a deflated copy of it
+	 */
+	private ByteBuffer bytes(int encoding)
+	{
+		if(encoding == TEXT)
+		{
+			ByteBuffer encoded = text;
+			if(encoded == null)
+			{
+				encoded = ByteBuffer.wrap(textBytes(LineDecoder.CHARSET));
+				text = encoded;
+			}
+			return encoded;
+		}
+		
+		if(encoding == WEBSOCKET)
+		{
+			ByteBuffer encoded = webSocket;
+			if(encoded == null)
+			{
+				encoded = ByteBuffer.wrap(type == Frame.PING ? WebSocketFrame.encode(WebSocketFrame.PING, new byte[0], 0, 0) : WebSocketFrame.textFrames(textBytes(StandardCharsets.UTF_8)));
+				webSocket = encoded;
+			}
+			return encoded;
+		}
+		
+		if((encoding & Frame.FLAG_DEFLATE) == 0 || type == Frame.HELLO)
+		{
+			return frameBytes(encoding);
+		}
+		
+		boolean flags = usesFlags(encoding);
+		ByteBuffer encoded = flags ? deflatedFlagged : deflated;
+		if(encoded == null)
+		{
+			ByteBuffer frame = frameBytes(encoding);
+			if(frame.remaining() < Frame.DEFLATE_BYTES)
+			{
+				encoded = frame;
+			}
+			else
+			{
+				byte[] copy = new byte[frame.remaining()];
+				frame.duplicate().get(copy);
+				byte[] wrapped = Frame.deflated(copy);
+				encoded = wrapped == copy ? frame : ByteBuffer.wrap(wrapped);
+			}
+			
+			if(flags)
+			{
+				deflatedFlagged = encoded;
+			}
+			else
+			{
+				deflated = encoded;
+			}
+		}
+		return encoded;
+	}
+	
+	//the Frames for binary Clients with the passed HELLO flags, before any deflating
+	private ByteBuffer frameBytes(int encoding)
+	{
+		if(usesFlags(encoding))
+		{
+			ByteBuffer encoded = flagged;
+			if(encoded == null)
+			{
+				encoded = ByteBuffer.wrap(type == Frame.ROSTER ? Frame.roster(version, Arrays.asList(fields)) : Frame.rosterDelta(version, type == Frame.USER_JOINED, fields[0]));
+				flagged = encoded;
+			}
+			return encoded;
+		}
+		
+		ByteBuffer encoded = binary;
+		if(encoded == null)
+		{
+			encoded = ByteBuffer.wrap(type == Frame.ROSTER ? rosterFrames() : Frame.encode(type, fields()));
+			binary = encoded;
+		}
+		return encoded;
+	}
+	
+	//true if Clients with the passed HELLO flags are sent this message as a different Frame
+	private boolean usesFlags(int flags)
+	{
+		return (flags & Frame.FLAG_ROSTER) != 0 && (type == Frame.ROSTER || (version > 0 && (type == Frame.USER_JOINED || type == Frame.USER_LEFT)));
+	}
+	
+	//a ROSTER for Clients without FLAG_ROSTER, one USER_JOINED Frame per member
+	private byte[] rosterFrames()
+	{
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		for(String username : fields)
+		{
+			byte[] frame = Frame.encode(Frame.USER_JOINED, username);
+			frames.write(frame, 0, frame.length);
+		}
+		return frames.toByteArray();
+	}
+	
+	//the text protocol lines in the passed charset, a text Client's own line is only re-encoded for another charset
+	private byte[] textBytes(Charset charset)
+	{
+		if(textLine != null && charset.equals(LineDecoder.CHARSET))
+		{
+			return textLine;
+		}
+		if(type != Frame.ROSTER)
+		{
+			return (textLine() + "\n").getBytes(charset);
+		}
+		
+		StringBuilder lines = new StringBuilder();
+		for(String username : fields)
+		{
+			lines.append('@').append(username).append('\n');
+		}
+		return lines.toString().getBytes(charset);
+	}
+	
+	//the message's fields, decoded from its text line or logged Frame if need be
+	String[] fields()
+	{
+		if(fields != null)
+		{
+			return fields;
+		}
+		if(textLine != null)
+		{
+			return new String[] {new String(textLine, 0, textLine.length - 1, LineDecoder.CHARSET)};
+		}
+		
+		//a chat Frame's only field runs from the header to its end
+		ByteBuffer payload = binary.duplicate();
+		payload.position(payload.position() + Frame.HEADER_LENGTH);
+		byte[] line = new byte[payload.remaining()];
+		payload.get(line);
+		return new String[] {new String(line, Frame.CHARSET)};
+	}
+	
+	//the text protocol's command line for this message
+	private String textLine()
+	{
+		String[] fields = fields();
+		switch(type)
+		{
+		case Frame.USER_JOINED:
+			return "@" + fields[0];
+		case Frame.USER_LEFT:
+			return "~" + fields[0];
+		case Frame.PING:
+			return "~";
+		case Frame.DIRECT:
+			return escaped(fields[0]) + "&" + escaped(fields[1]) + "&" + fields[2];
+		default:
+			return fields.length > 0 ? escaped(fields[0]) : "";
+		}
+	}
+	
+	/*
+	 * escaped method:
+	 * 
+	 * the passed text with every '&' replaced by a FULLWIDTH_AMPERSAND,
+	 * text Clients and browsers read any line holding a '&' as a direct
+	 * message from whoever is named before it, text Clients can not send
+	 * such a chat line but binary Clients can, only the text protocol
+	 * lines are changed, binary Clients still get the '&'
+	 */
+	private static String escaped(String text)
+	{
+		return text.indexOf('&') < 0 ? text : text.replace('&', FULLWIDTH_AMPERSAND);
+	}
+	
+	//GETTERS AND SETTERS
+	public byte getType() {
+		return type;
+	}
+	
+	public boolean isNotice() {
+		return notice;
+	}
+	
+}
@@ -0,0 +1,147 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import protocol.WebSocketDecoder;
+
+/*
+ * EVENTLOOP CLASS:
+ * 
+ * One thread that owns a Selector and services every
+ * NioClientHandler registered with it, used in nio mode
+ * instead of a thread per connection
+ * 
+ * Other threads never touch the Selector directly, they hand
+ * work to the loop with execute(), which wakes the Selector up
+ * so the task runs on the loop thread
+ * 
+ * All connections on a loop share one direct read buffer,
+ * since a read is always fully framed before the next one
+ * 
+ * Connections that decode in place instead (WebSocketHandler) take
+ * heap buffers from the loop's BufferPool, a buffer big enough for a
+ * whole WebSocket frame
+ */
+
+public class EventLoop extends Thread {
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 64;
+	
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	private final BufferPool bufferPool = new BufferPool(WebSocketDecoder.MAX_FRAME_LENGTH, MAX_POOLED_BUFFERS);
+
+	
+	public EventLoop(String name) throws IOException
+	{
+		super(name);
+		this.selector = Selector.open();
+		setDaemon(true);
+	}
+	
+	public void run()
+	{
+		while(true)
+		{
+			try
+			{
+				//tasks queued by this loop itself must not wait on select()
+				if(tasks.isEmpty())
+				{
+					selector.select();
+				}
+				else
+				{
+					selector.selectNow();
+				}
+				runTasks();
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					
+					NioClientHandler handler = (NioClientHandler) key.attachment();
+					try
+					{
+						if(key.isReadable())
+						{
+							handler.onReadable(readBuffer);
+						}
+						if(key.isValid() && key.isWritable())
+						{
+							handler.onWritable();
+						}
+					}
+					catch (IOException | CancelledKeyException e)
+					{
+						handler.readFailed(e);
+						handler.close();
+					}
+				}
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/*
+	 * execute method:
+	 * 
+	 * queues a task to run on this loop's thread, waking the
+	 * Selector when called from any other thread
+	 */
+	public void execute(Runnable task)
+	{
+		tasks.add(task);
+		
+		if(Thread.currentThread() != this)
+		{
+			selector.wakeup();
+		}
+	}
+	
+	//true when called from this loop's own thread
+	public boolean inEventLoop()
+	{
+		return Thread.currentThread() == this;
+	}
+	
+	private void runTasks()
+	{
+		Runnable task;
+		while((task = tasks.poll()) != null)
+		{
+			try
+			{
+				task.run();
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	//GETTERS AND SETTERS
+	public Selector getSelector() {
+		return selector;
+	}
+	
+	//only to be used from this loop's thread
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+}
@@ -0,0 +1,55 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/*
+ * LOGRECORD CLASS:
+ * 
+ * One message read back from the MessageLog, its offset (position in
+ * the log, counting from the first message ever logged), the time it
+ * was logged, the Room it was broadcast to and the message as the
+ * binary protocol Frame it was logged as, see LogSegment for the
+ * layout on disk
+ */
+
+public final class LogRecord {
+	private final long offset;
+	private final long timestamp;
+	private final String room;
+	private final ByteBuffer frame;
+
+
+	public LogRecord(long offset, long timestamp, String room, ByteBuffer frame)
+	{
+		this.offset = offset;
+		this.timestamp = timestamp;
+		this.room = room;
+		this.frame = frame;
+	}
+
+	//Frame opcode of the message, see protocol.Frame
+	public byte type()
+	{
+		return frame.get(frame.position());
+	}
+
+	//GETTERS AND SETTERS
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	//name of the Room the message was broadcast to, empty for direct messages
+	public String getRoom() {
+		return room;
+	}
+
+	//the whole Frame, header included, as a read only view
+	public ByteBuffer getFrame() {
+		return frame.asReadOnlyBuffer();
+	}
+
+}
@@ -0,0 +1,409 @@
+package server;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+ * LOGSEGMENT CLASS:
+ * 
+ * One file of the MessageLog, holding the records from baseOffset on,
+ * named after its base offset ("00000000000000001234.log"), with a
+ * sparse index next to it ("00000000000000001234.index")
+ * 
+ * Record layout:
+ * [length 4B][crc32 4B][offset 8B][timestamp 8B][room length 2B][room][binary protocol Frame]
+ * length counts everything after itself, the CRC32 covers everything
+ * after itself, the room is the UTF-8 name of the Room the message was
+ * broadcast to, empty for direct messages
+ * 
+ * The index holds one [relative offset 4B][position 4B] entry for the
+ * first record in every INDEX_INTERVAL bytes, so finding an offset is a
+ * binary search in memory and a scan of at most INDEX_INTERVAL bytes
+ * 
+ * Records are added to a pending batch by the MessageLog writer thread
+ * and only become visible to readers once commit() has written the
+ * batch, so readers never see half a record
+ * 
+ * Readers share one read only mapping of the file, see mapped(), a
+ * sealed segment is mapped whole once, the active one in steps of
+ * MAP_CHUNK bytes, so a steady stream of commits does not remap it for
+ * every read, the few records past the mapping are read from the file
+ */
+
+public class LogSegment {
+	//fixed part of the header, the room name follows it
+	public static final int HEADER_LENGTH = 26;
+	private static final int INDEX_INTERVAL = 4096;
+	private static final int INDEX_ENTRY_LENGTH = 8;
+	private static final long MAP_CHUNK = 4 * 1024 * 1024;
+
+	private final long baseOffset;
+	private final File logFile;
+	private final File indexFile;
+	private final FileChannel log;
+	private final FileChannel index;
+	//committed bytes and the offset the next record will get, read by any thread
+	private volatile long size = 0;
+	private volatile long nextOffset;
+	//no more records will be appended, see seal()
+	private volatile boolean sealed = false;
+	//sparse index, guarded by this
+	private int[] indexOffsets = new int[64];
+	private int[] indexPositions = new int[64];
+	private int indexEntries = 0;
+	//mapping of the committed records, see mapped(), guarded by this
+	private MappedByteBuffer mapping;
+
+	//pending batch, only touched by the MessageLog writer thread
+	private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+	private ByteBuffer pendingIndex = ByteBuffer.allocate(64 * INDEX_ENTRY_LENGTH);
+	private long pendingOffset;
+	private long lastIndexedPosition = -INDEX_INTERVAL;
+	private final CRC32 crc = new CRC32();
+
+
+	private LogSegment(File directory, long baseOffset) throws IOException
+	{
+		this.baseOffset = baseOffset;
+		this.logFile = new File(directory, String.format("%020d.log", baseOffset));
+		this.indexFile = new File(directory, String.format("%020d.index", baseOffset));
+		this.log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.nextOffset = baseOffset;
+		this.pendingOffset = baseOffset;
+	}
+
+	//opens the segment starting at baseOffset, creating it if it does not exist yet
+	public static LogSegment open(File directory, long baseOffset) throws IOException
+	{
+		LogSegment segment = new LogSegment(directory, baseOffset);
+		segment.recover();
+		return segment;
+	}
+
+	/*
+	 * recover method:
+	 * 
+	 * loads the index and checks the records after its last entry,
+	 * a record cut short or corrupted by a crash (and anything after
+	 * it) is truncated away, the Server only ever lost that record
+	 */
+	private void recover() throws IOException
+	{
+		long fileSize = log.size();
+
+		ByteBuffer entries = ByteBuffer.allocate((int) (index.size() / INDEX_ENTRY_LENGTH * INDEX_ENTRY_LENGTH));
+		readFully(index, entries, 0);
+		entries.flip();
+		while(entries.remaining() >= INDEX_ENTRY_LENGTH)
+		{
+			int offset = entries.getInt();
+			int position = entries.getInt();
+			if(position >= fileSize)
+			{
+				break;
+			}
+			addIndexEntry(offset, position);
+		}
+
+		long position = indexEntries > 0 ? indexPositions[indexEntries - 1] : 0;
+		long next = indexEntries > 0 ? baseOffset + indexOffsets[indexEntries - 1] : baseOffset;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		while(position + HEADER_LENGTH <= fileSize)
+		{
+			header.clear();
+			readFully(log, header, position);
+			int length = header.getInt(0);
+			if(length < HEADER_LENGTH - 4 || position + 4 + length > fileSize || header.getLong(8) != next)
+			{
+				break;
+			}
+
+			ByteBuffer body = ByteBuffer.allocate(length - 4);
+			readFully(log, body, position + 8);
+			crc.reset();
+			crc.update(body.array(), 0, body.capacity());
+			if((int) crc.getValue() != header.getInt(4))
+			{
+				break;
+			}
+
+			next++;
+			position += 4 + length;
+		}
+
+		if(position < fileSize)
+		{
+			System.out.println("Message log: truncating " + (fileSize - position) + " bad bytes at the end of " + logFile.getName());
+			log.truncate(position);
+		}
+		index.truncate((long) indexEntries * INDEX_ENTRY_LENGTH);
+
+		size = position;
+		nextOffset = next;
+		pendingOffset = next;
+		lastIndexedPosition = indexEntries > 0 ? indexPositions[indexEntries - 1] : -INDEX_INTERVAL;
+	}
+
+	/*
+	 * append method:
+	 * 
+	 * adds a record holding the passed room name and Frame to the pending
+	 * batch and returns its offset, nothing is written until commit()
+	 */
+	public long append(long timestamp, byte[] room, ByteBuffer frame)
+	{
+		int length = HEADER_LENGTH + room.length + frame.remaining();
+		if(pending.remaining() < length)
+		{
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + length));
+			pending.flip();
+			larger.put(pending);
+			pending = larger;
+		}
+
+		long position = size + pending.position();
+		if(position - lastIndexedPosition >= INDEX_INTERVAL)
+		{
+			if(!pendingIndex.hasRemaining())
+			{
+				ByteBuffer larger = ByteBuffer.allocate(pendingIndex.capacity() * 2);
+				pendingIndex.flip();
+				larger.put(pendingIndex);
+				pendingIndex = larger;
+			}
+			pendingIndex.putInt((int) (pendingOffset - baseOffset)).putInt((int) position);
+			lastIndexedPosition = position;
+		}
+
+		int start = pending.position();
+		pending.putInt(length - 4).putInt(0).putLong(pendingOffset).putLong(timestamp);
+		pending.putShort((short) room.length).put(room).put(frame.duplicate());
+		crc.reset();
+		crc.update(pending.array(), start + 8, length - 8);
+		pending.putInt(start + 4, (int) crc.getValue());
+		return pendingOffset++;
+	}
+
+	/*
+	 * commit method:
+	 * 
+	 * writes the pending batch and its index entries with one write each,
+	 * forces them to disk once for the whole batch (group commit) and
+	 * then makes the records visible to readers
+	 */
+	public void commit() throws IOException
+	{
+		if(pending.position() == 0)
+		{
+			return;
+		}
+
+		pending.flip();
+		long position = size;
+		while(pending.hasRemaining())
+		{
+			position += log.write(pending, position);
+		}
+		log.force(false);
+
+		pendingIndex.flip();
+		long indexPosition = (long) indexEntries * INDEX_ENTRY_LENGTH;
+		while(pendingIndex.hasRemaining())
+		{
+			indexPosition += index.write(pendingIndex, indexPosition);
+		}
+		pendingIndex.flip();
+		synchronized(this)
+		{
+			while(pendingIndex.hasRemaining())
+			{
+				addIndexEntry(pendingIndex.getInt(), pendingIndex.getInt());
+			}
+		}
+
+		pending.clear();
+		pendingIndex.clear();
+		size = position;
+		nextOffset = pendingOffset;
+	}
+
+	/*
+	 * read method:
+	 * 
+	 * adds the committed records from fromOffset on to records, until
+	 * it holds max records or this segment ends
+	 * 
+	 * records are read from a memory mapping of the segment and their
+	 * Frames are slices of it, so reading copies nothing onto the heap
+	 * and the Frames can be written to channels straight from the page
+	 * cache, only records past the end of the mapping are copied
+	 */
+	public void read(long fromOffset, int max, List<LogRecord> records) throws IOException
+	{
+		long limit = size;
+		ByteBuffer mapped = mapped(limit);
+		long mappedLimit = mapped != null ? mapped.capacity() : 0;
+		long position = lookup(fromOffset);
+
+		while(records.size() < max && position < limit)
+		{
+			ByteBuffer buffer = mapped;
+			int start = (int) position;
+			if(position + 4 > mappedLimit || position + 4 + mapped.getInt(start) > mappedLimit)
+			{
+				buffer = readRecord(position);
+				start = 0;
+			}
+
+			int length = buffer.getInt(start);
+			long offset = buffer.getLong(start + 8);
+			if(offset >= fromOffset)
+			{
+				int roomLength = buffer.getShort(start + 24) & 0xFFFF;
+				byte[] room = new byte[roomLength];
+				buffer.position(start + HEADER_LENGTH);
+				buffer.get(room);
+				buffer.limit(start + 4 + length);
+				records.add(new LogRecord(offset, buffer.getLong(start + 16), new String(room, StandardCharsets.UTF_8), buffer.slice()));
+				buffer.clear();
+			}
+			position += 4 + length;
+		}
+	}
+
+	/*
+	 * mapped method:
+	 * 
+	 * returns a view of the read only mapping shared by all readers, which
+	 * covers the whole of a sealed segment and the committed MAP_CHUNKs
+	 * of the active one, null while less than a MAP_CHUNK is committed,
+	 * the active segment is only mapped again once a chunk fills up
+	 */
+	private synchronized ByteBuffer mapped(long limit) throws IOException
+	{
+		long mappable = sealed ? limit : limit / MAP_CHUNK * MAP_CHUNK;
+		if(mapping == null || mapping.capacity() < mappable)
+		{
+			if(mappable == 0)
+			{
+				return null;
+			}
+			mapping = log.map(FileChannel.MapMode.READ_ONLY, 0, mappable);
+		}
+		return mapping.duplicate();
+	}
+
+	//copies the whole record at position from the file, for records the mapping does not cover
+	private ByteBuffer readRecord(long position) throws IOException
+	{
+		ByteBuffer length = ByteBuffer.allocate(4);
+		readFully(log, length, position);
+		ByteBuffer record = ByteBuffer.allocate(4 + length.getInt(0));
+		readFully(log, record, position);
+		return record;
+	}
+
+	/*
+	 * seal method:
+	 * 
+	 * called once nothing more will be appended to this segment, the next
+	 * read maps all of it and that mapping is never replaced
+	 */
+	public void seal()
+	{
+		sealed = true;
+	}
+
+	//position of the last indexed record at or before offset
+	public synchronized long lookup(long offset)
+	{
+		int low = 0;
+		int high = indexEntries - 1;
+		int found = -1;
+		long relative = offset - baseOffset;
+		while(low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			if(indexOffsets[middle] <= relative)
+			{
+				found = middle;
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle - 1;
+			}
+		}
+		return found < 0 ? 0 : indexPositions[found];
+	}
+
+	private void addIndexEntry(int offset, int position)
+	{
+		if(indexEntries == indexOffsets.length)
+		{
+			indexOffsets = Arrays.copyOf(indexOffsets, indexEntries * 2);
+			indexPositions = Arrays.copyOf(indexPositions, indexEntries * 2);
+		}
+		indexOffsets[indexEntries] = offset;
+		indexPositions[indexEntries] = position;
+		indexEntries++;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer, position + buffer.position()) < 0)
+			{
+				throw new EOFException("Unexpected end of message log segment");
+			}
+		}
+	}
+
+	public void close() throws IOException
+	{
+		log.close();
+		index.close();
+	}
+
+	//closes and removes both files, used when retention drops this segment
+	public void delete() throws IOException
+	{
+		close();
+		logFile.delete();
+		indexFile.delete();
+	}
+
+	//GETTERS AND SETTERS
+	public long getBaseOffset() {
+		return baseOffset;
+	}
+
+	public long getNextOffset() {
+		return nextOffset;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	//bytes appended but not committed yet
+	public int getPendingBytes() {
+		return pending.position();
+	}
+
+	public long getLastModified() {
+		return logFile.lastModified();
+	}
+
+}
@@ -0,0 +1,487 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import protocol.Frame;
+
+/*
+ * MESSAGELOG CLASS:
+ * 
+ * Append only log of every message the Server broadcasts or delivers
+ * as a direct message, kept in -log=directory so it survives restarts,
+ * for audits and for replaying history
+ * 
+ * Each message gets an offset, counting up from the first message ever
+ * logged, and is stored as the binary protocol Frame it encodes to, see
+ * LogSegment for the record layout
+ * 
+ * Group commit:
+ * append() only queues the message, so broadcasts never wait for the
+ * disk, the "message-log" thread takes everything queued at once, writes
+ * it as one batch and forces it to disk once per batch
+ * 
+ * Segments:
+ * the log is split into LogSegments of up to -logSegmentMB, a new one is
+ * started once the current one is full, old segments are deleted once
+ * they are older than -logRetentionMinutes or the log is larger than
+ * -logRetentionMB (0 turns either limit off), whole segments at a time
+ * 
+ * Reads go through memory mappings of the segments, see LogSegment.read(),
+ * tail() finds the newest chat lines for the history a joining Client
+ * is sent
+ * 
+ * Room tails:
+ * the offsets and times of each Room's newest tailLength chat lines are
+ * kept in memory as they are committed, so tail() reads just those
+ * records instead of scanning the log, after a restart they are rebuilt
+ * from at most the last MAX_RECOVERY_SCAN records
+ * 
+ * When the writer falls QUEUE_CAPACITY messages behind, new messages
+ * are counted as dropped instead of holding up the broadcasts
+ */
+
+public class MessageLog {
+	private static final int QUEUE_CAPACITY = 64 * 1024;
+	private static final int MAX_BATCH = 4096;
+	//records read back at startup to rebuild the Room tails
+	private static final long MAX_RECOVERY_SCAN = 1000 * 1000;
+	//"00000000000000001234.log", a base offset is never more than 19 digits
+	private static final Pattern SEGMENT_NAME = Pattern.compile("0\\d{19}\\.log");
+
+	private final File directory;
+	private final long segmentBytes;
+	private final long retentionMillis;
+	private final long retentionBytes;
+	//chat lines kept per Room for tail(), 0 for none
+	private final int tailLength;
+	private final ConcurrentHashMap<String, RoomTail> tails = new ConcurrentHashMap<String, RoomTail>();
+	private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<Long, LogSegment>();
+	private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>(QUEUE_CAPACITY);
+	private final LongAdder appended = new LongAdder();
+	private final LongAdder commits = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private volatile LogSegment active;
+	private volatile boolean closed = false;
+	private final Thread writer;
+
+
+	public MessageLog(ServerConfig config, int tailLength) throws IOException
+	{
+		this.directory = new File(config.getLogDirectory());
+		this.tailLength = tailLength;
+		this.segmentBytes = config.getLogSegmentBytes();
+		this.retentionMillis = config.getLogRetentionMinutes() * 60 * 1000;
+		this.retentionBytes = config.getLogRetentionBytes();
+
+		if(!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Can not create message log directory " + directory);
+		}
+
+		File[] files = directory.listFiles((dir, name)->name.endsWith(".log"));
+		for(File file : files)
+		{
+			//only names LogSegment gives its files, anything else was put there by someone else
+			if(!SEGMENT_NAME.matcher(file.getName()).matches())
+			{
+				System.out.println("Message log: skipping " + file.getName() + ", not a log segment");
+				continue;
+			}
+			long baseOffset = Long.parseLong(file.getName().substring(0, file.getName().length() - 4));
+			segments.put(baseOffset, LogSegment.open(directory, baseOffset));
+		}
+		if(segments.isEmpty())
+		{
+			segments.put(0L, LogSegment.open(directory, 0));
+		}
+		active = segments.lastEntry().getValue();
+		for(LogSegment segment : segments.headMap(active.getBaseOffset()).values())
+		{
+			segment.seal();
+		}
+		enforceRetention();
+		recoverTails();
+
+		writer = new Thread(this::writeLoop, "message-log");
+		writer.setDaemon(true);
+		writer.start();
+		System.out.println("Message log in " + directory + " holds offsets " + getStartOffset() + " to " + getNextOffset());
+	}
+
+	//queues the message broadcast to the named Room to be logged, never blocks the caller
+	public void append(String room, EncodedMessage message)
+	{
+		if(!queue.offer(new Entry(room, message)))
+		{
+			dropped.increment();
+		}
+	}
+
+	/*
+	 * read method:
+	 * 
+	 * returns up to max logged messages from fromOffset on, using the
+	 * segments' sparse indexes to find where to start, offsets that
+	 * retention already dropped are skipped
+	 */
+	public List<LogRecord> read(long fromOffset, int max) throws IOException
+	{
+		List<LogRecord> records = new ArrayList<LogRecord>();
+		read(fromOffset, max, records);
+		return records;
+	}
+
+	/*
+	 * tail method:
+	 * 
+	 * returns the newest max (at most tailLength) chat lines broadcast to
+	 * the named Room at or after since (a currentTimeMillis() time),
+	 * oldest first, direct messages and members list changes are left out
+	 * 
+	 * the Room's tail names the records, each is read on its own through
+	 * the sparse index, so the cost does not grow with the log
+	 */
+	public List<LogRecord> tail(String room, int max, long since) throws IOException
+	{
+		List<LogRecord> tail = new ArrayList<LogRecord>();
+		RoomTail roomTail = tails.get(room);
+		if(roomTail == null)
+		{
+			return tail;
+		}
+
+		List<LogRecord> record = new ArrayList<LogRecord>(1);
+		for(long offset : roomTail.newest(max, since, getStartOffset()))
+		{
+			record.clear();
+			read(offset, 1, record);
+			//retention may have dropped it since
+			if(!record.isEmpty() && record.get(0).getOffset() == offset)
+			{
+				tail.add(record.get(0));
+			}
+		}
+		return tail;
+	}
+
+	//read() into a list of the caller's
+	private void read(long fromOffset, int max, List<LogRecord> records) throws IOException
+	{
+		Long start = segments.floorKey(fromOffset);
+		Map<Long, LogSegment> from = start == null ? segments : segments.tailMap(start);
+
+		for(LogSegment segment : from.values())
+		{
+			segment.read(Math.max(fromOffset, segment.getBaseOffset()), max, records);
+			if(records.size() >= max)
+			{
+				break;
+			}
+		}
+	}
+
+	/*
+	 * recoverTails method:
+	 * 
+	 * rebuilds the Room tails from the newest MAX_RECOVERY_SCAN records
+	 * when the log is opened, MAX_BATCH records at a time
+	 */
+	private void recoverTails() throws IOException
+	{
+		if(tailLength == 0)
+		{
+			return;
+		}
+
+		long end = getNextOffset();
+		long from = Math.max(getStartOffset(), end - MAX_RECOVERY_SCAN);
+		while(from < end)
+		{
+			List<LogRecord> records = read(from, MAX_BATCH);
+			if(records.isEmpty())
+			{
+				break;
+			}
+			for(LogRecord record : records)
+			{
+				if(record.type() == Frame.CHAT && !record.getRoom().isEmpty())
+				{
+					addToTail(record.getRoom(), record.getOffset(), record.getTimestamp());
+				}
+			}
+			from = records.get(records.size() - 1).getOffset() + 1;
+		}
+	}
+
+	private void addToTail(String room, long offset, long timestamp)
+	{
+		tails.computeIfAbsent(room, name->new RoomTail(tailLength)).add(offset, timestamp);
+	}
+
+	/*
+	 * writeLoop method:
+	 * 
+	 * the "message-log" thread, commits whatever has queued up since
+	 * the last batch, and checks retention at least once a minute
+	 */
+	private void writeLoop()
+	{
+		List<Entry> batch = new ArrayList<Entry>(MAX_BATCH);
+		while(true)
+		{
+			try
+			{
+				Entry first = queue.poll(1, TimeUnit.MINUTES);
+				if(first == null)
+				{
+					enforceRetention();
+					continue;
+				}
+				batch.add(first);
+			}
+			catch (InterruptedException e)
+			{
+				if(closed)
+				{
+					queue.drainTo(batch);
+					commit(batch);
+					return;
+				}
+				continue;
+			}
+
+			queue.drainTo(batch, MAX_BATCH - 1);
+			commit(batch);
+		}
+	}
+
+	private void commit(List<Entry> batch)
+	{
+		if(batch.isEmpty())
+		{
+			return;
+		}
+
+		try
+		{
+			long now = System.currentTimeMillis();
+			int committed = 0;
+			for(int i = 0; i < batch.size(); i++)
+			{
+				Entry entry = batch.get(i);
+				byte[] room = entry.room.getBytes(StandardCharsets.UTF_8);
+				ByteBuffer frame = entry.message.buffer(EncodedMessage.BINARY);
+				long used = active.getSize() + active.getPendingBytes();
+				if(used > 0 && used + LogSegment.HEADER_LENGTH + room.length + frame.remaining() > segmentBytes)
+				{
+					active.commit();
+					publish(batch, committed, i, now);
+					committed = i;
+					roll();
+				}
+				long offset = active.append(now, room, frame);
+				if(frame.get(frame.position()) == Frame.CHAT && !entry.room.isEmpty())
+				{
+					entry.offset = offset;
+				}
+			}
+			active.commit();
+			publish(batch, committed, batch.size(), now);
+			appended.add(batch.size());
+			commits.increment();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		batch.clear();
+	}
+
+	//adds the committed chat lines of batch[from, to) to their Rooms' tails
+	private void publish(List<Entry> batch, int from, int to, long timestamp)
+	{
+		if(tailLength == 0)
+		{
+			return;
+		}
+		for(int i = from; i < to; i++)
+		{
+			Entry entry = batch.get(i);
+			if(entry.offset >= 0)
+			{
+				addToTail(entry.room, entry.offset, timestamp);
+			}
+		}
+	}
+
+	//starts a new segment after the full active one
+	private void roll() throws IOException
+	{
+		LogSegment next = LogSegment.open(directory, active.getNextOffset());
+		segments.put(next.getBaseOffset(), next);
+		active.seal();
+		active = next;
+		enforceRetention();
+	}
+
+	/*
+	 * enforceRetention method:
+	 * 
+	 * deletes the oldest segments while they are past the time limit
+	 * or the log is past the size limit, the active segment is kept
+	 */
+	private void enforceRetention()
+	{
+		long now = System.currentTimeMillis();
+		long total = 0;
+		for(LogSegment segment : segments.values())
+		{
+			total += segment.getSize();
+		}
+
+		for(LogSegment segment : segments.values())
+		{
+			if(segment == active)
+			{
+				break;
+			}
+			boolean expired = retentionMillis > 0 && now - segment.getLastModified() > retentionMillis;
+			boolean oversized = retentionBytes > 0 && total > retentionBytes;
+			if(!expired && !oversized)
+			{
+				break;
+			}
+
+			segments.remove(segment.getBaseOffset());
+			total -= segment.getSize();
+			try
+			{
+				segment.delete();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	//commits what is still queued and closes the segments
+	public void close()
+	{
+		closed = true;
+		writer.interrupt();
+		try
+		{
+			writer.join();
+			for(LogSegment segment : segments.values())
+			{
+				segment.close();
+			}
+		}
+		catch (InterruptedException | IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	//one line summary for the stats reporter
+	public String describe()
+	{
+		long batches = commits.sum();
+		return String.format("log offsets %d-%d in %d segments, %.1f messages per commit, %d dropped",
+				getStartOffset(), getNextOffset(), segments.size(), batches == 0 ? 0.0 : (double) appended.sum() / batches, dropped.sum());
+	}
+
+	//GETTERS AND SETTERS
+
+	//oldest offset still in the log
+	public long getStartOffset() {
+		return segments.firstKey();
+	}
+
+	//offset the next logged message will get
+	public long getNextOffset() {
+		return active.getNextOffset();
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	//a queued message and the Room it was broadcast to
+	private static final class Entry {
+		private final String room;
+		private final EncodedMessage message;
+		//offset it was logged at if it is a chat line of a Room, set by the writer thread
+		private long offset = -1;
+
+		private Entry(String room, EncodedMessage message)
+		{
+			this.room = room;
+			this.message = message;
+		}
+	}
+
+	/*
+	 * ROOMTAIL CLASS:
+	 * 
+	 * ring of the offsets and times of a Room's newest chat lines, added
+	 * to by the writer thread and read by joining Clients' threads
+	 */
+	private static final class RoomTail {
+		private final long[] offsets;
+		private final long[] timestamps;
+		private int next = 0;
+		private int count = 0;
+
+		private RoomTail(int length)
+		{
+			offsets = new long[length];
+			timestamps = new long[length];
+		}
+
+		private synchronized void add(long offset, long timestamp)
+		{
+			offsets[next] = offset;
+			timestamps[next] = timestamp;
+			next = (next + 1) % offsets.length;
+			count = Math.min(count + 1, offsets.length);
+		}
+
+		//offsets of the newest max lines at or after since and start, oldest first
+		private synchronized long[] newest(int max, long since, long start)
+		{
+			int found = 0;
+			int limit = Math.min(max, count);
+			while(found < limit)
+			{
+				int i = (next - 1 - found + offsets.length) % offsets.length;
+				if(timestamps[i] < since || offsets[i] < start)
+				{
+					break;
+				}
+				found++;
+			}
+
+			long[] newest = new long[found];
+			for(int j = 0; j < found; j++)
+			{
+				newest[found - 1 - j] = offsets[(next - 1 - j + offsets.length) % offsets.length];
+			}
+			return newest;
+		}
+	}
+
+}
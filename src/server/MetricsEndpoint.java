@@ -0,0 +1,78 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * METRICSENDPOINT CLASS:
+ * 
+ * Plain text scrape endpoint for the ServerMetrics, started with
+ * -metricsPort, answers GET /metrics with ServerMetrics.scrape()
+ * 
+ * Bound to the loopback address only, so the metrics are readable by
+ * a collector running next to the Server but not from the network
+ * 
+ * Uses the JDK's own HttpServer on its single dispatcher thread, a
+ * scrape every few seconds needs nothing more
+ */
+
+public class MetricsEndpoint {
+	private final ServerMetrics metrics;
+	private final int port;
+	private HttpServer http;
+	
+	
+	public MetricsEndpoint(ServerMetrics metrics, int port)
+	{
+		this.metrics = metrics;
+		this.port = port;
+	}
+	
+	public void start() throws IOException
+	{
+		http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.createContext("/metrics", this::scrape);
+		http.setExecutor(null);
+		http.start();
+		System.out.println("Metrics are served on http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port + "/metrics");
+	}
+	
+	private void scrape(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			if(!exchange.getRequestMethod().equals("GET"))
+			{
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			
+			byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try(OutputStream output = exchange.getResponseBody())
+			{
+				output.write(body);
+			}
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+	
+	public void stop()
+	{
+		if(http != null)
+		{
+			http.stop(0);
+		}
+	}
+
+}
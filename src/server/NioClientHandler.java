@@ -0,0 +1,299 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import protocol.Frame;
+import protocol.FrameDecoder;
+import protocol.LineDecoder;
+import protocol.TextMessage;
+
+/*
+ * NIOCLIENTHANDLER CLASS:
+ * 
+ * ClientHandler for a Client connected to a Server running in nio mode
+ * 
+ * Instead of blocking a thread on readLine(), the owning EventLoop calls
+ * onReadable() whenever bytes arrive, the bytes are framed into lines by
+ * a LineDecoder (or into Frames by a FrameDecoder for binary Clients) and
+ * each goes through the inherited handleLine() (or handleFrame()) so
+ * the commands behave exactly as they do in thread mode
+ * 
+ * sendMessage() may be called from any thread (another Client's EventLoop
+ * broadcasting for example), so outgoing lines are put in the inherited
+ * OutboundQueue and the actual channel write always happens on this
+ * handler's EventLoop
+ */
+
+public class NioClientHandler extends ClientHandler {
+	private static final int MAX_GATHER = 64;
+	
+	protected final SocketChannel channel;
+	protected final EventLoop loop;
+	private final LineDecoder decoder = new LineDecoder();
+	private final TextMessage message = new TextMessage();
+	private final FrameDecoder frameDecoder = new FrameDecoder();
+	private boolean protocolKnown = false;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	private int gatherCount = 0;
+	private SelectionKey key;
+	protected volatile boolean closed = false;
+
+	
+	public NioClientHandler(SocketChannel channel, EventLoop loop, Server server)
+	{
+		super(channel.socket(), server);
+		this.channel = channel;
+		this.loop = loop;
+	}
+	
+	//registers the channel for reads on the owning EventLoop
+	public void register()
+	{
+		loop.execute(()->{
+			try
+			{
+				key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+				startHeartbeat();
+			}
+			catch (ClosedChannelException e)
+			{
+				close();
+			}
+		});
+	}
+	
+	/*
+	 * onReadable method:
+	 * 
+	 * called by the EventLoop when the channel has bytes, every complete
+	 * line in them is handled in order, a logout or end of stream
+	 * closes the connection
+	 */
+	public void onReadable(ByteBuffer buffer) throws IOException
+	{
+		buffer.clear();
+		int read = channel.read(buffer);
+		if(read < 0)
+		{
+			close();
+			return;
+		}
+		server.getMetrics().recordBytesIn(read);
+		buffer.flip();
+		
+		//the first byte tells a binary Client's HELLO from a text line
+		if(!protocolKnown && buffer.hasRemaining())
+		{
+			boolean hello = buffer.get(buffer.position()) == Frame.HELLO;
+			setProtocol(hello, hello ? EncodedMessage.BINARY : EncodedMessage.TEXT);
+		}
+		
+		if(binary)
+		{
+			Frame frame;
+			while(!closed && (frame = frameDecoder.next(buffer)) != null)
+			{
+				if(!handleFrame(frame))
+				{
+					closeAfterFlush();
+				}
+			}
+		}
+		else
+		{
+			while(!closed && decoder.next(buffer))
+			{
+				if(!handleLine(message.parse(decoder.getLine(), decoder.getLength())))
+				{
+					closeAfterFlush();
+				}
+			}
+		}
+	}
+	
+	//records the protocol the Client speaks, broadcasts queued before now can then be encoded for it
+	protected void setProtocol(boolean binary, int encoding) throws IOException
+	{
+		this.binary = binary;
+		this.encoding = encoding;
+		protocolKnown = true;
+		flush();
+	}
+	
+	//called by the EventLoop when a previously full socket buffer has room again
+	public void onWritable() throws IOException
+	{
+		flush();
+	}
+	
+	/*
+	 * sendMessage method:
+	 * 
+	 * queues the line and makes sure a flush is pending on the
+	 * EventLoop, a flush already pending picks this line up too
+	 */
+	@Override
+	public void sendMessage(EncodedMessage message)
+	{
+		if(closed)
+		{
+			return;
+		}
+		
+		if(!queueMessage(message))
+		{
+			disconnect();
+			return;
+		}
+		
+		if(flushScheduled.compareAndSet(false, true))
+		{
+			loop.execute(()->{
+				try
+				{
+					flush();
+				}
+				catch (IOException e)
+				{
+					close();
+				}
+			});
+		}
+	}
+	
+	/*
+	 * flush method:
+	 * 
+	 * coalesces everything queued since the last flush into gathering
+	 * writes of up to MAX_GATHER messages, so a burst of messages in
+	 * one EventLoop tick costs one write syscall instead of one each
+	 * 
+	 * stops when the queue is empty or the socket buffer is full, in
+	 * which case OP_WRITE is requested and the rest is written from
+	 * onWritable()
+	 * 
+	 * nothing is written before the Client's first byte has said which
+	 * protocol it speaks, until then broadcasts just wait in the queue
+	 */
+	protected void flush() throws IOException
+	{
+		flushScheduled.set(false);
+		if(closed || key == null || !protocolKnown)
+		{
+			return;
+		}
+		
+		while(true)
+		{
+			//topping up behind any partially written buffers
+			while(gatherCount < MAX_GATHER)
+			{
+				EncodedMessage next = outbound.poll();
+				if(next == null)
+				{
+					break;
+				}
+				gather[gatherCount++] = next.buffer(encoding);
+			}
+			if(gatherCount == 0)
+			{
+				break;
+			}
+			
+			WriteEvent event = new WriteEvent();
+			event.begin();
+			long written = channel.write(gather, 0, gatherCount);
+			
+			int done = 0;
+			while(done < gatherCount && !gather[done].hasRemaining())
+			{
+				done++;
+			}
+			System.arraycopy(gather, done, gather, 0, gatherCount - done);
+			Arrays.fill(gather, gatherCount - done, gatherCount, null);
+			gatherCount -= done;
+			event.finish(getUsername(), done, written);
+			server.getMetrics().recordFlush(done, written);
+			
+			if(gatherCount > 0)
+			{
+				setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+		setInterest(SelectionKey.OP_READ);
+	}
+	
+	private void setInterest(int ops)
+	{
+		if(key.interestOps() != ops)
+		{
+			key.interestOps(ops);
+		}
+	}
+	
+	//closes the channel on the EventLoop, safe to call from any thread
+	@Override
+	public void disconnect()
+	{
+		loop.execute(this::close);
+	}
+	
+	//writes what the socket buffer takes of what is queued, like a refused join's answer, then closes the channel
+	protected void closeAfterFlush() throws IOException
+	{
+		flush();
+		close();
+	}
+	
+	//closes the channel, safe to call more than once
+	public void close()
+	{
+		if(closed)
+		{
+			return;
+		}
+		closed = true;
+		//only if nothing is left half written, the last bytes would land in the middle of a message
+		ByteBuffer last = closingBytes();
+		if(last != null && gatherCount == 0)
+		{
+			try
+			{
+				channel.write(last);
+			}
+			catch (IOException e)
+			{
+				//the peer is gone already
+			}
+		}
+		outbound.clear();
+		Arrays.fill(gather, null);
+		gatherCount = 0;
+		leave();
+		
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		System.out.println("User Disconnected (" + outbound.describe() + ")");
+	}
+	
+	//bytes written just before the channel is closed, if the socket buffer takes them, null for none
+	protected ByteBuffer closingBytes()
+	{
+		return null;
+	}
+	
+}
@@ -0,0 +1,72 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/*
+ * NIOSERVER CLASS:
+ * 
+ * Accept loop used when the Server is started with -mode=nio
+ * 
+ * Accepted connections are made non-blocking and handed out
+ * round robin to a small, fixed set of EventLoop threads, so the
+ * number of threads no longer grows with the number of Clients
+ * 
+ * Each connection gets a NioClientHandler, which is added to the
+ * Server's ClientRegistry just like a ClientHandler in thread mode
+ */
+
+public class NioServer {
+	private Server server;
+	private ServerConfig config;
+	private EventLoop[] loops;
+
+	
+	public NioServer(Server server, ServerConfig config)
+	{
+		this.server = server;
+		this.config = config;
+	}
+	
+	public void run() throws IOException
+	{
+		loops = new EventLoop[config.getEventLoops()];
+		for(int i = 0; i < loops.length; i++)
+		{
+			loops[i] = new EventLoop("event-loop-" + i);
+			loops[i].start();
+		}
+		
+		//attempting to open server
+		try(ServerSocketChannel acceptor = ServerSocketChannel.open())
+		{
+			acceptor.bind(new InetSocketAddress(config.getPort()));
+			
+			//listening
+			System.out.println("Server is listening on port " + config.getPort() + " with " + loops.length + " event loops");
+			int next = 0;
+			while(true)
+			{
+				//accepting new clients
+				SocketChannel channel = acceptor.accept();
+				channel.configureBlocking(false);
+				//chat lines are small, Nagle would hold them back waiting for ACKs
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				System.out.println("New User Connected");
+				server.getMetrics().recordConnection();
+				
+				EventLoop loop = loops[next];
+				next = (next + 1) % loops.length;
+				
+				//creating instance of NioClientHandler for new client connecting
+				NioClientHandler newUser = new NioClientHandler(channel, loop, server);
+				server.getRegistry().add(newUser);
+				newUser.register();
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,136 @@
+package server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * OUTBOUNDQUEUE CLASS:
+ * 
+ * Bounded queue of messages waiting to be written to one Client
+ * 
+ * Broadcasting threads only offer() into it, the Client's own writer
+ * (a writer thread in thread/virtual mode, its EventLoop in nio mode)
+ * takes messages out, so a Client with a full TCP window only ever
+ * holds up its own queue
+ * 
+ * When the queue is full the OverflowPolicy decides what happens, and
+ * the queue keeps depth metrics (current, peak, enqueued, dropped) that
+ * are reported when the Client disconnects
+ */
+
+public class OutboundQueue<T> {
+	private final LinkedBlockingQueue<T> queue;
+	private final OverflowPolicy policy;
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile int peakDepth = 0;
+
+	
+	public OutboundQueue(int capacity, OverflowPolicy policy)
+	{
+		//linked rather than array backed, an idle Client should not pay for its full capacity
+		this.queue = new LinkedBlockingQueue<T>(capacity);
+		this.policy = policy;
+	}
+	
+	/*
+	 * offer method:
+	 * 
+	 * queues a message following the OverflowPolicy, returns false
+	 * when the policy is DISCONNECT and the queue is full, the
+	 * caller is then responsible for disconnecting the Client
+	 */
+	public boolean offer(T message) throws InterruptedException
+	{
+		switch(policy)
+		{
+		case BLOCK:
+			queue.put(message);
+			break;
+		case DROP_OLDEST:
+			while(!queue.offer(message))
+			{
+				if(queue.poll() != null)
+				{
+					dropped.incrementAndGet();
+				}
+			}
+			break;
+		case DISCONNECT:
+			if(!queue.offer(message))
+			{
+				dropped.incrementAndGet();
+				return false;
+			}
+			break;
+		}
+		
+		enqueued.incrementAndGet();
+		
+		//racy on purpose, an occasional lost peak update is fine for a metric
+		int depth = queue.size();
+		if(depth > peakDepth)
+		{
+			peakDepth = depth;
+		}
+		return true;
+	}
+	
+	//waits for the next message, used by blocking writer threads
+	public T take() throws InterruptedException
+	{
+		return queue.take();
+	}
+	
+	//next message without removing it, null when empty
+	public T peek()
+	{
+		return queue.peek();
+	}
+	
+	//removes the next message, null when empty
+	public T poll()
+	{
+		return queue.poll();
+	}
+	
+	//removes the next message, waiting up to the passed time for one to arrive
+	public T poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return queue.poll(timeout, unit);
+	}
+	
+	public void clear()
+	{
+		queue.clear();
+	}
+	
+	//one line summary of the queue metrics for the server log
+	public String describe()
+	{
+		return "queue depth " + depth() + ", peak " + peakDepth + ", enqueued " + enqueued.get() + ", dropped " + dropped.get();
+	}
+	
+	//GETTERS AND SETTERS
+	public int depth() {
+		return queue.size();
+	}
+	
+	public int getPeakDepth() {
+		return peakDepth;
+	}
+
+	public long getEnqueued() {
+		return enqueued.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+}
@@ -0,0 +1,25 @@
+package server;
+
+/*
+ * OVERFLOWPOLICY ENUM:
+ * 
+ * What a ClientHandler's OutboundQueue does when a message arrives
+ * and the queue is already full because its Client reads too slowly
+ * 
+ * -DROP_OLDEST: the oldest queued message is thrown away to make room
+ * -DISCONNECT: the slow Client is disconnected
+ * -BLOCK: the sending thread waits for room (thread and virtual modes only,
+ *  an EventLoop must never wait on another connection)
+ */
+
+public enum OverflowPolicy {
+	DROP_OLDEST,
+	DISCONNECT,
+	BLOCK;
+	
+	//parses the -overflow option value, "drop-oldest" for example
+	public static OverflowPolicy fromOption(String value)
+	{
+		return valueOf(value.toUpperCase().replace('-', '_'));
+	}
+}
@@ -0,0 +1,59 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * RECEIVEEVENT CLASS:
+ * 
+ * JDK Flight Recorder event for one line or Frame handled from a Client,
+ * from the moment it has been framed until its command is done, so any
+ * DispatchEvent for the broadcast it caused is nested inside it
+ * 
+ * Like every event of the Server, it records no stack trace and is only
+ * filled in when shouldCommit() says the recording wants it, so leaving
+ * it enabled costs a couple of nanoTime() calls per message, see
+ * -XX:StartFlightRecording
+ */
+
+@Name("chatapp.Receive")
+@Label("Message Receive")
+@Category({"ChatApp", "Server"})
+@Description("A line or Frame from a Client, parsed and handled")
+@StackTrace(false)
+public class ReceiveEvent extends Event {
+	@Label("Username")
+	String username;
+	
+	@Label("Binary")
+	boolean binary;
+	
+	@Label("Opcode")
+	@Description("Frame opcode, or the one the text line stands for")
+	int opcode;
+	
+	@Label("Size")
+	@DataAmount
+	int size;
+	
+	
+	//ends the event and commits it with the passed fields, if the recording wants it
+	void finish(String username, boolean binary, int opcode, int size)
+	{
+		end();
+		if(shouldCommit())
+		{
+			this.username = username;
+			this.binary = binary;
+			this.opcode = opcode;
+			this.size = size;
+			commit();
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+package server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * ROOM CLASS:
+ * 
+ * One named chatroom, every joined Client is in exactly one Room at a
+ * time ("lobby" until it sends "/join room"), and broadcasts only go to
+ * the members of the sender's Room
+ * 
+ * Members are kept in a ConcurrentHashMap backed set, like the
+ * ClientRegistry, so entering and leaving are O(1) from any thread and
+ * a broadcast iterating members() never blocks them
+ * 
+ * In a Cluster the Room also lists the usernames of the members connected
+ * to other nodes, see remoteMembers(), their messages arrive through the
+ * Cluster and are only delivered to the local members here
+ * 
+ * A Room may have a TokenBucket limiting its broadcasts, shared by all
+ * its members, so a crowd of Clients that each stay under their own
+ * limit still cannot flood it, see ClientHandler.admit()
+ * 
+ * Room metrics:
+ * -broadcasts: messages broadcast to the Room
+ * -deliveries: copies of them queued for members, the Room's fan-out
+ * -entries: times a Client entered the Room
+ */
+
+public class Room {
+	private final String name;
+	private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+	private final Set<String> remoteMembers = ConcurrentHashMap.newKeySet();
+	private final LongAdder broadcasts = new LongAdder();
+	private final LongAdder deliveries = new LongAdder();
+	private final LongAdder entries = new LongAdder();
+	private final TokenBucket limit;
+
+
+	public Room(String name)
+	{
+		this(name, null);
+	}
+
+	public Room(String name, TokenBucket limit)
+	{
+		this.name = name;
+		this.limit = limit;
+	}
+
+	//only called by RoomRegistry, which also creates and drops Rooms
+	void add(ClientHandler member)
+	{
+		if(members.add(member))
+		{
+			entries.increment();
+		}
+	}
+
+	void remove(ClientHandler member)
+	{
+		members.remove(member);
+	}
+
+	void addRemote(String username)
+	{
+		if(remoteMembers.add(username))
+		{
+			entries.increment();
+		}
+	}
+
+	void removeRemote(String username)
+	{
+		remoteMembers.remove(username);
+	}
+
+	//records one broadcast queued for the passed number of members
+	public void recordBroadcast(int recipients)
+	{
+		broadcasts.increment();
+		deliveries.add(recipients);
+	}
+
+	//live view of the members, safe to iterate while Clients come and go
+	public Collection<ClientHandler> members()
+	{
+		return Collections.unmodifiableSet(members);
+	}
+
+	//usernames of the members connected to other nodes of the Cluster
+	public Collection<String> remoteMembers()
+	{
+		return Collections.unmodifiableSet(remoteMembers);
+	}
+
+	//local and remote members
+	public int size()
+	{
+		return members.size() + remoteMembers.size();
+	}
+
+	public boolean isEmpty()
+	{
+		return members.isEmpty() && remoteMembers.isEmpty();
+	}
+
+	//one line summary of the Room's metrics for the server log
+	public String describe()
+	{
+		return String.format("%s: %d members (%d remote), broadcasts %d, deliveries %d, entries %d",
+				name, size(), remoteMembers.size(), broadcasts.sum(), deliveries.sum(), entries.sum());
+	}
+
+	//GETTERS AND SETTERS
+	public String getName() {
+		return name;
+	}
+
+	//null if the Room's broadcasts are not limited
+	public TokenBucket getLimit() {
+		return limit;
+	}
+
+	public long getBroadcasts() {
+		return broadcasts.sum();
+	}
+
+	public long getDeliveries() {
+		return deliveries.sum();
+	}
+
+	public long getEntries() {
+		return entries.sum();
+	}
+
+}
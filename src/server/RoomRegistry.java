@@ -0,0 +1,204 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * ROOMREGISTRY CLASS:
+ * 
+ * Thread safe record of the Server's Rooms by name
+ * 
+ * A Room is created by the first Client entering it and dropped again
+ * once its last member leaves, except the lobby, which always exists,
+ * so thousands of short lived Rooms cost nothing once they are empty
+ * 
+ * enter() and exit() run inside ConcurrentHashMap.compute() for the
+ * Room's name, so a Client entering a Room while its last member leaves
+ * either finds it still there or creates a new one, never a dropped one
+ * 
+ * Members list versions:
+ * every change to any Room's members counts up one version shared by all
+ * Rooms, the mutators return the version of their own change to stamp
+ * the delta broadcast for it, a roster() snapshot is as of the version
+ * read before its members, so a Client can skip every change numbered at
+ * or below its snapshot, even a late one from the Room it just left
+ * 
+ * With a room rate, every Room is created with its own TokenBucket
+ * limiting its broadcasts, see Room.getLimit()
+ */
+
+public class RoomRegistry {
+	public static final String LOBBY = "lobby";
+	public static final int MAX_NAME_LENGTH = 64;
+
+	private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+	private final AtomicLong version = new AtomicLong();
+	private final int roomRate;
+	private final int roomBurst;
+
+
+	public RoomRegistry()
+	{
+		this(0, 0);
+	}
+
+	//Rooms limited to roomRate broadcasts a second in bursts of roomBurst, 0 for no limit
+	public RoomRegistry(int roomRate, int roomBurst)
+	{
+		this.roomRate = roomRate;
+		this.roomBurst = roomBurst;
+		rooms.put(LOBBY, newRoom(LOBBY));
+	}
+
+	private Room newRoom(String name)
+	{
+		return new Room(name, roomRate > 0 ? new TokenBucket(roomRate, roomBurst) : null);
+	}
+
+	/*
+	 * enter method:
+	 * 
+	 * adds the passed ClientHandler to the named Room, creating it if
+	 * needed, and returns the version of this change, the Room can be
+	 * looked up with get() afterwards, it is not dropped while it has
+	 * the ClientHandler as a member
+	 */
+	public long enter(String name, ClientHandler handler)
+	{
+		long[] changed = new long[1];
+		rooms.compute(name, (key, room)->{
+			if(room == null)
+			{
+				room = newRoom(key);
+			}
+			room.add(handler);
+			changed[0] = version.incrementAndGet();
+			return room;
+		});
+		return changed[0];
+	}
+
+	//takes the passed ClientHandler out of the Room, dropping the Room if it is now empty, returns the version of this change
+	public long exit(Room room, ClientHandler handler)
+	{
+		long[] changed = new long[1];
+		rooms.computeIfPresent(room.getName(), (key, current)->{
+			current.remove(handler);
+			changed[0] = version.incrementAndGet();
+			return current.isEmpty() && !key.equals(LOBBY) ? null : current;
+		});
+		return changed[0];
+	}
+
+	//records a Client of another Cluster node as a member of the named Room, returns the version of this change
+	public long enterRemote(String name, String username)
+	{
+		long[] changed = new long[1];
+		rooms.compute(name, (key, room)->{
+			if(room == null)
+			{
+				room = newRoom(key);
+			}
+			room.addRemote(username);
+			changed[0] = version.incrementAndGet();
+			return room;
+		});
+		return changed[0];
+	}
+
+	//forgets a remote member, returns the version of this change, 0 if there is no such Room
+	public long exitRemote(String name, String username)
+	{
+		long[] changed = new long[1];
+		rooms.computeIfPresent(name, (key, current)->{
+			current.removeRemote(username);
+			changed[0] = version.incrementAndGet();
+			return current.isEmpty() && !key.equals(LOBBY) ? null : current;
+		});
+		return changed[0];
+	}
+
+	/*
+	 * roster method:
+	 * 
+	 * snapshot of the passed Room's members, local and remote, as of the
+	 * version read before them, a change made while they are read may or
+	 * may not be in it, but its version is higher, so Clients apply it
+	 * again, entering and leaving twice change nothing
+	 */
+	public EncodedMessage roster(Room room)
+	{
+		long current = version.get();
+		List<String> usernames = new ArrayList<String>(room.size());
+		for(ClientHandler member : room.members())
+		{
+			usernames.add(member.getUsername());
+		}
+		usernames.addAll(room.remoteMembers());
+		return EncodedMessage.roster(current, usernames);
+	}
+
+	//version of the latest members list change
+	public long getVersion()
+	{
+		return version.get();
+	}
+
+	//Room names are 1 to MAX_NAME_LENGTH characters without whitespace
+	public static boolean isValidName(String name)
+	{
+		if(name.isEmpty() || name.length() > MAX_NAME_LENGTH)
+		{
+			return false;
+		}
+		for(int i = 0; i < name.length(); i++)
+		{
+			if(Character.isWhitespace(name.charAt(i)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//Room with the passed name, null if nobody is in it
+	public Room get(String name)
+	{
+		return rooms.get(name);
+	}
+
+	//live view of every Room
+	public Collection<Room> rooms()
+	{
+		return Collections.unmodifiableCollection(rooms.values());
+	}
+
+	public int size()
+	{
+		return rooms.size();
+	}
+
+	/*
+	 * describe method:
+	 * 
+	 * number of Rooms and the metrics of the count largest ones, the
+	 * rest are left out so thousands of Rooms do not flood the log
+	 */
+	public String describe(int count)
+	{
+		List<Room> largest = new ArrayList<Room>(rooms.values());
+		largest.sort((a, b)->Integer.compare(b.size(), a.size()));
+
+		StringBuilder description = new StringBuilder(rooms.size() + " rooms");
+		for(Room room : largest.subList(0, Math.min(count, largest.size())))
+		{
+			description.append("\n    ").append(room.describe());
+		}
+		return description.toString();
+	}
+
+}
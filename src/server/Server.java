@@ -2,7 +2,17 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import protocol.Frame;
 
 /*
  * SERVER CLASS:
@@ -13,33 +23,134 @@ import java.util.ArrayList;
  * When new Client socket is accepted a instance of
  * ClientHandler is created to manage the Client's traffic
  * 
+ * Started with -mode=virtual, each ClientHandler runs on a virtual
+ * thread instead, and with -mode=nio connections are served by
+ * NioServer's event loops (see ServerConfig for all options)
+ * 
  * Contains broadcastMessage(String message, ClientHandler user), 
- * important  method that sends passed message to all Clients except 
- * the Client (user) that sent it
+ * important  method that sends passed message to all Clients in the
+ * Room of the Client (user) that sent it, except that Client
+ * 
+ * Started with -log=directory, every chat line Clients broadcast and
+ * every direct message delivered is also kept in a MessageLog, which
+ * history() replays to joining Clients, the Server's own notices and
+ * members list changes are not
+ * 
+ * Started with -clusterPort, the Server is one node of a Cluster, its
+ * broadcasts and direct messages for Clients of other nodes are passed on
+ * through the Cluster, which hands theirs to deliver()
+ * 
+ * The ServerMetrics are registered as a JMX MBean on startup, and served
+ * as plain text with -metricsPort, see MetricsEndpoint
+ * 
+ * Clients that go quiet are pinged and, if they do not answer, dropped
+ * as if they had logged out, every connection's heartbeat check runs on
+ * one TimingWheel, see ClientHandler.checkHeartbeat()
+ * 
+ * Started with -webSocketPort, browsers connect over WebSocket as well,
+ * see WebSocketServer, and chat in the same Rooms as TCP Clients
+ * 
+ * A message's way through the Server can be traced with JDK Flight
+ * Recorder (-XX:StartFlightRecording), as a ReceiveEvent when it is
+ * handled, a DispatchEvent for its broadcast and a WriteEvent for every
+ * socket write carrying it
  */
 
 public class Server {
-	private ArrayList<ClientHandler> clients = new ArrayList<ClientHandler>();
-	private ArrayList<String> usernames = new ArrayList<String>();
+	//Rooms whose metrics are printed by the stats reporter, the largest ones
+	private static final int STATS_ROOMS = 5;
+	//most chat lines replayed to a joining Client when only -replayMinutes limits them
+	private static final int MAX_REPLAY = 1000;
+	//heartbeat checks fire up to a tick late, a wheel turn is about 50 seconds
+	private static final long HEARTBEAT_TICK_MILLIS = 100;
+	private static final int HEARTBEAT_WHEEL_SIZE = 512;
+	
+	private ClientRegistry registry = new ClientRegistry();
+	private RoomRegistry rooms;
+	private ServerMetrics metrics = new ServerMetrics(registry);
+	private ServerConfig config;
+	private ThreadFactory handlerThreads;
+	private MessageLog messageLog;
+	private Cluster cluster;
+	private TimingWheel heartbeats;
 
 	
+	public Server()
+	{
+		this(new ServerConfig());
+	}
+	
+	public Server(ServerConfig config)
+	{
+		this.config = config;
+		this.rooms = new RoomRegistry(config.getRoomRate(), config.getRoomBurst());
+	}
+	
 	public void run() throws IOException{
 		
+		if(config.getLogDirectory() != null)
+		{
+			//a Room's tail has to hold as many chat lines as history() replays
+			int replay = config.getReplayMessages() > 0 ? config.getReplayMessages() : config.getReplayMinutes() > 0 ? MAX_REPLAY : 0;
+			messageLog = new MessageLog(config, replay);
+			//commits whatever is still queued when the Server is stopped
+			Runtime.getRuntime().addShutdownHook(new Thread(messageLog::close, "message-log-shutdown"));
+		}
+		
+		if(config.getClusterPort() > 0)
+		{
+			cluster = new Cluster(this, new TcpMeshBackplane(config));
+			cluster.start();
+		}
+		
+		if(config.getHeartbeatSeconds() > 0)
+		{
+			heartbeats = new TimingWheel(HEARTBEAT_TICK_MILLIS, TimeUnit.MILLISECONDS, HEARTBEAT_WHEEL_SIZE);
+			heartbeats.start();
+		}
+		
+		registerMetrics();
+		if(config.getMetricsPort() > 0)
+		{
+			new MetricsEndpoint(metrics, config.getMetricsPort()).start();
+		}
+		
+		if(config.getStatsSeconds() > 0)
+		{
+			startStatsReporter();
+		}
+		
+		if(config.getWebSocketPort() > 0)
+		{
+			new WebSocketServer(this, config).start();
+		}
+		
+		if(config.getMode().equals(ServerConfig.MODE_NIO))
+		{
+			new NioServer(this, config).run();
+			return;
+		}
+		
+		handlerThreads = handlerThreadFactory();
+		
 		//attempting to open server
-		try(ServerSocket server = new ServerSocket(5000))
+		try(ServerSocket server = new ServerSocket(config.getPort()))
 		{
 			//listening
-			System.out.println("Server is listening on port 5000");
+			System.out.println("Server is listening on port " + config.getPort());
 			while(true)
 			{
 				//accepting new clients
 				Socket socket = server.accept();
+				//chat lines are small, Nagle would hold them back waiting for ACKs
+				socket.setTcpNoDelay(true);
 				System.out.println("New User Connected");
+				metrics.recordConnection();
 				
 				//creating instance of ClientHandler for new client connecting
 				ClientHandler newUser = new ClientHandler(socket, this);
-				clients.add(newUser);
-				newUser.start();
+				registry.add(newUser);
+				handlerThreads.newThread(newUser).start();
 			}
 		}
 		catch (IOException e)
@@ -49,41 +160,243 @@ public class Server {
 	}
 	
 	
+	//registers the ServerMetrics with the platform MBeanServer, named after the Server's port
+	private void registerMetrics()
+	{
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName("chatapp:type=ServerMetrics,port=" + config.getPort()));
+		}
+		catch (JMException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	//prints the ServerMetrics every -stats seconds on a daemon thread
+	private void startStatsReporter()
+	{
+		Thread reporter = new Thread(()->{
+			while(true)
+			{
+				try
+				{
+					Thread.sleep(config.getStatsSeconds() * 1000L);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				String stats = "Stats: " + registry.size() + " connections, " + metrics.describe();
+				if(messageLog != null)
+				{
+					stats += ", " + messageLog.describe();
+				}
+				if(cluster != null)
+				{
+					stats += ", " + cluster.describe();
+				}
+				stats += ", " + rooms.describe(STATS_ROOMS);
+				System.out.println(stats);
+			}
+		}, "stats-reporter");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+	
+	/*
+	 * handlerThreadFactory method:
+	 * 
+	 * in thread mode every ClientHandler gets a normal platform thread,
+	 * in virtual mode it gets a virtual thread so blocked readLine()
+	 * calls cost heap instead of an OS thread and its stack
+	 * 
+	 * virtual threads are looked up reflectively so the Server still
+	 * builds for Java 8 and only needs JDK 21 when virtual mode is used
+	 */
+	private ThreadFactory handlerThreadFactory()
+	{
+		if(!config.getMode().equals(ServerConfig.MODE_VIRTUAL))
+		{
+			return Thread::new;
+		}
+		
+		try
+		{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new IllegalStateException("Virtual mode needs JDK 21 or newer, running on " + System.getProperty("java.version"), e);
+		}
+	}
+	
 	/*
 	 * broadcastMessage method:
 	 * 
 	 * uses ClientHandler.sendMessage() to send passed message to 
-	 * all Clients except the Client passed (user)
+	 * all Clients in the passed Room (by default the Room of the Client
+	 * passed, user) except the Client passed
+	 * 
+	 * iterates the Room's live view of its members, so Clients may join
+	 * or leave on other threads while a broadcast is running, and a
+	 * broadcast costs the size of the Room, not of the Server
+	 * 
+	 * every Client is sent the same EncodedMessage, so it is encoded
+	 * once per protocol
+	 * 
+	 * a chat line is handed to the MessageLog first, which only queues it
 	 */
 	public void broadcastMessage(String message, ClientHandler user)
 	{
-		for(ClientHandler x: clients)
+		broadcastMessage(EncodedMessage.chat(message), user);
+	}
+	
+	public void broadcastMessage(EncodedMessage message, ClientHandler user)
+	{
+		Room room = user.getRoom();
+		if(room != null)
+		{
+			broadcastMessage(room, message, user);
+		}
+	}
+	
+	public void broadcastMessage(Room room, EncodedMessage message, ClientHandler user)
+	{
+		if(cluster != null)
+		{
+			cluster.broadcast(room, message);
+		}
+		deliver(room, message, user);
+	}
+	
+	//sends the passed message to this node's members of the Room except user, see broadcastMessage()
+	public void deliver(Room room, EncodedMessage message, ClientHandler user)
+	{
+		//history is what Clients said, not the Server's notices or members list changes
+		if(message.getType() == Frame.CHAT && !message.isNotice())
+		{
+			logMessage(room.getName(), message);
+		}
+		
+		DispatchEvent event = new DispatchEvent();
+		event.begin();
+		long start = System.nanoTime();
+		int recipients = 0;
+		for(ClientHandler x: room.members())
 		{
 			if (x != user)
 			{
 				x.sendMessage(message);
+				recipients++;
+			}
+		}
+		metrics.recordFanout(System.nanoTime() - start);
+		room.recordBroadcast(recipients);
+		event.finish(room, message, recipients);
+	}
+	
+	/*
+	 * history method:
+	 * 
+	 * the chat lines of the passed Room a Client entering it is sent from
+	 * the MessageLog, the newest -replay of them (MAX_REPLAY if only -replayMinutes was given)
+	 * and none older than -replayMinutes
+	 * 
+	 * the lines are slices of the mapped log segments (but for the newest
+	 * few, see LogSegment.read()) until they are written, so a burst of
+	 * joins costs no copies of the history
+	 */
+	public List<EncodedMessage> history(Room room)
+	{
+		List<EncodedMessage> history = new ArrayList<EncodedMessage>();
+		if(messageLog == null || (config.getReplayMessages() == 0 && config.getReplayMinutes() == 0))
+		{
+			return history;
+		}
+		
+		int max = config.getReplayMessages() > 0 ? config.getReplayMessages() : MAX_REPLAY;
+		long since = config.getReplayMinutes() > 0 ? System.currentTimeMillis() - config.getReplayMinutes() * 60 * 1000 : 0;
+		try
+		{
+			for(LogRecord record : messageLog.tail(room.getName(), max, since))
+			{
+				history.add(EncodedMessage.logged(record.getFrame()));
 			}
 		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		return history;
+	}
+	
+	//true if the named Client is connected to another node of the Cluster
+	public boolean isRemoteUser(String username)
+	{
+		return cluster != null && cluster.isRemoteUser(username);
+	}
+	
+	//keeps the passed message, broadcast to the named Room, in the MessageLog, if the Server has one
+	public void logMessage(String room, EncodedMessage message)
+	{
+		if(messageLog != null)
+		{
+			messageLog.append(room, message);
+		}
 	}
 	
 	//GETTERS AND SETTERS
-	public ArrayList<String> getUsernames()
+	public ServerConfig getConfig()
 	{
-		return this.usernames;
+		return this.config;
 	}
-
-	public ArrayList<ClientHandler> getClients() {
-		return clients;
+	
+	//thread or virtual thread factory used for ClientHandler threads
+	public ThreadFactory getHandlerThreads()
+	{
+		return this.handlerThreads;
 	}
-
-	public void setClients(ArrayList<ClientHandler> clients) {
-		this.clients = clients;
+	
+	public ClientRegistry getRegistry()
+	{
+		return this.registry;
+	}
+	
+	public RoomRegistry getRooms()
+	{
+		return this.rooms;
+	}
+	
+	public ServerMetrics getMetrics()
+	{
+		return this.metrics;
+	}
+	
+	//null if heartbeats are off or the Server was never run()
+	public TimingWheel getHeartbeats()
+	{
+		return this.heartbeats;
+	}
+	
+	//null unless the Server was started with -clusterPort
+	public Cluster getCluster()
+	{
+		return this.cluster;
+	}
+	
+	//null unless the Server was started with -log
+	public MessageLog getMessageLog()
+	{
+		return this.messageLog;
 	}
 	
 	//start Server
 	public static void main(String args[]) throws IOException
 	{
-		Server server = new Server();
+		Server server = new Server(ServerConfig.parse(args));
 		server.run();
 	}
 
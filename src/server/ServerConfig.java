@@ -0,0 +1,478 @@
+package server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/*
+ * SERVERCONFIG CLASS:
+ * 
+ * Holds the startup options for a Server, parsed from the
+ * command line arguments passed to Server.main()
+ * 
+ * Options are given as "-name=value", for example:
+ * 
+ *    java server.Server -mode=nio -port=5000 -loops=4 -queue=16384 -overflow=disconnect
+ * 
+ * Modes:
+ * -thread: one blocking ClientHandler thread per connection (default)
+ * -virtual: one blocking ClientHandler virtual thread per connection (JDK 21+)
+ * -nio: non-blocking Selector event loops shared by all connections
+ * 
+ * -queue and -overflow size each Client's OutboundQueue and pick its
+ * OverflowPolicy (drop-oldest, disconnect or block)
+ * 
+ * -flushMicros lets thread and virtual mode writers wait that long for
+ * more messages before writing a batch (nio mode batches per EventLoop
+ * tick), -stats prints the ServerMetrics every that many seconds
+ * 
+ * -log=directory keeps every broadcast and direct message in a MessageLog
+ * in that directory, -logSegmentMB sizes its segment files and
+ * -logRetentionMinutes and -logRetentionMB limit how much of it is kept
+ * (0 keeps everything)
+ * 
+ * -replay=N sends joining Clients the last N chat lines from the log and
+ * -replayMinutes=T only those from the last T minutes, either needs -log
+ * 
+ * -clusterPort=port links this Server with the other nodes of a Cluster
+ * through a Backplane listening on that port, -peers=host:port,host:port
+ * names the other nodes' cluster ports, -node names this node (host and
+ * client port by default) and -backplane picks the Backplane (tcp)
+ * 
+ * -deflate=false stops the Server from agreeing on FLAG_DEFLATE, so
+ * large Frames are sent as they are even to Clients that offer it
+ * 
+ * -heartbeatSeconds=N pings a Client that has sent nothing for N seconds
+ * and drops it if it still sends nothing (not even the pong) for another
+ * N seconds, 0 turns heartbeats off
+ * 
+ * -clientRate=N lets each Client send N messages a second, in bursts of
+ * up to -clientBurst (N by default), -roomRate and -roomBurst limit the
+ * broadcasts of each Room the same way, 0 (the default) leaves them
+ * unlimited, -throttle picks the ThrottlePolicy for messages over a limit
+ * (drop, delay or disconnect)
+ * 
+ * -webSocketPort=port also accepts browsers on that port, speaking RFC 6455
+ * WebSocket over non-blocking EventLoops in any mode, see WebSocketServer,
+ * like -mode=nio it rules out -overflow=block and -throttle=delay
+ * 
+ * -metricsPort=port serves the ServerMetrics as plain text on that port
+ * of the loopback address, see MetricsEndpoint, they are always readable
+ * over JMX
+ */
+
+public class ServerConfig {
+	public static final String MODE_THREAD = "thread";
+	public static final String MODE_VIRTUAL = "virtual";
+	public static final String MODE_NIO = "nio";
+	public static final String BACKPLANE_TCP = "tcp";
+
+	private String mode = MODE_THREAD;
+	private int port = 5000;
+	private int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	private int outboundQueueCapacity = 16384;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+	private long flushMicros = 0;
+	private int statsSeconds = 0;
+	private String logDirectory = null;
+	private long logSegmentBytes = 64L * 1024 * 1024;
+	private long logRetentionMinutes = 7 * 24 * 60;
+	private long logRetentionBytes = 0;
+	private int replayMessages = 0;
+	private long replayMinutes = 0;
+	private String backplane = BACKPLANE_TCP;
+	private int clusterPort = 0;
+	private String[] peers = new String[0];
+	private String nodeName = null;
+	private boolean deflate = true;
+	private int metricsPort = 0;
+	private int webSocketPort = 0;
+	private int heartbeatSeconds = 30;
+	private int clientRate = 0;
+	private int clientBurst = 0;
+	private int roomRate = 0;
+	private int roomBurst = 0;
+	private ThrottlePolicy throttlePolicy = ThrottlePolicy.DROP;
+
+
+	/*
+	 * parse method:
+	 * 
+	 * builds a ServerConfig from "-name=value" arguments, unknown
+	 * or badly formed options stop the Server from starting
+	 */
+	public static ServerConfig parse(String[] args)
+	{
+		ServerConfig config = new ServerConfig();
+
+		for(String arg : args)
+		{
+			int split = arg.indexOf('=');
+			if(!arg.startsWith("-") || split < 0)
+			{
+				throw new IllegalArgumentException("Options must look like -name=value: " + arg);
+			}
+
+			String name = arg.substring(1, split);
+			String value = arg.substring(split + 1);
+
+			switch(name)
+			{
+			case "mode":
+				if(!value.equals(MODE_THREAD) && !value.equals(MODE_VIRTUAL) && !value.equals(MODE_NIO))
+				{
+					throw new IllegalArgumentException("Unknown server mode: " + value);
+				}
+				config.mode = value;
+				break;
+			case "port":
+				config.port = Integer.parseInt(value);
+				break;
+			case "loops":
+				config.eventLoops = Math.max(1, Integer.parseInt(value));
+				break;
+			case "queue":
+				config.outboundQueueCapacity = Math.max(1, Integer.parseInt(value));
+				break;
+			case "overflow":
+				config.overflowPolicy = OverflowPolicy.fromOption(value);
+				break;
+			case "flushMicros":
+				config.flushMicros = Math.max(0, Long.parseLong(value));
+				break;
+			case "stats":
+				config.statsSeconds = Math.max(0, Integer.parseInt(value));
+				break;
+			case "log":
+				config.logDirectory = value;
+				break;
+			case "logSegmentMB":
+				//segment positions are indexed as ints
+				config.logSegmentBytes = Math.min(1024, Math.max(1, Long.parseLong(value))) * 1024 * 1024;
+				break;
+			case "logRetentionMinutes":
+				config.logRetentionMinutes = Math.max(0, Long.parseLong(value));
+				break;
+			case "logRetentionMB":
+				config.logRetentionBytes = Math.max(0, Long.parseLong(value)) * 1024 * 1024;
+				break;
+			case "replay":
+				config.replayMessages = Math.max(0, Integer.parseInt(value));
+				break;
+			case "replayMinutes":
+				config.replayMinutes = Math.max(0, Long.parseLong(value));
+				break;
+			case "backplane":
+				if(!value.equals(BACKPLANE_TCP))
+				{
+					throw new IllegalArgumentException("Unknown backplane: " + value);
+				}
+				config.backplane = value;
+				break;
+			case "clusterPort":
+				config.clusterPort = Integer.parseInt(value);
+				break;
+			case "peers":
+				config.peers = value.isEmpty() ? new String[0] : value.split(",");
+				for(String peer : config.peers)
+				{
+					if(peer.lastIndexOf(':') <= 0)
+					{
+						throw new IllegalArgumentException("Peers must look like host:port: " + peer);
+					}
+				}
+				break;
+			case "node":
+				config.nodeName = value;
+				break;
+			case "heartbeatSeconds":
+				config.heartbeatSeconds = Math.max(0, Integer.parseInt(value));
+				break;
+			case "clientRate":
+				config.clientRate = Math.max(0, Integer.parseInt(value));
+				break;
+			case "clientBurst":
+				config.clientBurst = Math.max(0, Integer.parseInt(value));
+				break;
+			case "roomRate":
+				config.roomRate = Math.max(0, Integer.parseInt(value));
+				break;
+			case "roomBurst":
+				config.roomBurst = Math.max(0, Integer.parseInt(value));
+				break;
+			case "throttle":
+				config.throttlePolicy = ThrottlePolicy.fromOption(value);
+				break;
+			case "webSocketPort":
+				config.webSocketPort = Integer.parseInt(value);
+				break;
+			case "metricsPort":
+				config.metricsPort = Integer.parseInt(value);
+				break;
+			case "deflate":
+				if(!value.equals("true") && !value.equals("false"))
+				{
+					throw new IllegalArgumentException("-deflate must be true or false: " + value);
+				}
+				config.deflate = Boolean.parseBoolean(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+		
+		//WebSocket Clients always run on EventLoops, whatever the mode
+		boolean eventLoops = config.mode.equals(MODE_NIO) || config.webSocketPort > 0;
+		if(eventLoops && config.overflowPolicy == OverflowPolicy.BLOCK)
+		{
+			throw new IllegalArgumentException("-overflow=block would stall event loops, use drop-oldest or disconnect with -mode=nio or -webSocketPort");
+		}
+
+		if(eventLoops && config.throttlePolicy == ThrottlePolicy.DELAY)
+		{
+			throw new IllegalArgumentException("-throttle=delay would stall event loops, use drop or disconnect with -mode=nio or -webSocketPort");
+		}
+
+		if(config.peers.length > 0 && config.clusterPort <= 0)
+		{
+			throw new IllegalArgumentException("-peers needs -clusterPort for the peers to link back to");
+		}
+		
+		if((config.replayMessages > 0 || config.replayMinutes > 0) && config.logDirectory == null)
+		{
+			throw new IllegalArgumentException("-replay and -replayMinutes replay the message log, they need -log");
+		}
+
+		return config;
+	}
+
+	//GETTERS AND SETTERS
+	public String getMode() {
+		return mode;
+	}
+
+	public void setMode(String mode) {
+		this.mode = mode;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	public int getEventLoops() {
+		return eventLoops;
+	}
+
+	public void setEventLoops(int eventLoops) {
+		this.eventLoops = eventLoops;
+	}
+
+	public int getOutboundQueueCapacity() {
+		return outboundQueueCapacity;
+	}
+
+	public void setOutboundQueueCapacity(int outboundQueueCapacity) {
+		this.outboundQueueCapacity = outboundQueueCapacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public long getFlushMicros() {
+		return flushMicros;
+	}
+
+	public void setFlushMicros(long flushMicros) {
+		this.flushMicros = flushMicros;
+	}
+
+	public int getStatsSeconds() {
+		return statsSeconds;
+	}
+
+	public void setStatsSeconds(int statsSeconds) {
+		this.statsSeconds = statsSeconds;
+	}
+
+	//null unless -log was given, then messages are kept in a MessageLog
+	public String getLogDirectory() {
+		return logDirectory;
+	}
+
+	public void setLogDirectory(String logDirectory) {
+		this.logDirectory = logDirectory;
+	}
+
+	public long getLogSegmentBytes() {
+		return logSegmentBytes;
+	}
+
+	public void setLogSegmentBytes(long logSegmentBytes) {
+		this.logSegmentBytes = logSegmentBytes;
+	}
+
+	public long getLogRetentionMinutes() {
+		return logRetentionMinutes;
+	}
+
+	public void setLogRetentionMinutes(long logRetentionMinutes) {
+		this.logRetentionMinutes = logRetentionMinutes;
+	}
+
+	public long getLogRetentionBytes() {
+		return logRetentionBytes;
+	}
+
+	public void setLogRetentionBytes(long logRetentionBytes) {
+		this.logRetentionBytes = logRetentionBytes;
+	}
+
+	//chat lines sent to joining Clients, 0 for no limit (or no history at all without -replayMinutes)
+	public int getReplayMessages() {
+		return replayMessages;
+	}
+
+	public void setReplayMessages(int replayMessages) {
+		this.replayMessages = replayMessages;
+	}
+
+	public long getReplayMinutes() {
+		return replayMinutes;
+	}
+
+	public void setReplayMinutes(long replayMinutes) {
+		this.replayMinutes = replayMinutes;
+	}
+
+	public String getBackplane() {
+		return backplane;
+	}
+
+	public void setBackplane(String backplane) {
+		this.backplane = backplane;
+	}
+
+	//0 unless this Server is a Cluster node
+	public int getClusterPort() {
+		return clusterPort;
+	}
+
+	public void setClusterPort(int clusterPort) {
+		this.clusterPort = clusterPort;
+	}
+
+	public String[] getPeers() {
+		return peers;
+	}
+
+	public void setPeers(String[] peers) {
+		this.peers = peers;
+	}
+
+	//-node if given, otherwise this host and the client port
+	public String getNodeName() {
+		if(nodeName != null)
+		{
+			return nodeName;
+		}
+		try
+		{
+			return InetAddress.getLocalHost().getHostName() + ":" + port;
+		}
+		catch (UnknownHostException e)
+		{
+			return "localhost:" + port;
+		}
+	}
+
+	public void setNodeName(String nodeName) {
+		this.nodeName = nodeName;
+	}
+
+	//0 if idle Clients are never pinged or dropped
+	public int getHeartbeatSeconds() {
+		return heartbeatSeconds;
+	}
+
+	public void setHeartbeatSeconds(int heartbeatSeconds) {
+		this.heartbeatSeconds = heartbeatSeconds;
+	}
+
+	//messages a second each Client may send, 0 if Clients are not limited
+	public int getClientRate() {
+		return clientRate;
+	}
+
+	public void setClientRate(int clientRate) {
+		this.clientRate = clientRate;
+	}
+
+	//-clientBurst if given, otherwise one second's worth
+	public int getClientBurst() {
+		return clientBurst > 0 ? clientBurst : clientRate;
+	}
+
+	public void setClientBurst(int clientBurst) {
+		this.clientBurst = clientBurst;
+	}
+
+	//broadcasts a second each Room may carry, 0 if Rooms are not limited
+	public int getRoomRate() {
+		return roomRate;
+	}
+
+	public void setRoomRate(int roomRate) {
+		this.roomRate = roomRate;
+	}
+
+	public int getRoomBurst() {
+		return roomBurst > 0 ? roomBurst : roomRate;
+	}
+
+	public void setRoomBurst(int roomBurst) {
+		this.roomBurst = roomBurst;
+	}
+
+	public ThrottlePolicy getThrottlePolicy() {
+		return throttlePolicy;
+	}
+
+	public void setThrottlePolicy(ThrottlePolicy throttlePolicy) {
+		this.throttlePolicy = throttlePolicy;
+	}
+
+	//0 unless the ServerMetrics are served over HTTP
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+
+	public void setMetricsPort(int metricsPort) {
+		this.metricsPort = metricsPort;
+	}
+
+	//0 unless browsers can connect over WebSocket
+	public int getWebSocketPort() {
+		return webSocketPort;
+	}
+
+	public void setWebSocketPort(int webSocketPort) {
+		this.webSocketPort = webSocketPort;
+	}
+
+	public boolean isDeflate() {
+		return deflate;
+	}
+
+	public void setDeflate(boolean deflate) {
+		this.deflate = deflate;
+	}
+
+}
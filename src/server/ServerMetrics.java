@@ -0,0 +1,483 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/*
+ * SERVERMETRICS CLASS:
+ * 
+ * Server wide counters, updated from every writer thread and EventLoop
+ * at once, so each counter is a LongAdder that spreads contended
+ * increments over several cells instead of fighting over one value
+ * 
+ * Write counters:
+ * -flushes: socket writes issued (one write syscall each)
+ * -flushedMessages: messages those writes carried, the messages sent
+ * -flushedBytes: bytes those writes carried, the bytes sent
+ * 
+ * messages per flush and bytes per syscall show how much write
+ * coalescing is saving, printed every -stats seconds when enabled
+ * 
+ * Read counters:
+ * -messagesIn: lines and Frames handled from Clients
+ * -bytesIn: bytes read from Clients
+ * -parseErrors: connections dropped for breaking the protocol
+ * -reaped: connections dropped for not answering a heartbeat
+ * -throttled: messages over their Client's or Room's rate limit,
+ *  whatever the ThrottlePolicy did with them
+ * -throttleDisconnects: connections dropped for going over a limit
+ * -connections: connections accepted since the Server started
+ * 
+ * Per second rates of the message and byte counters are worked out
+ * over the time since they were last read, at most once a second, so
+ * they cost nothing unless someone looks at them
+ * 
+ * Latencies, kept in HdrHistograms fed through a Recorder, whose
+ * recordValue() is wait free, so the broadcasting threads never block
+ * on whoever reads them:
+ * -fanout: how long a broadcast took to queue for every member of a Room
+ * -direct: how long a direct message took to look up and queue
+ * -throttleDelay: how long -throttle=delay held back a throttled message
+ * 
+ * Gauges, read from the ClientRegistry when asked for:
+ * -connected: Clients connected right now
+ * -backlog: messages waiting in every Client's OutboundQueue, in total
+ *  and for the most backed up Client, how many Clients have how long a
+ *  backlog (a histogram) and the TOP_BACKLOGS longest by username, so a
+ *  slow consumer can be named without listing every Client
+ * 
+ * Readable over JMX as the ServerMetricsMBean (see Server.run()) and, with
+ * -metricsPort, as plain text from MetricsEndpoint, see scrape()
+ */
+
+public class ServerMetrics implements ServerMetricsMBean {
+	//most backed up Clients listed by name
+	private static final int TOP_BACKLOGS = 10;
+	//upper bounds of the backlog histogram's buckets, in messages
+	private static final int[] BACKLOG_BUCKETS = {0, 1, 10, 100, 1000, 10000};
+	
+	private final ClientRegistry registry;
+	private final LongAdder flushes = new LongAdder();
+	private final LongAdder flushedMessages = new LongAdder();
+	private final LongAdder flushedBytes = new LongAdder();
+	private final LongAdder messagesIn = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder parseErrors = new LongAdder();
+	private final LongAdder connections = new LongAdder();
+	private final LongAdder reaped = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder throttleDisconnects = new LongAdder();
+	private final Rate messagesInRate = new Rate(messagesIn);
+	private final Rate bytesInRate = new Rate(bytesIn);
+	private final Rate messagesOutRate = new Rate(flushedMessages);
+	private final Rate bytesOutRate = new Rate(flushedBytes);
+	private final Latency fanout = new Latency();
+	private final Latency direct = new Latency();
+	private final Latency throttleDelay = new Latency();
+	
+	
+	public ServerMetrics(ClientRegistry registry)
+	{
+		this.registry = registry;
+	}
+	
+	//records one socket write that carried the passed messages and bytes
+	public void recordFlush(int messages, long bytes)
+	{
+		flushes.increment();
+		flushedMessages.add(messages);
+		flushedBytes.add(bytes);
+	}
+	
+	//records one message handled from a Client
+	public void recordMessageIn()
+	{
+		messagesIn.increment();
+	}
+	
+	//records bytes read from a Client
+	public void recordBytesIn(long bytes)
+	{
+		bytesIn.add(bytes);
+	}
+	
+	public void recordParseError()
+	{
+		parseErrors.increment();
+	}
+	
+	public void recordConnection()
+	{
+		connections.increment();
+	}
+	
+	public void recordReaped()
+	{
+		reaped.increment();
+	}
+	
+	//records one message over a rate limit, held back for the passed nanoseconds if it was delayed
+	public void recordThrottled(long delayNanos)
+	{
+		throttled.increment();
+		if(delayNanos > 0)
+		{
+			throttleDelay.record(delayNanos);
+		}
+	}
+	
+	public void recordThrottleDisconnect()
+	{
+		throttleDisconnects.increment();
+	}
+	
+	//records how long one broadcast took to queue for a Room, in nanoseconds
+	public void recordFanout(long nanos)
+	{
+		fanout.record(nanos);
+	}
+	
+	//records how long one direct message took to route, in nanoseconds
+	public void recordDirect(long nanos)
+	{
+		direct.record(nanos);
+	}
+	
+	public double getMessagesPerFlush()
+	{
+		long count = flushes.sum();
+		return count == 0 ? 0 : (double) flushedMessages.sum() / count;
+	}
+	
+	public double getBytesPerSyscall()
+	{
+		long count = flushes.sum();
+		return count == 0 ? 0 : (double) flushedBytes.sum() / count;
+	}
+	
+	//one line summary of the counters for the server log
+	public String describe()
+	{
+		Histogram fanouts = fanout.snapshot();
+		Histogram directs = direct.snapshot();
+		return String.format("flushes %d, messages %d, bytes %d, messages/flush %.2f, bytes/syscall %.1f, "
+				+ "in %.0f msg/s %.0f B/s, out %.0f msg/s %.0f B/s, fanout p50/p99/max %d/%d/%d us, direct p50/p99/max %d/%d/%d us, "
+				+ "backlog %d (max %d), parse errors %d, reaped %d, throttled %d (%d disconnected)",
+				flushes.sum(), flushedMessages.sum(), flushedBytes.sum(), getMessagesPerFlush(), getBytesPerSyscall(),
+				getMessagesInPerSecond(), getBytesInPerSecond(), getMessagesOutPerSecond(), getBytesOutPerSecond(),
+				micros(fanouts, 50), micros(fanouts, 99), micros(fanouts, 100), micros(directs, 50), micros(directs, 99), micros(directs, 100),
+				getBacklog(), getMaxBacklog(), parseErrors.sum(), reaped.sum(), throttled.sum(), throttleDisconnects.sum());
+	}
+	
+	/*
+	 * scrape method:
+	 * 
+	 * every metric in the Prometheus text exposition format, counters as
+	 * totals (rates are left to whoever scrapes them), latencies as
+	 * summaries in seconds
+	 */
+	public String scrape()
+	{
+		StringBuilder text = new StringBuilder();
+		metric(text, "chat_connected_clients", "gauge", getConnected());
+		metric(text, "chat_connections_total", "counter", connections.sum());
+		metric(text, "chat_messages_in_total", "counter", messagesIn.sum());
+		metric(text, "chat_bytes_in_total", "counter", bytesIn.sum());
+		metric(text, "chat_messages_out_total", "counter", flushedMessages.sum());
+		metric(text, "chat_bytes_out_total", "counter", flushedBytes.sum());
+		metric(text, "chat_flushes_total", "counter", flushes.sum());
+		metric(text, "chat_parse_errors_total", "counter", parseErrors.sum());
+		metric(text, "chat_reaped_total", "counter", reaped.sum());
+		metric(text, "chat_throttled_total", "counter", throttled.sum());
+		metric(text, "chat_throttle_disconnects_total", "counter", throttleDisconnects.sum());
+		Backlogs backlogs = backlogs();
+		metric(text, "chat_outbound_backlog_messages", "gauge", backlogs.total);
+		metric(text, "chat_outbound_backlog_max_messages", "gauge", backlogs.max);
+		backlogs.scrape(text);
+		summary(text, "chat_broadcast_fanout_seconds", fanout.snapshot());
+		summary(text, "chat_direct_routing_seconds", direct.snapshot());
+		summary(text, "chat_throttle_delay_seconds", throttleDelay.snapshot());
+		return text.toString();
+	}
+	
+	private static void metric(StringBuilder text, String name, String type, long value)
+	{
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		text.append(name).append(' ').append(value).append('\n');
+	}
+	
+	private static void summary(StringBuilder text, String name, Histogram histogram)
+	{
+		text.append("# TYPE ").append(name).append(" summary\n");
+		for(double quantile : new double[] {0.5, 0.9, 0.99, 0.999})
+		{
+			text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+				.append(histogram.getValueAtPercentile(quantile * 100) / 1e9).append('\n');
+		}
+		text.append(name).append("_sum ").append(histogram.getMean() * histogram.getTotalCount() / 1e9).append('\n');
+		text.append(name).append("_count ").append(histogram.getTotalCount()).append('\n');
+	}
+	
+	private static long micros(Histogram histogram, double percentile)
+	{
+		long nanos = percentile >= 100 ? histogram.getMaxValue() : histogram.getValueAtPercentile(percentile);
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+	
+	//GETTERS AND SETTERS
+	public long getFlushes() {
+		return flushes.sum();
+	}
+	
+	public long getFlushedMessages() {
+		return flushedMessages.sum();
+	}
+	
+	public long getFlushedBytes() {
+		return flushedBytes.sum();
+	}
+	
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+	
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+	
+	public long getParseErrors() {
+		return parseErrors.sum();
+	}
+	
+	public long getConnections() {
+		return connections.sum();
+	}
+	
+	public long getReaped() {
+		return reaped.sum();
+	}
+	
+	public long getThrottled() {
+		return throttled.sum();
+	}
+	
+	public long getThrottleDisconnects() {
+		return throttleDisconnects.sum();
+	}
+	
+	public int getConnected() {
+		return registry.size();
+	}
+	
+	public double getMessagesInPerSecond() {
+		return messagesInRate.perSecond();
+	}
+	
+	public double getBytesInPerSecond() {
+		return bytesInRate.perSecond();
+	}
+	
+	public double getMessagesOutPerSecond() {
+		return messagesOutRate.perSecond();
+	}
+	
+	public double getBytesOutPerSecond() {
+		return bytesOutRate.perSecond();
+	}
+	
+	public long getFanoutP50Micros() {
+		return micros(fanout.snapshot(), 50);
+	}
+	
+	public long getFanoutP99Micros() {
+		return micros(fanout.snapshot(), 99);
+	}
+	
+	public long getFanoutMaxMicros() {
+		return micros(fanout.snapshot(), 100);
+	}
+	
+	public long getDirectP50Micros() {
+		return micros(direct.snapshot(), 50);
+	}
+	
+	public long getDirectP99Micros() {
+		return micros(direct.snapshot(), 99);
+	}
+	
+	public long getDirectMaxMicros() {
+		return micros(direct.snapshot(), 100);
+	}
+	
+	public long getThrottleDelayP99Micros() {
+		return micros(throttleDelay.snapshot(), 99);
+	}
+	
+	//messages queued for every connected Client together
+	public long getBacklog() {
+		return backlogs().total;
+	}
+	
+	//messages queued for the most backed up Client
+	public int getMaxBacklog() {
+		return backlogs().max;
+	}
+	
+	//the most backed up Clients as "username=messages", longest backlog first
+	public String[] getTopBacklogs() {
+		List<Backlog> top = backlogs().top;
+		String[] lines = new String[top.size()];
+		for(int i = 0; i < lines.length; i++)
+		{
+			lines[i] = top.get(i).username + "=" + top.get(i).depth;
+		}
+		return lines;
+	}
+	
+	//reads every Client's OutboundQueue depth once
+	private Backlogs backlogs()
+	{
+		Backlogs backlogs = new Backlogs();
+		for(ClientHandler client : registry.clients())
+		{
+			backlogs.add(client.getUsername(), client.getOutbound().depth());
+		}
+		backlogs.sortTop();
+		return backlogs;
+	}
+	
+	
+	//one Client's backlog, as it was read
+	private static final class Backlog {
+		private final String username;
+		private final int depth;
+		
+		private Backlog(String username, int depth)
+		{
+			this.username = username;
+			this.depth = depth;
+		}
+	}
+	
+	//every Client's backlog read once, summed, counted into the BACKLOG_BUCKETS and the TOP_BACKLOGS longest kept in a min heap, one pass however many Clients there are
+	private static final class Backlogs {
+		private long total = 0;
+		private int max = 0;
+		private int clients = 0;
+		private final long[] buckets = new long[BACKLOG_BUCKETS.length];
+		private final PriorityQueue<Backlog> heap = new PriorityQueue<>(TOP_BACKLOGS, (a, b)->Integer.compare(a.depth, b.depth));
+		private List<Backlog> top;
+		
+		private void add(String username, int depth)
+		{
+			total += depth;
+			max = Math.max(max, depth);
+			clients++;
+			for(int i = 0; i < BACKLOG_BUCKETS.length; i++)
+			{
+				if(depth <= BACKLOG_BUCKETS[i])
+				{
+					buckets[i]++;
+				}
+			}
+			//Clients that have not joined yet have no name to show and nothing much queued
+			if(depth > 0 && username != null && (heap.size() < TOP_BACKLOGS || depth > heap.peek().depth))
+			{
+				heap.add(new Backlog(username, depth));
+				if(heap.size() > TOP_BACKLOGS)
+				{
+					heap.poll();
+				}
+			}
+		}
+		
+		//longest first
+		private void sortTop()
+		{
+			top = new ArrayList<>(heap);
+			top.sort((a, b)->Integer.compare(b.depth, a.depth));
+		}
+		
+		//the histogram and the top backlogs, labelled by username, in the Prometheus text format
+		private void scrape(StringBuilder text)
+		{
+			String histogram = "chat_client_outbound_backlog_messages";
+			text.append("# TYPE ").append(histogram).append(" histogram\n");
+			for(int i = 0; i < BACKLOG_BUCKETS.length; i++)
+			{
+				text.append(histogram).append("_bucket{le=\"").append(BACKLOG_BUCKETS[i]).append("\"} ").append(buckets[i]).append('\n');
+			}
+			text.append(histogram).append("_bucket{le=\"+Inf\"} ").append(clients).append('\n');
+			text.append(histogram).append("_sum ").append(total).append('\n');
+			text.append(histogram).append("_count ").append(clients).append('\n');
+			
+			String gauge = "chat_client_outbound_backlog_top_messages";
+			text.append("# TYPE ").append(gauge).append(" gauge\n");
+			for(Backlog backlog : top)
+			{
+				text.append(gauge).append("{client=\"").append(label(backlog.username)).append("\"} ").append(backlog.depth).append('\n');
+			}
+		}
+		
+		//a label value with '\', '"' and line breaks escaped as the format wants
+		private static String label(String value)
+		{
+			return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+		}
+	}
+	
+	
+	//per second rate of a counter, over the time since it was last worked out
+	private static final class Rate {
+		private static final long MIN_NANOS = TimeUnit.SECONDS.toNanos(1);
+		
+		private final LongAdder counter;
+		private long lastCount = 0;
+		private long lastNanos = System.nanoTime();
+		private double perSecond = 0;
+		
+		private Rate(LongAdder counter)
+		{
+			this.counter = counter;
+		}
+		
+		private synchronized double perSecond()
+		{
+			long now = System.nanoTime();
+			if(now - lastNanos >= MIN_NANOS)
+			{
+				long count = counter.sum();
+				perSecond = (count - lastCount) * 1e9 / (now - lastNanos);
+				lastCount = count;
+				lastNanos = now;
+			}
+			return perSecond;
+		}
+	}
+	
+	//latency histogram in nanoseconds, recorded wait free, read by folding the Recorder's intervals into a running total
+	private static final class Latency {
+		private final Recorder recorder = new Recorder(3);
+		private final Histogram total = new Histogram(3);
+		private Histogram interval;
+		
+		private void record(long nanos)
+		{
+			recorder.recordValue(Math.max(0, nanos));
+		}
+		
+		private synchronized Histogram snapshot()
+		{
+			interval = recorder.getIntervalHistogram(interval);
+			total.add(interval);
+			return total.copy();
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package server;
+
+/*
+ * SERVERMETRICSMBEAN INTERFACE:
+ * 
+ * JMX view of the ServerMetrics, every getter is a read only attribute
+ * of the "chatapp:type=ServerMetrics" MBean the Server registers, so
+ * jconsole or any JMX client can watch a running Server
+ */
+
+public interface ServerMetricsMBean {
+	
+	int getConnected();
+	
+	long getConnections();
+	
+	long getMessagesIn();
+	
+	long getBytesIn();
+	
+	double getMessagesInPerSecond();
+	
+	double getBytesInPerSecond();
+	
+	double getMessagesOutPerSecond();
+	
+	double getBytesOutPerSecond();
+	
+	long getFlushes();
+	
+	long getFlushedMessages();
+	
+	long getFlushedBytes();
+	
+	double getMessagesPerFlush();
+	
+	double getBytesPerSyscall();
+	
+	long getFanoutP50Micros();
+	
+	long getFanoutP99Micros();
+	
+	long getFanoutMaxMicros();
+	
+	long getDirectP50Micros();
+	
+	long getDirectP99Micros();
+	
+	long getDirectMaxMicros();
+	
+	long getBacklog();
+	
+	int getMaxBacklog();
+	
+	String[] getTopBacklogs();
+	
+	long getParseErrors();
+	
+	long getReaped();
+	
+	long getThrottled();
+	
+	long getThrottleDisconnects();
+	
+	long getThrottleDelayP99Micros();
+
+}
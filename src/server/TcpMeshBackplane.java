@@ -0,0 +1,329 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import protocol.Frame;
+
+/*
+ * TCPMESHBACKPLANE CLASS:
+ * 
+ * Backplane where every node listens on -clusterPort and dials every
+ * node in -peers, each direction of a pair of nodes is its own TCP
+ * connection, so nobody has to agree on who dials whom
+ * 
+ * Outgoing links:
+ * one thread per peer takes the events published for it off a queue,
+ * everything queued at that moment is written and flushed as one batch,
+ * so a busy link sends many events per syscall, after a connection
+ * breaks the link dials again every RECONNECT_MILLIS and starts over
+ * with a NODE Frame naming this node and the Listener's snapshot()
+ * 
+ * Incoming links:
+ * one thread per accepted connection reads the NODE Frame and hands
+ * every Frame after it to the Listener, under a link name made of the
+ * node's name and a sequence number, so the onLinkDown() of a broken
+ * connection never undoes what a newer connection from the same node
+ * already sent
+ * 
+ * Events published while a link is down are dropped, the snapshot the
+ * link starts with brings the peer back up to date on who is where, a
+ * link whose queue fills up (the peer is not keeping up) is closed for
+ * the same reason, it reconnects and starts over with a snapshot
+ * instead of silently missing members entering and leaving
+ * 
+ * Liveness:
+ * an outgoing link with nothing to send writes an ALIVE Frame every
+ * ALIVE_MILLIS, an incoming link that reads nothing for LINK_TIMEOUT_MILLIS
+ * is taken down, so a peer that vanished without closing its connections
+ * does not keep its users in the Rooms
+ */
+
+public class TcpMeshBackplane implements Backplane {
+	//link opening Frame naming the node that dialed
+	public static final byte NODE = 0x40;
+	//no-op Frame an idle outgoing link is kept alive with, never handed to the Listener
+	public static final byte ALIVE = 0x3F;
+	private static final int QUEUE_CAPACITY = 64 * 1024;
+	private static final int BATCH_BYTES = 64 * 1024;
+	private static final long RECONNECT_MILLIS = 1000;
+	private static final long ALIVE_MILLIS = 5000;
+	private static final int LINK_TIMEOUT_MILLIS = 15000;
+	private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+	//queued in place of the events of a link that overflowed, makes it reconnect
+	private static final byte[] RESYNC = new byte[0];
+
+	private final String node;
+	private final int port;
+	private final List<PeerLink> links = new ArrayList<PeerLink>();
+	private final AtomicInteger linkSequence = new AtomicInteger();
+	private final LongAdder events = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private Listener listener;
+	private ServerSocket acceptor;
+	private volatile boolean closed = false;
+
+
+	public TcpMeshBackplane(ServerConfig config)
+	{
+		this.node = config.getNodeName();
+		this.port = config.getClusterPort();
+		for(String peer : config.getPeers())
+		{
+			int split = peer.lastIndexOf(':');
+			links.add(new PeerLink(new InetSocketAddress(peer.substring(0, split), Integer.parseInt(peer.substring(split + 1)))));
+		}
+	}
+
+	public void start(Listener listener) throws IOException
+	{
+		this.listener = listener;
+		acceptor = new ServerSocket(port);
+		System.out.println("Cluster node " + node + " is listening on port " + port + " for " + links.size() + " peers");
+
+		Thread accepting = new Thread(this::acceptLinks, "cluster-accept");
+		accepting.setDaemon(true);
+		accepting.start();
+
+		for(PeerLink link : links)
+		{
+			Thread sending = new Thread(link, "cluster-out-" + link.address);
+			sending.setDaemon(true);
+			sending.start();
+		}
+	}
+
+	public void publish(byte[] event)
+	{
+		for(PeerLink link : links)
+		{
+			if(!link.connected)
+			{
+				dropped.increment();
+			}
+			else if(!link.queue.offer(event))
+			{
+				dropped.increment();
+				link.overflowed();
+			}
+		}
+	}
+
+	public void close()
+	{
+		closed = true;
+		try
+		{
+			acceptor.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	public String describe()
+	{
+		int connected = 0;
+		for(PeerLink link : links)
+		{
+			connected += link.connected ? 1 : 0;
+		}
+		long sent = batches.sum();
+		return String.format("cluster %d/%d peers linked, events %d, events/batch %.2f, dropped %d",
+				connected, links.size(), events.sum(), sent == 0 ? 0.0 : (double) events.sum() / sent, dropped.sum());
+	}
+
+	private void acceptLinks()
+	{
+		while(!closed)
+		{
+			try
+			{
+				Socket socket = acceptor.accept();
+				socket.setTcpNoDelay(true);
+				//a live peer sends at least an ALIVE Frame every ALIVE_MILLIS
+				socket.setSoTimeout(LINK_TIMEOUT_MILLIS);
+				Thread reading = new Thread(()->readLink(socket), "cluster-in-" + socket.getRemoteSocketAddress());
+				reading.setDaemon(true);
+				reading.start();
+			}
+			catch (IOException e)
+			{
+				if(!closed)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/*
+	 * readLink method:
+	 * 
+	 * hands the events of one incoming connection to the Listener until
+	 * it breaks or goes quiet for LINK_TIMEOUT_MILLIS, the first Frame
+	 * must be the NODE Frame naming the peer
+	 */
+	private void readLink(Socket socket)
+	{
+		String link = null;
+		try(Socket connection = socket)
+		{
+			DataInputStream input = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+			Frame hello = Frame.read(input);
+			if(hello == null || hello.getOpcode() != NODE)
+			{
+				return;
+			}
+			link = hello.field(0, 1) + "/" + linkSequence.incrementAndGet();
+			System.out.println("Cluster link up: " + link);
+
+			Frame event;
+			while((event = Frame.read(input)) != null)
+			{
+				if(event.getOpcode() != ALIVE)
+				{
+					listener.onEvent(link, event);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			//the peer went away, see below
+		}
+
+		if(link != null)
+		{
+			System.out.println("Cluster link down: " + link);
+			listener.onLinkDown(link);
+		}
+	}
+
+	/*
+	 * PEERLINK CLASS:
+	 * 
+	 * outgoing connection to one peer and the events queued for it
+	 */
+	private class PeerLink implements Runnable {
+		private final InetSocketAddress address;
+		private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>(QUEUE_CAPACITY);
+		private volatile boolean connected = false;
+		private volatile Socket socket;
+
+		private PeerLink(InetSocketAddress address)
+		{
+			this.address = address;
+		}
+
+		/*
+		 * overflowed method:
+		 * 
+		 * called by publish() when the queue is full, takes the link down
+		 * so it reconnects with a snapshot, closing the socket gets the
+		 * sending thread out of a write to a peer that stopped reading
+		 */
+		private void overflowed()
+		{
+			if(!connected)
+			{
+				return;
+			}
+			System.out.println("Cluster link to " + address + " fell " + QUEUE_CAPACITY + " events behind, reconnecting");
+			connected = false;
+			queue.clear();
+			queue.offer(RESYNC);
+			Socket current = socket;
+			if(current != null)
+			{
+				try
+				{
+					current.close();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+
+		public void run()
+		{
+			List<byte[]> batch = new ArrayList<byte[]>();
+			byte[] alive = Frame.encode(ALIVE);
+			while(!closed)
+			{
+				try(Socket socket = new Socket())
+				{
+					this.socket = socket;
+					socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+					socket.setTcpNoDelay(true);
+					OutputStream output = new BufferedOutputStream(socket.getOutputStream(), BATCH_BYTES);
+
+					//whatever was queued before is covered by the snapshot
+					queue.clear();
+					connected = true;
+					output.write(Frame.encode(NODE, node));
+					for(byte[] event : listener.snapshot())
+					{
+						output.write(event);
+					}
+					output.flush();
+
+					while(!closed)
+					{
+						byte[] first = queue.poll(ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+						batch.add(first != null ? first : alive);
+						queue.drainTo(batch);
+						for(byte[] event : batch)
+						{
+							if(event == RESYNC)
+							{
+								throw new IOException("Cluster link to " + address + " overflowed");
+							}
+							output.write(event);
+						}
+						output.flush();
+						events.add(batch.size());
+						batches.increment();
+						batch.clear();
+					}
+				}
+				catch (IOException e)
+				{
+					//peer not up yet, gone or too slow, dial again below
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+
+				connected = false;
+				socket = null;
+				batch.clear();
+				try
+				{
+					Thread.sleep(RECONNECT_MILLIS);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,26 @@
+package server;
+
+/*
+ * THROTTLEPOLICY ENUM:
+ * 
+ * What a ClientHandler does with a message from its Client once the
+ * Client's own TokenBucket, or for a broadcast its Room's, is empty
+ * 
+ * -DROP: the message is thrown away, the Client is told once
+ * -DELAY: the reading thread waits for the tokens, so the Client's socket
+ *  fills up and it is slowed down to the limit (thread and virtual modes
+ *  only, an EventLoop must never wait on one connection)
+ * -DISCONNECT: the flooding Client is disconnected
+ */
+
+public enum ThrottlePolicy {
+	DROP,
+	DELAY,
+	DISCONNECT;
+	
+	//parses the -throttle option value, "drop" for example
+	public static ThrottlePolicy fromOption(String value)
+	{
+		return valueOf(value.toUpperCase().replace('-', '_'));
+	}
+}
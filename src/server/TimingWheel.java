@@ -0,0 +1,262 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * TIMINGWHEEL CLASS:
+ * 
+ * Hashed timing wheel, one thread running every Timeout of the Server
+ * (the heartbeat checks of every connection), however many there are
+ * 
+ * The wheel is an array of buckets, each a doubly linked list of
+ * Timeouts, and a hand that moves one bucket every tick, a Timeout due
+ * in n ticks goes in the bucket n ticks ahead of the hand, with the
+ * number of full turns left before it is due (its rounds), so:
+ * -schedule() is O(1): the Timeout is queued and linked into its bucket
+ *  on the next tick
+ * -cancel() is O(1): the Timeout is marked cancelled and unlinked from
+ *  its bucket on the next tick
+ * -a tick only walks one bucket, with roughly connections / wheelSize
+ *  Timeouts in it, however far off they are due
+ * 
+ * Timeouts fire up to one tick late, never early, which is all a
+ * heartbeat needs, 100k connections cost 100k small objects and no
+ * thread or sorted structure per connection
+ * 
+ * Tasks run on the wheel's thread, so they have to be quick, queueing
+ * a message or closing a socket is fine, anything blocking is not
+ */
+
+public class TimingWheel {
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	private final long startNanos = System.nanoTime();
+	private final Thread thread;
+	private volatile boolean stopped = false;
+	//ticks done, only touched by the wheel's thread
+	private long tick = 0;
+	
+	
+	public TimingWheel(long tick, TimeUnit unit, int wheelSize)
+	{
+		this.tickNanos = Math.max(1, unit.toNanos(tick));
+		//a power of two, so the bucket of a tick is a mask instead of a division
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.wheel = new Bucket[size];
+		for(int i = 0; i < size; i++)
+		{
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.thread = new Thread(this::run, "timing-wheel");
+		this.thread.setDaemon(true);
+	}
+	
+	public void start()
+	{
+		thread.start();
+	}
+	
+	public void stop()
+	{
+		stopped = true;
+		thread.interrupt();
+	}
+	
+	//runs the passed task once the delay has passed, on the wheel's thread, safe to call from any thread
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+	{
+		Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + Math.max(0, unit.toNanos(delay)));
+		scheduled.add(timeout);
+		return timeout;
+	}
+	
+	private void run()
+	{
+		while(!stopped)
+		{
+			long deadline = (tick + 1) * tickNanos;
+			long sleep = deadline - (System.nanoTime() - startNanos);
+			if(sleep > 0)
+			{
+				try
+				{
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				}
+				catch (InterruptedException e)
+				{
+					continue;
+				}
+			}
+			
+			unlinkCancelled();
+			linkScheduled();
+			expire(wheel[(int) (tick & mask)], System.nanoTime() - startNanos);
+			tick++;
+		}
+	}
+	
+	private void unlinkCancelled()
+	{
+		Timeout timeout;
+		while((timeout = cancelled.poll()) != null)
+		{
+			if(timeout.bucket != null)
+			{
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+	
+	/*
+	 * linkScheduled method:
+	 * 
+	 * puts the Timeouts scheduled since the last tick in their buckets,
+	 * one already overdue goes in the current bucket, which expires next
+	 */
+	private void linkScheduled()
+	{
+		Timeout timeout;
+		while((timeout = scheduled.poll()) != null)
+		{
+			if(timeout.state.get() == Timeout.CANCELLED)
+			{
+				continue;
+			}
+			long due = timeout.deadline / tickNanos;
+			timeout.rounds = Math.max(0, (due - tick) / wheel.length);
+			wheel[(int) (Math.max(due, tick) & mask)].add(timeout);
+		}
+	}
+	
+	//runs the Timeouts of the bucket that are in their last round, the others have one round less to go
+	private void expire(Bucket bucket, long now)
+	{
+		Timeout timeout = bucket.head;
+		while(timeout != null)
+		{
+			Timeout next = timeout.next;
+			if(timeout.rounds <= 0 && timeout.deadline <= now)
+			{
+				bucket.remove(timeout);
+				timeout.expire();
+			}
+			else if(timeout.rounds > 0)
+			{
+				timeout.rounds--;
+			}
+			timeout = next;
+		}
+	}
+	
+	
+	/*
+	 * TIMEOUT CLASS:
+	 * 
+	 * one scheduled task, can be cancelled until it has run
+	 */
+	public final class Timeout {
+		private static final int WAITING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+		
+		private final Runnable task;
+		//nanoseconds since the wheel started
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+		//only touched by the wheel's thread
+		private long rounds;
+		private Bucket bucket;
+		private Timeout previous;
+		private Timeout next;
+		
+		private Timeout(Runnable task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+		}
+		
+		//stops the task from running, false if it already ran or was cancelled
+		public boolean cancel()
+		{
+			if(!state.compareAndSet(WAITING, CANCELLED))
+			{
+				return false;
+			}
+			cancelled.add(this);
+			return true;
+		}
+		
+		private void expire()
+		{
+			if(!state.compareAndSet(WAITING, EXPIRED))
+			{
+				return;
+			}
+			try
+			{
+				task.run();
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	//Timeouts that fall due at the same position of the wheel
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+		
+		private void add(Timeout timeout)
+		{
+			timeout.bucket = this;
+			timeout.previous = tail;
+			timeout.next = null;
+			if(tail == null)
+			{
+				head = timeout;
+			}
+			else
+			{
+				tail.next = timeout;
+			}
+			tail = timeout;
+		}
+		
+		private void remove(Timeout timeout)
+		{
+			if(timeout.bucket != this)
+			{
+				return;
+			}
+			if(timeout.previous == null)
+			{
+				head = timeout.next;
+			}
+			else
+			{
+				timeout.previous.next = timeout.next;
+			}
+			if(timeout.next == null)
+			{
+				tail = timeout.previous;
+			}
+			else
+			{
+				timeout.next.previous = timeout.previous;
+			}
+			timeout.bucket = null;
+			timeout.previous = null;
+			timeout.next = null;
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * TOKENBUCKET CLASS:
+ * 
+ * Rate limit of one connection or one Room, holds up to burst tokens and
+ * gets rate tokens back every second, every message takes one
+ * 
+ * There is no refill thread and no lock, the bucket is a single
+ * AtomicLong, the time at which it would be full again (the tokens
+ * taken so far, paid back at one per 1/rate seconds), so:
+ * -taking a token moves that time one interval on with one
+ *  compareAndSet, retried if another thread moved it first
+ * -refilling is implicit, a bucket full again before now is just full
+ * -the bucket is empty while that time is more than burst intervals
+ *  after now
+ * 
+ * Shared by every Client of a Room, so tryAcquire(), reserve() and
+ * release() are safe to call from any thread
+ */
+
+public class TokenBucket {
+	private final long intervalNanos;
+	private final long burstNanos;
+	//System.nanoTime() at which every token taken so far is paid back
+	private final AtomicLong full;
+	
+	
+	public TokenBucket(int rate, int burst)
+	{
+		this.intervalNanos = Math.max(1, TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate));
+		this.burstNanos = intervalNanos * Math.max(1, burst);
+		this.full = new AtomicLong(System.nanoTime());
+	}
+	
+	//takes a token, false if the bucket is empty
+	public boolean tryAcquire()
+	{
+		while(true)
+		{
+			long now = System.nanoTime();
+			long current = full.get();
+			long next = Math.max(current - now, 0) + now + intervalNanos;
+			if(next - now > burstNanos)
+			{
+				return false;
+			}
+			if(full.compareAndSet(current, next))
+			{
+				return true;
+			}
+		}
+	}
+	
+	/*
+	 * reserve method:
+	 * 
+	 * takes a token even if the bucket is empty, and returns how many
+	 * nanoseconds the caller has to wait before it may use it, 0 if the
+	 * bucket had one left, later callers queue up behind it
+	 */
+	public long reserve()
+	{
+		while(true)
+		{
+			long now = System.nanoTime();
+			long current = full.get();
+			long next = Math.max(current - now, 0) + now + intervalNanos;
+			if(full.compareAndSet(current, next))
+			{
+				return Math.max(0, next - now - burstNanos);
+			}
+		}
+	}
+	
+	/*
+	 * release method:
+	 * 
+	 * gives back a token tryAcquire() took, for a message that was refused
+	 * by another bucket after all, moves the time the bucket is full again
+	 * one interval back, but not before now, so the bucket never holds more
+	 * than burst tokens
+	 */
+	public void release()
+	{
+		while(true)
+		{
+			long now = System.nanoTime();
+			long current = full.get();
+			if(current - now <= 0 || full.compareAndSet(current, Math.max(current - intervalNanos, now)))
+			{
+				return;
+			}
+		}
+	}
+
+}
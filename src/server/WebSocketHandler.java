@@ -0,0 +1,249 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import protocol.LineDecoder;
+import protocol.ProtocolException;
+import protocol.TextMessage;
+import protocol.WebSocketDecoder;
+import protocol.WebSocketFrame;
+import protocol.WebSocketHandshake;
+
+/*
+ * WEBSOCKETHANDLER CLASS:
+ * 
+ * NioClientHandler for a browser connected to the Server's WebSocket
+ * port, see WebSocketServer
+ * 
+ * The connection starts with an HTTP upgrade (WebSocketHandshake), after
+ * that every WebSocket TEXT message is one or more text protocol lines,
+ * handled by the inherited handleLine() exactly like the lines of a TCP
+ * text Client, so joining, Rooms, direct messages, heartbeats and rate
+ * limits are the same and WebSocket and TCP Clients share every Room
+ * 
+ * Messages to the browser go through the inherited OutboundQueue and
+ * flush(), encoded as EncodedMessage.WEBSOCKET, one TEXT frame per line
+ * 
+ * Bytes are read into a buffer from the EventLoop's BufferPool and the
+ * WebSocketDecoder unmasks and decodes frames right there, a TextMessage
+ * then parses the lines in the same array, nothing is copied unless a
+ * message arrives in fragments, the buffer goes back to the pool as soon
+ * as no partial frame is left in it
+ * 
+ * Control frames:
+ * -PING: answered with a PONG carrying the same payload
+ * -PONG: answers the Server's heartbeat, which is a WebSocket PING here
+ * -CLOSE: whatever is queued is written, then it is answered with a
+ *  CLOSE with the same status code and the connection is closed, the
+ *  Server closes with a CLOSE of its own too
+ * 
+ * BINARY messages are not spoken, the connection is closed with status
+ * 1003, frames that break RFC 6455 close it with 1002, TEXT messages that
+ * are not valid UTF-8 close it with 1007
+ * 
+ * Charsets:
+ * browsers speak UTF-8, the text protocol LineDecoder.CHARSET, TEXT
+ * messages are converted to it before their lines are handled and
+ * EncodedMessage builds the WEBSOCKET encoding in UTF-8, when the two
+ * are the same the bytes are passed on as they are
+ */
+
+public class WebSocketHandler extends NioClientHandler {
+	private static final boolean UTF8_LINES = LineDecoder.CHARSET.equals(StandardCharsets.UTF_8);
+	
+	private final WebSocketHandshake handshake = new WebSocketHandshake();
+	private final WebSocketDecoder decoder = new WebSocketDecoder();
+	private final TextMessage message = new TextMessage();
+	private boolean upgraded = false;
+	//pooled, only held while part of the request or of a frame is in it
+	private ByteBuffer buffer;
+	//status code of the CLOSE frame the Server closes with
+	private int closeCode = WebSocketFrame.CLOSE_NORMAL;
+	
+	
+	public WebSocketHandler(SocketChannel channel, EventLoop loop, Server server)
+	{
+		super(channel, loop, server);
+	}
+	
+	/*
+	 * onReadable method:
+	 * 
+	 * called by the EventLoop when the channel has bytes, reads them
+	 * behind whatever was left of the last read, then answers the upgrade
+	 * request or handles every whole frame, the EventLoop's own read
+	 * buffer is not used
+	 */
+	@Override
+	public void onReadable(ByteBuffer unused) throws IOException
+	{
+		if(buffer == null)
+		{
+			buffer = loop.getBufferPool().acquire();
+		}
+		
+		int read = channel.read(buffer);
+		if(read < 0)
+		{
+			close();
+			return;
+		}
+		server.getMetrics().recordBytesIn(read);
+		buffer.flip();
+		
+		try
+		{
+			if(!upgraded && !upgrade())
+			{
+				keepRest();
+				return;
+			}
+			
+			while(!closed && decoder.next(buffer))
+			{
+				if(!handleWebSocketFrame())
+				{
+					closeAfterFlush();
+				}
+			}
+		}
+		catch (ProtocolException e)
+		{
+			closeCode = WebSocketFrame.CLOSE_PROTOCOL_ERROR;
+			throw e;
+		}
+		keepRest();
+	}
+	
+	/*
+	 * upgrade method:
+	 * 
+	 * answers the HTTP upgrade request once all of it has arrived, returns
+	 * false until then or if the request was refused, in which case the
+	 * connection is closed after the answer
+	 */
+	private boolean upgrade() throws IOException
+	{
+		if(!handshake.read(buffer))
+		{
+			return false;
+		}
+		
+		//the first bytes on a new connection, the socket buffer takes them
+		ByteBuffer response = ByteBuffer.wrap(handshake.getResponse());
+		channel.write(response);
+		if(!handshake.isAccepted() || response.hasRemaining())
+		{
+			close();
+			return false;
+		}
+		
+		upgraded = true;
+		setProtocol(false, EncodedMessage.WEBSOCKET);
+		return true;
+	}
+	
+	//returns false once the connection has to be closed
+	private boolean handleWebSocketFrame() throws IOException
+	{
+		byte[] payload = decoder.getPayload();
+		int offset = decoder.getOffset();
+		int length = decoder.getLength();
+		
+		switch(decoder.getOpcode())
+		{
+		case WebSocketFrame.TEXT:
+			if(!WebSocketFrame.isUtf8(payload, offset, length))
+			{
+				closeCode = WebSocketFrame.CLOSE_INVALID_DATA;
+				return false;
+			}
+			if(UTF8_LINES)
+			{
+				return handleLines(payload, offset, length);
+			}
+			byte[] lines = new String(payload, offset, length, StandardCharsets.UTF_8).getBytes(LineDecoder.CHARSET);
+			return handleLines(lines, 0, lines.length);
+		case WebSocketFrame.PING:
+			received();
+			sendMessage(EncodedMessage.webSocketControl(WebSocketFrame.encode(WebSocketFrame.PONG, payload, offset, length)));
+			return true;
+		case WebSocketFrame.PONG:
+			received();
+			return true;
+		case WebSocketFrame.CLOSE:
+			//answers to what the browser sent before its CLOSE still go out ahead of the Server's, see closeAfterFlush()
+			closeCode = length >= 2 ? ((payload[offset] & 0xFF) << 8) | (payload[offset + 1] & 0xFF) : WebSocketFrame.CLOSE_NORMAL;
+			return false;
+		default:
+			closeCode = WebSocketFrame.CLOSE_UNSUPPORTED_DATA;
+			return false;
+		}
+	}
+	
+	/*
+	 * handleLines method:
+	 * 
+	 * handles each '\n' separated line of a TEXT message in place, a
+	 * message is usually one line without any '\n', returns false once
+	 * the Client has logged out
+	 */
+	private boolean handleLines(byte[] payload, int offset, int length)
+	{
+		int end = offset + length;
+		int start = offset;
+		do
+		{
+			int stop = start;
+			while(stop < end && payload[stop] != '\n')
+			{
+				stop++;
+			}
+			int lineEnd = stop > start && payload[stop - 1] == '\r' ? stop - 1 : stop;
+			if(!handleLine(message.parse(payload, start, lineEnd - start)))
+			{
+				return false;
+			}
+			start = stop + 1;
+		}
+		while(start < end);
+		return true;
+	}
+	
+	//moves a partial request or frame to the front of the buffer for the next read, or gives the buffer back if nothing is left
+	private void keepRest()
+	{
+		if(buffer == null)
+		{
+			return;
+		}
+		buffer.compact();
+		if(buffer.position() == 0)
+		{
+			loop.getBufferPool().release(buffer);
+			buffer = null;
+		}
+	}
+	
+	@Override
+	protected ByteBuffer closingBytes()
+	{
+		return upgraded ? ByteBuffer.wrap(WebSocketFrame.close(closeCode)) : null;
+	}
+	
+	//closes the channel and gives the read buffer back, on the EventLoop only
+	@Override
+	public void close()
+	{
+		super.close();
+		if(buffer != null)
+		{
+			loop.getBufferPool().release(buffer);
+			buffer = null;
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/*
+ * WEBSOCKETSERVER CLASS:
+ * 
+ * Accept loop of the WebSocket port, started with -webSocketPort next to
+ * the Server's own port in any mode, so browsers can connect
+ * 
+ * Accepted connections are made non-blocking and handed out round robin
+ * to a set of EventLoop threads of its own, like the NioServer does, each
+ * gets a WebSocketHandler, which is added to the Server's ClientRegistry
+ * like any other Client, so WebSocket and TCP Clients share the Rooms
+ */
+
+public class WebSocketServer {
+	private final Server server;
+	private final ServerConfig config;
+	private EventLoop[] loops;
+	private ServerSocketChannel acceptor;
+	
+	
+	public WebSocketServer(Server server, ServerConfig config)
+	{
+		this.server = server;
+		this.config = config;
+	}
+	
+	//binds the WebSocket port and starts accepting on a thread of its own
+	public void start() throws IOException
+	{
+		loops = new EventLoop[config.getEventLoops()];
+		for(int i = 0; i < loops.length; i++)
+		{
+			loops[i] = new EventLoop("websocket-loop-" + i);
+			loops[i].start();
+		}
+		
+		acceptor = ServerSocketChannel.open();
+		acceptor.bind(new InetSocketAddress(config.getWebSocketPort()));
+		System.out.println("WebSocket endpoint is listening on port " + config.getWebSocketPort());
+		
+		Thread thread = new Thread(this::accept, "websocket-acceptor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private void accept()
+	{
+		int next = 0;
+		while(acceptor.isOpen())
+		{
+			try
+			{
+				//accepting new clients
+				SocketChannel channel = acceptor.accept();
+				channel.configureBlocking(false);
+				//chat lines are small, Nagle would hold them back waiting for ACKs
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				System.out.println("New WebSocket User Connected");
+				server.getMetrics().recordConnection();
+				
+				EventLoop loop = loops[next];
+				next = (next + 1) % loops.length;
+				
+				WebSocketHandler newUser = new WebSocketHandler(channel, loop, server);
+				server.getRegistry().add(newUser);
+				newUser.register();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
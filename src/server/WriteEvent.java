@@ -0,0 +1,49 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * WRITEEVENT CLASS:
+ * 
+ * JDK Flight Recorder event for one socket write to one Client, the
+ * coalesced batch of a writer thread or the gathering write of an
+ * EventLoop, so a slow reader shows up as long writes to one username
+ */
+
+@Name("chatapp.Write")
+@Label("Message Write")
+@Category({"ChatApp", "Server"})
+@Description("One socket write of queued messages to a Client")
+@StackTrace(false)
+public class WriteEvent extends Event {
+	@Label("Username")
+	String username;
+	
+	@Label("Messages")
+	int messages;
+	
+	@Label("Size")
+	@DataAmount
+	long size;
+	
+	
+	//ends the event and commits it with the passed fields, if the recording wants it
+	void finish(String username, int messages, long size)
+	{
+		end();
+		if(shouldCommit())
+		{
+			this.username = username;
+			this.messages = messages;
+			this.size = size;
+			commit();
+		}
+	}
+
+}
@@ -0,0 +1,198 @@
+package protocol;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/*
+ * FRAMETEST CLASS:
+ *
+ * Binary protocol Frames encoded and read back, through the blocking
+ * Frame.read() and the non-blocking FrameDecoder, and the size limits
+ * both enforce
+ */
+
+public class FrameTest {
+
+	@Test
+	public void fieldsRoundTrip() throws IOException
+	{
+		byte[] encoded = Frame.encode(Frame.DIRECT, "alice", "bob", "hi & bye: @~");
+		Frame frame = read(encoded);
+
+		assertEquals(Frame.DIRECT, frame.getOpcode());
+		assertEquals(3, frame.fieldCount());
+		assertEquals("alice", frame.field(0));
+		assertEquals("bob", frame.field(1));
+		assertEquals("hi & bye: @~", frame.field(2));
+	}
+
+	@Test
+	public void longestFieldRoundTrips() throws IOException
+	{
+		char[] name = new char[Frame.MAX_FIELD_LENGTH];
+		Arrays.fill(name, 'x');
+		Frame frame = read(Frame.encode(Frame.DIRECT, new String(name), "bob", "hi"));
+
+		assertEquals(Frame.MAX_FIELD_LENGTH, frame.field(0).length());
+		assertEquals("bob", frame.field(1));
+	}
+
+	@Test
+	public void helloRoundTrips() throws IOException
+	{
+		Frame hello = read(Frame.hello(Frame.VERSION, Frame.FLAG_ROSTER));
+		assertTrue(hello.isHello());
+		assertEquals(Frame.VERSION, hello.helloVersion());
+		assertEquals(Frame.FLAG_ROSTER, hello.helloFlags());
+	}
+
+	@Test
+	public void rosterRoundTrips() throws IOException
+	{
+		//large enough to be deflated
+		String[] names = new String[500];
+		for(int i = 0; i < names.length; i++)
+		{
+			names[i] = "user" + i;
+		}
+		Frame roster = read(Frame.roster(42, Arrays.asList(names)));
+		assertEquals(42, roster.rosterVersion());
+		assertEquals(Arrays.asList(names), roster.rosterNames());
+
+		Frame delta = read(Frame.rosterDelta(43, false, "user7"));
+		assertEquals(43, delta.rosterVersion());
+		assertFalse(delta.rosterJoined());
+		assertEquals("user7", delta.rosterName());
+	}
+
+	@Test
+	public void shortRosterDeltaIsProtocolError() throws IOException
+	{
+		Frame delta = read(Frame.encode(Frame.ROSTER_DELTA, "bob"));
+		try
+		{
+			delta.rosterVersion();
+			fail("a ROSTER_DELTA shorter than its version was read");
+		}
+		catch (ProtocolException e)
+		{
+			//expected
+		}
+		try
+		{
+			delta.rosterName();
+			fail("a ROSTER_DELTA shorter than its version was read");
+		}
+		catch (ProtocolException e)
+		{
+			//expected
+		}
+	}
+
+	@Test
+	public void deflatedRoundTrip() throws IOException
+	{
+		char[] text = new char[8 * 1024];
+		Arrays.fill(text, 'a');
+		byte[] chat = Frame.encode(Frame.CHAT, new String(text));
+		byte[] deflated = Frame.deflated(chat);
+
+		assertTrue(deflated.length < chat.length);
+		Frame frame = read(deflated);
+		assertEquals(Frame.DEFLATED, frame.getOpcode());
+		assertEquals(new String(text), frame.inflated().field(0));
+	}
+
+	@Test
+	public void readEndsCleanlyBetweenFrames() throws IOException
+	{
+		assertNull(Frame.read(new DataInputStream(new ByteArrayInputStream(new byte[0]))));
+	}
+
+	@Test
+	public void readRejectsOversizedPayload() throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_LENGTH);
+		header.put(Frame.CHAT).putInt(Frame.MAX_PAYLOAD + 1);
+		try
+		{
+			read(header.array());
+			fail("a payload over MAX_PAYLOAD was read");
+		}
+		catch (ProtocolException e)
+		{
+			//expected
+		}
+	}
+
+	@Test
+	public void decoderJoinsFramesSplitAcrossReads() throws IOException
+	{
+		byte[] first = Frame.encode(Frame.CHAT, "hello");
+		byte[] second = Frame.encode(Frame.USER_JOINED, "bob");
+		byte[] both = new byte[first.length + second.length];
+		System.arraycopy(first, 0, both, 0, first.length);
+		System.arraycopy(second, 0, both, first.length, second.length);
+
+		FrameDecoder decoder = new FrameDecoder();
+		//one byte at a time, the header and the payload both arrive in pieces
+		int frames = 0;
+		for(int i = 0; i < both.length; i++)
+		{
+			Frame frame = decoder.next(ByteBuffer.wrap(both, i, 1));
+			if(frame != null)
+			{
+				frames++;
+				assertEquals(frames == 1 ? "hello" : "bob", frame.field(0));
+			}
+		}
+		assertEquals(2, frames);
+	}
+
+	@Test
+	public void decoderRejectsOversizedPayload() throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_LENGTH);
+		header.put(Frame.CHAT).putInt(Frame.MAX_PAYLOAD + 1);
+		header.flip();
+		try
+		{
+			new FrameDecoder().next(header);
+			fail("a payload over MAX_PAYLOAD was decoded");
+		}
+		catch (ProtocolException e)
+		{
+			//expected
+		}
+	}
+
+	@Test
+	public void decoderLeavesNextFrameInBuffer() throws IOException
+	{
+		byte[] chat = Frame.encode(Frame.CHAT, "one");
+		ByteBuffer buffer = ByteBuffer.allocate(chat.length * 2);
+		buffer.put(chat).put(chat).flip();
+
+		FrameDecoder decoder = new FrameDecoder();
+		assertArrayEquals("one".getBytes(Frame.CHARSET), decoder.next(buffer).getPayload());
+		assertEquals(chat.length, buffer.remaining());
+	}
+
+	private static Frame read(byte[] encoded) throws IOException
+	{
+		return Frame.read(new DataInputStream(new ByteArrayInputStream(encoded)));
+	}
+
+}
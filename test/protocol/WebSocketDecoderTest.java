@@ -0,0 +1,231 @@
+package protocol;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/*
+ * WEBSOCKETDECODERTEST CLASS:
+ *
+ * RFC 6455 frames as a browser sends them (masked, possibly fragmented,
+ * with control frames in between) through the WebSocketDecoder, the
+ * frames the Server sends back, and the handshake key
+ */
+
+public class WebSocketDecoderTest {
+	private static final byte[] KEY = {0x37, (byte) 0xFA, 0x21, 0x3D};
+
+	@Test
+	public void unmasksInPlace() throws IOException
+	{
+		WebSocketDecoder decoder = new WebSocketDecoder();
+		ByteBuffer buffer = ByteBuffer.wrap(masked(WebSocketFrame.TEXT, true, "Hello"));
+
+		assertTrue(decoder.next(buffer));
+		assertEquals(WebSocketFrame.TEXT, decoder.getOpcode());
+		assertEquals("Hello", payload(decoder));
+		//unmasked where it was read, nothing copied
+		assertSame(buffer.array(), decoder.getPayload());
+		assertFalse(buffer.hasRemaining());
+	}
+
+	@Test
+	public void rejectsUnmaskedFrames() throws IOException
+	{
+		byte[] frame = WebSocketFrame.encode(WebSocketFrame.TEXT, "Hello".getBytes(StandardCharsets.UTF_8), 0, 5);
+		expectProtocolError(frame);
+	}
+
+	@Test
+	public void decodesExtendedLengths() throws IOException
+	{
+		char[] text = new char[70000];
+		Arrays.fill(text, 'y');
+		WebSocketDecoder decoder = new WebSocketDecoder();
+
+		assertTrue(decoder.next(ByteBuffer.wrap(masked(WebSocketFrame.TEXT, true, new String(text, 0, 300)))));
+		assertEquals(300, decoder.getLength());
+		try
+		{
+			decoder.next(ByteBuffer.wrap(masked(WebSocketFrame.TEXT, true, new String(text))));
+			fail("a frame over MAX_MESSAGE_LENGTH was decoded");
+		}
+		catch (ProtocolException e)
+		{
+			//expected
+		}
+	}
+
+	@Test
+	public void waitsForWholeFrame() throws IOException
+	{
+		byte[] frame = masked(WebSocketFrame.TEXT, true, "partial");
+		ByteBuffer buffer = ByteBuffer.allocate(frame.length);
+		buffer.put(frame, 0, frame.length - 1).flip();
+
+		WebSocketDecoder decoder = new WebSocketDecoder();
+		assertFalse(decoder.next(buffer));
+		assertEquals(0, buffer.position());
+
+		buffer.limit(frame.length).position(frame.length - 1);
+		buffer.put(frame[frame.length - 1]).flip();
+		assertTrue(decoder.next(buffer));
+		assertEquals("partial", payload(decoder));
+	}
+
+	@Test
+	public void joinsFragmentsAroundControlFrames() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(masked(WebSocketFrame.TEXT, false, "hel"));
+		bytes.write(masked(WebSocketFrame.PING, true, "pp"));
+		bytes.write(masked(WebSocketFrame.CONTINUATION, false, "lo "));
+		bytes.write(masked(WebSocketFrame.CONTINUATION, true, "there"));
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+
+		WebSocketDecoder decoder = new WebSocketDecoder();
+		assertTrue(decoder.next(buffer));
+		assertEquals(WebSocketFrame.PING, decoder.getOpcode());
+		assertEquals("pp", payload(decoder));
+
+		assertTrue(decoder.next(buffer));
+		assertEquals(WebSocketFrame.TEXT, decoder.getOpcode());
+		assertEquals("hello there", payload(decoder));
+		assertFalse(decoder.next(buffer));
+	}
+
+	@Test
+	public void rejectsContinuationWithoutMessage() throws IOException
+	{
+		expectProtocolError(masked(WebSocketFrame.CONTINUATION, true, "stray"));
+	}
+
+	@Test
+	public void rejectsNewMessageBeforeLastIsFinished() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(masked(WebSocketFrame.TEXT, false, "one"));
+		bytes.write(masked(WebSocketFrame.TEXT, true, "two"));
+		expectProtocolError(bytes.toByteArray());
+	}
+
+	@Test
+	public void rejectsFragmentedOrLongControlFrames() throws IOException
+	{
+		expectProtocolError(masked(WebSocketFrame.PING, false, "pp"));
+
+		char[] text = new char[WebSocketFrame.MAX_CONTROL_PAYLOAD + 1];
+		Arrays.fill(text, 'p');
+		expectProtocolError(masked(WebSocketFrame.PING, true, new String(text)));
+	}
+
+	@Test
+	public void encodesCloseCodes()
+	{
+		assertArrayEquals(new byte[] {(byte) 0x88, 0x02, 0x03, (byte) 0xE8}, WebSocketFrame.close(WebSocketFrame.CLOSE_NORMAL));
+		assertArrayEquals(new byte[] {(byte) 0x88, 0x02, 0x03, (byte) 0xEF}, WebSocketFrame.close(WebSocketFrame.CLOSE_INVALID_DATA));
+	}
+
+	@Test
+	public void sendsOneTextFramePerLine()
+	{
+		byte[] frames = WebSocketFrame.textFrames("@alice\n@bob\n".getBytes(StandardCharsets.UTF_8));
+		assertArrayEquals(new byte[] {(byte) 0x81, 6, '@', 'a', 'l', 'i', 'c', 'e', (byte) 0x81, 4, '@', 'b', 'o', 'b'}, frames);
+	}
+
+	@Test
+	public void checksUtf8()
+	{
+		assertTrue(utf8("plain ascii".getBytes(StandardCharsets.UTF_8)));
+		assertTrue(utf8("café ☕ 😀".getBytes(StandardCharsets.UTF_8)));
+		//overlong '/', a lone surrogate, past U+10FFFF, cut short, a stray continuation byte
+		assertFalse(utf8(new byte[] {(byte) 0xC0, (byte) 0xAF}));
+		assertFalse(utf8(new byte[] {(byte) 0xED, (byte) 0xA0, (byte) 0x80}));
+		assertFalse(utf8(new byte[] {(byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80}));
+		assertFalse(utf8(new byte[] {'a', (byte) 0xE2, (byte) 0x98}));
+		assertFalse(utf8(new byte[] {(byte) 0x80}));
+	}
+
+	@Test
+	public void acceptsHandshakeKey()
+	{
+		//the example of RFC 6455 section 1.3
+		assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocketHandshake.accept("dGhlIHNhbXBsZSBub25jZQ=="));
+	}
+
+	//a frame as a browser sends it, masked with KEY
+	static byte[] masked(byte opcode, boolean fin, String text)
+	{
+		return masked(opcode, fin, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	static byte[] masked(byte opcode, boolean fin, byte[] payload)
+	{
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		frame.write((fin ? WebSocketFrame.FIN : 0) | opcode);
+		if(payload.length < 126)
+		{
+			frame.write(WebSocketFrame.MASK | payload.length);
+		}
+		else if(payload.length <= 0xFFFF)
+		{
+			frame.write(WebSocketFrame.MASK | 126);
+			frame.write(payload.length >> 8);
+			frame.write(payload.length);
+		}
+		else
+		{
+			frame.write(WebSocketFrame.MASK | 127);
+			for(int shift = 56; shift >= 0; shift -= 8)
+			{
+				frame.write((int) ((long) payload.length >> shift));
+			}
+		}
+		frame.write(KEY, 0, KEY.length);
+		for(int i = 0; i < payload.length; i++)
+		{
+			frame.write(payload[i] ^ KEY[i & 3]);
+		}
+		return frame.toByteArray();
+	}
+
+	private static void expectProtocolError(byte[] bytes) throws IOException
+	{
+		WebSocketDecoder decoder = new WebSocketDecoder();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		try
+		{
+			while(decoder.next(buffer))
+			{
+				//frames before the bad one
+			}
+			fail("no ProtocolException");
+		}
+		catch (ProtocolException e)
+		{
+			//expected
+		}
+	}
+
+	private static String payload(WebSocketDecoder decoder)
+	{
+		return new String(decoder.getPayload(), decoder.getOffset(), decoder.getLength(), StandardCharsets.UTF_8);
+	}
+
+	private static boolean utf8(byte[] bytes)
+	{
+		return WebSocketFrame.isUtf8(bytes, 0, bytes.length);
+	}
+
+}
@@ -0,0 +1,176 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import protocol.Frame;
+import protocol.LineDecoder;
+
+/*
+ * CLIENTHANDLERTEST CLASS:
+ *
+ * A thread mode Server on a free port with a text Client and a binary
+ * Client in the same Room, checking that whatever a binary Client puts
+ * in its Frames reaches the text Client as the one line it sent
+ */
+
+public class ClientHandlerTest {
+	private static final int TIMEOUT_MILLIS = 5000;
+	private static int port;
+	//fresh names for every test, the last test's Clients may not have left yet
+	private static int tests = 0;
+
+	private Socket textSocket;
+	private BufferedReader textInput;
+	private Socket binarySocket;
+	private DataOutputStream binaryOutput;
+	private String text;
+	private String binary;
+
+
+	@BeforeClass
+	public static void startServer() throws Exception
+	{
+		try(ServerSocket free = new ServerSocket(0))
+		{
+			port = free.getLocalPort();
+		}
+		ServerConfig config = new ServerConfig();
+		config.setPort(port);
+		config.setHeartbeatSeconds(0);
+		Server server = new Server(config);
+		Thread thread = new Thread(()->{
+			try
+			{
+				server.run();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}, "test-server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Before
+	public void connect() throws Exception
+	{
+		tests++;
+		text = "carol" + tests;
+		binary = "mallory" + tests;
+		textSocket = open();
+		textInput = new BufferedReader(new InputStreamReader(textSocket.getInputStream(), LineDecoder.CHARSET));
+		OutputStream textOutput = textSocket.getOutputStream();
+		textOutput.write((text + "\n").getBytes(LineDecoder.CHARSET));
+		textOutput.flush();
+
+		binarySocket = open();
+		binaryOutput = new DataOutputStream(binarySocket.getOutputStream());
+		binaryOutput.write(Frame.hello(Frame.VERSION, 0));
+		DataInputStream binaryInput = new DataInputStream(binarySocket.getInputStream());
+		assertTrue(Frame.read(binaryInput).isHello());
+		binaryOutput.write(Frame.encode(Frame.JOIN, binary));
+	}
+
+	@After
+	public void disconnect() throws IOException
+	{
+		textSocket.close();
+		binarySocket.close();
+	}
+
+	@Test
+	public void chatWithLineBreaksStaysOneLine() throws IOException
+	{
+		binaryOutput.write(Frame.encode(Frame.CHAT, "hi\n@evil\r\n~\nbye"));
+		List<String> lines = linesUntil(binary + ": ");
+
+		assertEquals(binary + ": hi @evil  ~ bye", last(lines));
+		assertFalse(lines.contains("@evil"));
+		assertFalse(lines.contains("~"));
+	}
+
+	@Test
+	public void chatWithAmpersandsIsNoDirectMessage() throws IOException
+	{
+		binaryOutput.write(Frame.encode(Frame.CHAT, "alice&" + text + "&send me your password"));
+		List<String> lines = linesUntil(binary + ": ");
+
+		//'\uFF06' where the text protocol charset has it
+		String escaped = new String((binary + ": alice\uFF06" + text + "\uFF06send me your password").getBytes(LineDecoder.CHARSET), LineDecoder.CHARSET);
+		assertEquals(escaped, last(lines));
+		assertFalse(last(lines).contains("&"));
+	}
+
+	@Test
+	public void directMessageStaysOneLine() throws IOException
+	{
+		binaryOutput.write(Frame.encode(Frame.DIRECT, binary, text, "one\n@evil"));
+		List<String> lines = linesUntil(binary + "&");
+
+		assertEquals(binary + "&" + text + "&one @evil", last(lines));
+		assertFalse(lines.contains("@evil"));
+	}
+
+	//connects, retrying while the Server thread is still starting up
+	private static Socket open() throws Exception
+	{
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while(true)
+		{
+			try
+			{
+				Socket socket = new Socket("127.0.0.1", port);
+				socket.setSoTimeout(TIMEOUT_MILLIS);
+				return socket;
+			}
+			catch (IOException e)
+			{
+				if(System.currentTimeMillis() > deadline)
+				{
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	//the text Client's lines up to and including the first one starting with prefix
+	private List<String> linesUntil(String prefix) throws IOException
+	{
+		List<String> lines = new ArrayList<>();
+		String line;
+		do
+		{
+			line = textInput.readLine();
+			assertTrue("connection closed after " + lines, line != null);
+			lines.add(line);
+		}
+		while(!line.startsWith(prefix));
+		return lines;
+	}
+
+	private static String last(List<String> lines)
+	{
+		return lines.get(lines.size() - 1);
+	}
+
+}
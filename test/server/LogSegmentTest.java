@@ -0,0 +1,203 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import protocol.Frame;
+
+/*
+ * LOGSEGMENTTEST CLASS:
+ *
+ * Segments written, closed and opened again the way a restarted Server
+ * opens them, whole and after a crash left a record cut short or
+ * corrupted at the end of the file
+ */
+
+public class LogSegmentTest {
+	private static final byte[] ROOM = "lobby".getBytes(StandardCharsets.UTF_8);
+	private static final int RECORDS = 10;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private File directory;
+	private LogSegment segment;
+
+
+	@Before
+	public void writeSegment() throws IOException
+	{
+		directory = folder.getRoot();
+		segment = LogSegment.open(directory, 100);
+		for(int i = 0; i < RECORDS; i++)
+		{
+			segment.append(1000 + i, ROOM, ByteBuffer.wrap(Frame.encode(Frame.CHAT, "message " + i)));
+		}
+		segment.commit();
+		segment.close();
+	}
+
+	@After
+	public void closeSegment() throws IOException
+	{
+		segment.close();
+	}
+
+	@Test
+	public void reopensWholeSegment() throws IOException
+	{
+		segment = LogSegment.open(directory, 100);
+		assertEquals(100 + RECORDS, segment.getNextOffset());
+		assertRecords(RECORDS);
+	}
+
+	@Test
+	public void truncatesRecordCutShort() throws IOException
+	{
+		File log = logFile();
+		long size = log.length();
+		try(FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.WRITE))
+		{
+			channel.truncate(size - 3);
+		}
+
+		segment = LogSegment.open(directory, 100);
+		assertEquals(100 + RECORDS - 1, segment.getNextOffset());
+		assertEquals(size - recordLength(RECORDS - 1), segment.getSize());
+		assertRecords(RECORDS - 1);
+	}
+
+	@Test
+	public void truncatesCorruptedRecord() throws IOException
+	{
+		File log = logFile();
+		long size = log.length();
+		try(FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.WRITE))
+		{
+			//the last byte of the last message, covered by its CRC
+			channel.write(ByteBuffer.wrap(new byte[] {'!'}), size - 1);
+		}
+
+		segment = LogSegment.open(directory, 100);
+		assertEquals(100 + RECORDS - 1, segment.getNextOffset());
+		assertRecords(RECORDS - 1);
+	}
+
+	@Test
+	public void appendsAfterRecovery() throws IOException
+	{
+		File log = logFile();
+		try(FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.WRITE))
+		{
+			channel.truncate(log.length() - 3);
+		}
+
+		segment = LogSegment.open(directory, 100);
+		assertEquals(100 + RECORDS - 1, segment.append(2000, ROOM, ByteBuffer.wrap(Frame.encode(Frame.CHAT, "after"))));
+		segment.commit();
+		segment.close();
+
+		segment = LogSegment.open(directory, 100);
+		assertEquals(100 + RECORDS, segment.getNextOffset());
+		List<LogRecord> records = new ArrayList<>();
+		segment.read(100 + RECORDS - 1, RECORDS, records);
+		assertEquals(1, records.size());
+		assertEquals(2000, records.get(0).getTimestamp());
+		assertEquals("after", frame(records.get(0)).field(0));
+	}
+
+	@Test
+	public void readsAcrossMappedChunks() throws IOException
+	{
+		//about 6MB, past the first 4MB the active segment maps, with records straddling its end
+		segment = LogSegment.open(directory, 100);
+		char[] text = new char[1000];
+		int records = RECORDS;
+		while(segment.getSize() < 6 * 1024 * 1024)
+		{
+			text[0] = (char) ('a' + records % 26);
+			segment.append(1000 + records, ROOM, ByteBuffer.wrap(Frame.encode(Frame.CHAT, new String(text))));
+			records++;
+			if(records % 100 == 0)
+			{
+				segment.commit();
+			}
+		}
+		segment.commit();
+
+		assertTail(records);
+		segment.seal();
+		assertTail(records);
+	}
+
+	//reads every record after the first RECORDS back, in batches
+	private void assertTail(int records) throws IOException
+	{
+		List<LogRecord> read = new ArrayList<>();
+		for(long offset = 100 + RECORDS; offset < 100 + records; offset += read.size())
+		{
+			read.clear();
+			segment.read(offset, 500, read);
+			assertTrue(read.size() > 0);
+			for(int i = 0; i < read.size(); i++)
+			{
+				LogRecord record = read.get(i);
+				assertEquals(offset + i, record.getOffset());
+				assertEquals(record.getOffset() - 100 + 1000, record.getTimestamp());
+				assertEquals('a' + (record.getOffset() - 100) % 26, frame(record).field(0).charAt(0));
+			}
+		}
+	}
+
+	//checks that exactly the first count records read back as written
+	private void assertRecords(int count) throws IOException
+	{
+		List<LogRecord> records = new ArrayList<>();
+		segment.read(100, RECORDS, records);
+		assertEquals(count, records.size());
+		for(int i = 0; i < count; i++)
+		{
+			LogRecord record = records.get(i);
+			assertEquals(100 + i, record.getOffset());
+			assertEquals(1000 + i, record.getTimestamp());
+			assertEquals("lobby", record.getRoom());
+			assertEquals(Frame.CHAT, record.type());
+			assertEquals("message " + i, frame(record).field(0));
+		}
+	}
+
+	private File logFile()
+	{
+		return new File(directory, String.format("%020d.log", 100));
+	}
+
+	private static int recordLength(int i)
+	{
+		return LogSegment.HEADER_LENGTH + ROOM.length + Frame.encode(Frame.CHAT, "message " + i).length;
+	}
+
+	private static Frame frame(LogRecord record)
+	{
+		ByteBuffer bytes = record.getFrame();
+		byte opcode = bytes.get();
+		bytes.getInt();
+		byte[] payload = new byte[bytes.remaining()];
+		bytes.get(payload);
+		return new Frame(opcode, payload);
+	}
+
+}
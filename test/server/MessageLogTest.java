@@ -0,0 +1,48 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/*
+ * MESSAGELOGTEST CLASS:
+ *
+ * A MessageLog opened on a directory that holds more than its own
+ * segments
+ */
+
+public class MessageLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+
+	@Test
+	public void skipsFilesThatAreNotSegments() throws IOException
+	{
+		File directory = folder.getRoot();
+		assertTrue(new File(directory, "old.log").createNewFile());
+		assertTrue(new File(directory, "99999999999999999999.log").createNewFile());
+		LogSegment.open(directory, 42).close();
+
+		ServerConfig config = new ServerConfig();
+		config.setLogDirectory(directory.getPath());
+		MessageLog log = new MessageLog(config, 0);
+		try
+		{
+			assertEquals(42, log.getStartOffset());
+			assertEquals(42, log.getNextOffset());
+		}
+		finally
+		{
+			log.close();
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+package server;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/*
+ * TOKENBUCKETTEST CLASS:
+ *
+ * A bucket of 10 tokens a second (one every 100ms) and a burst of 3,
+ * slow enough that the checks do not depend on how fast the test runs
+ */
+
+public class TokenBucketTest {
+	private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	@Test
+	public void startsFullAndEmptiesAfterBurst()
+	{
+		TokenBucket bucket = new TokenBucket(10, 3);
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void refillsOneTokenPerInterval() throws InterruptedException
+	{
+		TokenBucket bucket = new TokenBucket(10, 3);
+		drain(bucket);
+
+		Thread.sleep(150);
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void neverHoldsMoreThanBurst() throws InterruptedException
+	{
+		TokenBucket bucket = new TokenBucket(10, 3);
+		drain(bucket);
+
+		//long enough for 10 tokens, only 3 fit
+		Thread.sleep(1000);
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void reserveQueuesCallersBehindEachOther()
+	{
+		TokenBucket bucket = new TokenBucket(10, 3);
+		assertTrue(bucket.reserve() == 0);
+		drain(bucket);
+
+		long first = bucket.reserve();
+		long second = bucket.reserve();
+		assertTrue(first > 0 && first <= INTERVAL_NANOS);
+		assertTrue(second > first && second <= 2 * INTERVAL_NANOS);
+	}
+
+	@Test
+	public void releaseGivesTokenBack()
+	{
+		TokenBucket bucket = new TokenBucket(10, 3);
+		drain(bucket);
+
+		bucket.release();
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void releaseNeverOverfillsBucket()
+	{
+		TokenBucket bucket = new TokenBucket(10, 3);
+		bucket.release();
+		bucket.release();
+
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	private static void drain(TokenBucket bucket)
+	{
+		while(bucket.tryAcquire())
+		{
+			//taking whatever is left
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+package server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import protocol.WebSocketFrame;
+
+/*
+ * WEBSOCKETHANDLERTEST CLASS:
+ *
+ * A WebSocketServer on a free port with a browser played over a plain
+ * Socket, checking the status code of the CLOSE frame the Server ends
+ * each kind of bad or finished connection with
+ */
+
+public class WebSocketHandlerTest {
+	private static final byte[] KEY = {0x11, 0x22, 0x33, 0x44};
+	private static final int TIMEOUT_MILLIS = 5000;
+	private static int port;
+
+	private Socket socket;
+	private DataInputStream input;
+	private OutputStream output;
+
+
+	@BeforeClass
+	public static void startServer() throws IOException
+	{
+		try(ServerSocket free = new ServerSocket(0))
+		{
+			port = free.getLocalPort();
+		}
+		ServerConfig config = new ServerConfig();
+		config.setHeartbeatSeconds(0);
+		config.setWebSocketPort(port);
+		new WebSocketServer(new Server(config), config).start();
+	}
+
+	@Before
+	public void connect() throws IOException
+	{
+		socket = new Socket("127.0.0.1", port);
+		socket.setSoTimeout(TIMEOUT_MILLIS);
+		input = new DataInputStream(socket.getInputStream());
+		output = socket.getOutputStream();
+
+		output.write(("GET /chat HTTP/1.1\r\n"
+				+ "Host: localhost\r\n"
+				+ "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+				+ "Sec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		String response = readResponse();
+		assertTrue(response, response.startsWith("HTTP/1.1 101"));
+		assertTrue(response, response.contains("s3pPLMBiTxaQ9kYGzzhZRbK+xOo="));
+	}
+
+	@After
+	public void disconnect() throws IOException
+	{
+		socket.close();
+	}
+
+	@Test
+	public void answersPing() throws IOException
+	{
+		send(WebSocketFrame.PING, true, "are you there".getBytes(StandardCharsets.UTF_8));
+		byte[] pong = readFrame(WebSocketFrame.PONG);
+		assertArrayEquals("are you there".getBytes(StandardCharsets.UTF_8), pong);
+	}
+
+	@Test
+	public void echoesClientClose() throws IOException
+	{
+		send(WebSocketFrame.CLOSE, true, new byte[] {(byte) (WebSocketFrame.CLOSE_NORMAL >> 8), (byte) WebSocketFrame.CLOSE_NORMAL});
+		assertEquals(WebSocketFrame.CLOSE_NORMAL, readCloseCode());
+	}
+
+	@Test
+	public void closesBinaryWithUnsupportedData() throws IOException
+	{
+		send(WebSocketFrame.BINARY, true, new byte[] {1, 2, 3});
+		assertEquals(WebSocketFrame.CLOSE_UNSUPPORTED_DATA, readCloseCode());
+	}
+
+	@Test
+	public void closesInvalidUtf8WithInvalidData() throws IOException
+	{
+		send(WebSocketFrame.TEXT, true, new byte[] {'b', 'o', (byte) 0xC0, (byte) 0xAF});
+		assertEquals(WebSocketFrame.CLOSE_INVALID_DATA, readCloseCode());
+	}
+
+	@Test
+	public void closesUnmaskedWithProtocolError() throws IOException
+	{
+		output.write(WebSocketFrame.encode(WebSocketFrame.TEXT, new byte[] {'b', 'o', 'b'}, 0, 3));
+		assertEquals(WebSocketFrame.CLOSE_PROTOCOL_ERROR, readCloseCode());
+	}
+
+	@Test
+	public void closesFragmentedMessagesAfterReassembly() throws IOException
+	{
+		//a name in two fragments is joined, a stray CONTINUATION after it breaks RFC 6455
+		send(WebSocketFrame.TEXT, false, "web".getBytes(StandardCharsets.UTF_8));
+		send(WebSocketFrame.CONTINUATION, true, "by".getBytes(StandardCharsets.UTF_8));
+		send(WebSocketFrame.CONTINUATION, true, "!".getBytes(StandardCharsets.UTF_8));
+		assertEquals(WebSocketFrame.CLOSE_PROTOCOL_ERROR, readCloseCode());
+	}
+
+	//writes a frame masked the way a browser masks it
+	private void send(byte opcode, boolean fin, byte[] payload) throws IOException
+	{
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		frame.write((fin ? WebSocketFrame.FIN : 0) | opcode);
+		frame.write(WebSocketFrame.MASK | payload.length);
+		frame.write(KEY, 0, KEY.length);
+		for(int i = 0; i < payload.length; i++)
+		{
+			frame.write(payload[i] ^ KEY[i & 3]);
+		}
+		output.write(frame.toByteArray());
+	}
+
+	private String readResponse() throws IOException
+	{
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		while(!response.toString("US-ASCII").endsWith("\r\n\r\n"))
+		{
+			response.write(input.readUnsignedByte());
+		}
+		return response.toString("US-ASCII");
+	}
+
+	//payload of the next frame with the passed opcode, frames before it are skipped
+	private byte[] readFrame(byte opcode) throws IOException
+	{
+		while(true)
+		{
+			int first = input.readUnsignedByte();
+			int length = input.readUnsignedByte() & 0x7F;
+			if(length == 126)
+			{
+				length = input.readUnsignedShort();
+			}
+			else if(length == 127)
+			{
+				length = (int) input.readLong();
+			}
+			byte[] payload = new byte[length];
+			input.readFully(payload);
+			if((first & 0x0F) == opcode)
+			{
+				return payload;
+			}
+		}
+	}
+
+	private int readCloseCode() throws IOException
+	{
+		byte[] payload = readFrame(WebSocketFrame.CLOSE);
+		assertEquals(2, payload.length);
+		return ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+	}
+
+}
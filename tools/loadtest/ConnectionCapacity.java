@@ -0,0 +1,257 @@
+package loadtest;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.Server;
+import server.ServerConfig;
+
+/*
+ * CONNECTIONCAPACITY CLASS:
+ * 
+ * Load test that starts a Server inside this JVM in the chosen mode and
+ * opens connections to it until the target is reached or the JVM gives up
+ * (out of memory, out of threads, out of file descriptors)
+ * 
+ * Two phases:
+ * -idle: connections are opened but never join, like users sitting in
+ *  the login window, every 1000 connections the heap used and the number
+ *  of platform threads are printed
+ * -active: the first -active connections join and send messages at -rate
+ *  messages per second each for -seconds, delivered lines per second
+ *  are printed
+ * 
+ * All test connections are driven from one Selector thread so the load
+ * test's own thread count stays flat and only the Server's shows up, new
+ * connections are handed to it through a queue and registered there
+ * 
+ * Heartbeats are turned off, the idle connections never answer a ping
+ * and would be dropped half way through the test
+ * 
+ * Usage (raise "ulimit -n" first, every connection needs two descriptors):
+ * 
+ *    mvn -q package -DskipTests
+ *    java -Xmx2g -cp target/chatapp-1.0-SNAPSHOT.jar loadtest.ConnectionCapacity -mode=virtual -connections=20000 -active=200
+ * 
+ * From Eclipse's bin folder HdrHistogram has to be added, see .classpath
+ */
+
+public class ConnectionCapacity {
+	private String mode = ServerConfig.MODE_THREAD;
+	private int port = 5070;
+	private int connections = 10000;
+	private int active = 100;
+	private int rate = 1;
+	private int seconds = 20;
+	
+	private Selector selector;
+	private ArrayList<SocketChannel> channels = new ArrayList<SocketChannel>();
+	//opened but not registered with the selector yet, the drain loop registers them
+	private ConcurrentLinkedQueue<SocketChannel> opened = new ConcurrentLinkedQueue<SocketChannel>();
+	private AtomicLong linesReceived = new AtomicLong();
+
+	
+	public static void main(String[] args) throws Exception
+	{
+		ConnectionCapacity test = new ConnectionCapacity();
+		for(String arg : args)
+		{
+			String name = arg.substring(1, arg.indexOf('='));
+			int value = name.equals("mode") ? 0 : Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+			switch(name)
+			{
+			case "mode": test.mode = arg.substring(arg.indexOf('=') + 1); break;
+			case "port": test.port = value; break;
+			case "connections": test.connections = value; break;
+			case "active": test.active = value; break;
+			case "rate": test.rate = value; break;
+			case "seconds": test.seconds = value; break;
+			default: throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+		test.run();
+	}
+	
+	public void run() throws Exception
+	{
+		startServer();
+		selector = Selector.open();
+		
+		Thread drain = new Thread(this::drainLoop, "loadtest-drain");
+		drain.setDaemon(true);
+		drain.start();
+		
+		System.out.println("mode=" + mode + " target=" + connections + " connections");
+		System.out.println("connections,heapUsedMB,platformThreads");
+		
+		//IDLE PHASE
+		try
+		{
+			while(channels.size() < connections)
+			{
+				SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+				channel.configureBlocking(false);
+				channels.add(channel);
+				
+				//register() from this thread would block while the drain loop is in select()
+				opened.offer(channel);
+				selector.wakeup();
+				
+				if(channels.size() % 1000 == 0)
+				{
+					printSample();
+				}
+			}
+		}
+		catch (IOException | OutOfMemoryError e)
+		{
+			System.out.println("Stopped at " + channels.size() + " connections: " + e);
+		}
+		printSample();
+		
+		//ACTIVE PHASE
+		int senders = Math.min(active, channels.size());
+		for(int i = 0; i < senders; i++)
+		{
+			write(channels.get(i), "load" + i + ": enter");
+		}
+		Thread.sleep(1000);
+		
+		System.out.println("activeSenders=" + senders + " rate=" + rate + "/s each");
+		System.out.println("second,linesDeliveredPerSecond,heapUsedMB,platformThreads");
+		long interval = 1000L / Math.max(1, rate);
+		long end = System.currentTimeMillis() + seconds * 1000L;
+		long nextReport = System.currentTimeMillis() + 1000;
+		long lastLines = linesReceived.get();
+		int second = 1;
+		
+		while(System.currentTimeMillis() < end)
+		{
+			for(int i = 0; i < senders; i++)
+			{
+				write(channels.get(i), "load" + i + ": message " + System.nanoTime());
+			}
+			Thread.sleep(interval);
+			
+			if(System.currentTimeMillis() >= nextReport)
+			{
+				long lines = linesReceived.get();
+				System.out.println(second++ + "," + (lines - lastLines) + "," + heapUsedMB() + "," + platformThreads());
+				lastLines = lines;
+				nextReport += 1000;
+			}
+		}
+		
+		System.exit(0);
+	}
+	
+	//starts the Server under test on a daemon thread in this JVM
+	private void startServer() throws InterruptedException
+	{
+		ServerConfig config = new ServerConfig();
+		config.setMode(mode);
+		config.setPort(port);
+		//the idle connections never send anything, not even a pong
+		config.setHeartbeatSeconds(0);
+		
+		Thread serverThread = new Thread(()->{
+			try
+			{
+				new Server(config).run();
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}, "server-under-test");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		Thread.sleep(500);
+	}
+	
+	/*
+	 * drainLoop method:
+	 * 
+	 * reads and discards everything the Server sends to the test
+	 * connections, counting lines, so that no Server write blocks
+	 * on a full socket buffer
+	 */
+	private void drainLoop()
+	{
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+		while(true)
+		{
+			try
+			{
+				SocketChannel channel;
+				while((channel = opened.poll()) != null)
+				{
+					channel.register(selector, SelectionKey.OP_READ);
+				}
+				
+				selector.select(100);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					
+					buffer.clear();
+					if(((SocketChannel) key.channel()).read(buffer) < 0)
+					{
+						key.cancel();
+						continue;
+					}
+					buffer.flip();
+					while(buffer.hasRemaining())
+					{
+						if(buffer.get() == '\n')
+						{
+							linesReceived.incrementAndGet();
+						}
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void write(SocketChannel channel, String line) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes());
+		while(buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+	
+	private void printSample()
+	{
+		System.gc();
+		System.out.println(channels.size() + "," + heapUsedMB() + "," + platformThreads());
+	}
+	
+	private long heapUsedMB()
+	{
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024);
+	}
+	
+	private int platformThreads()
+	{
+		return ManagementFactory.getThreadMXBean().getThreadCount();
+	}
+	
+}
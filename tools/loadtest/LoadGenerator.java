@@ -0,0 +1,631 @@
+package loadtest;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+import protocol.Frame;
+import protocol.FrameDecoder;
+import protocol.LineDecoder;
+import protocol.TextMessage;
+import server.Server;
+import server.ServerConfig;
+
+/*
+ * LOADGENERATOR CLASS:
+ * 
+ * End to end load test, simulates -users headless Clients that speak
+ * the same wire protocol as WriteThread and ReadThread (text lines or
+ * binary Frames, see -protocol) against a Server, started inside this
+ * JVM in the chosen -mode unless -host points at one already running
+ * 
+ * Every user joins, then together they send -rate messages per second,
+ * a -dm share of them as direct messages to a random user, and -churn
+ * users per second log out and are replaced by a new user joining
+ * 
+ * Each message carries the time it was due to be sent ("t=<nanoTime>"),
+ * so delivery latency is measured from the schedule and a stalled sender
+ * does not hide the wait it caused (no coordinated omission), every
+ * delivered copy of a broadcast is recorded
+ * 
+ * Output:
+ * -one line per second with sent and delivered messages and the p50,
+ *  p99 and p999 delivery latency of that second
+ * -HdrHistogram percentile distributions for chat and direct messages
+ *  at the end, and with -hlog=file an HdrHistogram interval log that
+ *  HistogramLogAnalyzer or HistogramLogProcessor can read
+ * 
+ * The simulated users are spread over -loops Selector threads, all
+ * latencies are in microseconds
+ * 
+ * Usage (raise "ulimit -n" first, every user needs two descriptors when
+ * the Server runs in this JVM):
+ * 
+ *    mvn -q package -DskipTests
+ *    java -cp target/chatapp-1.0-SNAPSHOT.jar loadtest.LoadGenerator -mode=nio -users=2000 -rate=5000 -dm=0.1 -churn=20
+ */
+
+public class LoadGenerator {
+	private static final byte[] STAMP = {'t', '='};
+
+	private String mode = ServerConfig.MODE_NIO;
+	private String host = null;
+	private int port = 5080;
+	private String protocol = "text";
+	private int users = 1000;
+	private int loops = 2;
+	private int rate = 1000;
+	private double dm = 0.1;
+	private int churn = 0;
+	private int size = 64;
+	private int warmup = 5;
+	private int seconds = 30;
+	private String hlog = null;
+
+	//current username of every user slot, churn replaces them
+	private AtomicReferenceArray<String> names;
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	private final Recorder chatLatency = new Recorder(3);
+	private final Recorder directLatency = new Recorder(3);
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder undelivered = new LongAdder();
+	private final LongAdder churned = new LongAdder();
+	private final LongAdder disconnected = new LongAdder();
+
+
+	public static void main(String[] args) throws Exception
+	{
+		LoadGenerator test = new LoadGenerator();
+		for(String arg : args)
+		{
+			int split = arg.indexOf('=');
+			if(!arg.startsWith("-") || split < 0)
+			{
+				throw new IllegalArgumentException("Options must look like -name=value: " + arg);
+			}
+			String name = arg.substring(1, split);
+			String value = arg.substring(split + 1);
+			switch(name)
+			{
+			case "mode": test.mode = value; break;
+			case "host": test.host = value; break;
+			case "port": test.port = Integer.parseInt(value); break;
+			case "protocol": test.protocol = value; break;
+			case "users": test.users = Integer.parseInt(value); break;
+			case "loops": test.loops = Math.max(1, Integer.parseInt(value)); break;
+			case "rate": test.rate = Integer.parseInt(value); break;
+			case "dm": test.dm = Double.parseDouble(value); break;
+			case "churn": test.churn = Integer.parseInt(value); break;
+			case "size": test.size = Integer.parseInt(value); break;
+			case "warmup": test.warmup = Integer.parseInt(value); break;
+			case "seconds": test.seconds = Integer.parseInt(value); break;
+			case "hlog": test.hlog = value; break;
+			default: throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+		if(!test.protocol.equals("text") && !test.protocol.equals("binary"))
+		{
+			throw new IllegalArgumentException("Unknown protocol: " + test.protocol);
+		}
+		test.run();
+	}
+
+	public void run() throws Exception
+	{
+		if(host == null)
+		{
+			startServer();
+		}
+		String target = host == null ? "localhost" : host;
+
+		names = new AtomicReferenceArray<String>(users);
+		UserLoop[] workers = new UserLoop[loops];
+		for(int i = 0; i < loops; i++)
+		{
+			workers[i] = new UserLoop("loadgen-" + i, new InetSocketAddress(target, port), (double) rate / loops, (double) churn / loops);
+		}
+
+		//JOINING
+		System.out.println("protocol=" + protocol + " users=" + users + " rate=" + rate + "/s dm=" + dm + " churn=" + churn + "/s size=" + size);
+		for(int slot = 0; slot < users; slot++)
+		{
+			workers[slot % loops].connect(slot);
+		}
+		for(UserLoop worker : workers)
+		{
+			worker.start();
+		}
+
+		//SENDING
+		HistogramLogWriter log = null;
+		if(hlog != null)
+		{
+			log = openLog();
+		}
+		Histogram chatTotal = new Histogram(3);
+		Histogram directTotal = new Histogram(3);
+		Histogram chatInterval = null;
+		Histogram directInterval = null;
+		Histogram second = new Histogram(3);
+
+		System.out.println("second,sent,delivered,undelivered,churned,disconnected,p50us,p99us,p999us,maxus");
+		long start = System.currentTimeMillis();
+		long lastSent = 0, lastDelivered = 0;
+		long measuredSent = 0, measuredDelivered = 0;
+		for(int i = 1; i <= warmup + seconds; i++)
+		{
+			Thread.sleep(Math.max(0, start + i * 1000L - System.currentTimeMillis()));
+
+			chatInterval = chatLatency.getIntervalHistogram(chatInterval);
+			directInterval = directLatency.getIntervalHistogram(directInterval);
+			second.reset();
+			second.add(chatInterval);
+			second.add(directInterval);
+
+			long sentNow = sent.sum();
+			long deliveredNow = delivered.sum();
+			boolean measuring = i > warmup;
+			System.out.println((measuring ? String.valueOf(i - warmup) : "warmup") + "," + (sentNow - lastSent) + "," + (deliveredNow - lastDelivered)
+					+ "," + undelivered.sum() + "," + churned.sum() + "," + disconnected.sum()
+					+ "," + second.getValueAtPercentile(50) + "," + second.getValueAtPercentile(99)
+					+ "," + second.getValueAtPercentile(99.9) + "," + second.getMaxValue());
+
+			if(measuring)
+			{
+				chatTotal.add(chatInterval);
+				directTotal.add(directInterval);
+				measuredSent += sentNow - lastSent;
+				measuredDelivered += deliveredNow - lastDelivered;
+				if(log != null)
+				{
+					chatInterval.setTag("chat");
+					directInterval.setTag("direct");
+					log.outputIntervalHistogram(chatInterval);
+					log.outputIntervalHistogram(directInterval);
+				}
+			}
+			lastSent = sentNow;
+			lastDelivered = deliveredNow;
+		}
+
+		//RESULTS
+		System.out.println();
+		System.out.println("sent/s=" + measuredSent / Math.max(1, seconds) + " delivered/s=" + measuredDelivered / Math.max(1, seconds));
+		System.out.println();
+		System.out.println("Chat delivery latency (us), " + chatTotal.getTotalCount() + " deliveries:");
+		chatTotal.outputPercentileDistribution(System.out, 1.0);
+		System.out.println();
+		System.out.println("Direct message delivery latency (us), " + directTotal.getTotalCount() + " deliveries:");
+		directTotal.outputPercentileDistribution(System.out, 1.0);
+		if(log != null)
+		{
+			System.out.println("Interval log written to " + hlog);
+		}
+
+		System.exit(0);
+	}
+
+	//starts the Server under test on a daemon thread in this JVM
+	private void startServer() throws InterruptedException
+	{
+		ServerConfig config = new ServerConfig();
+		config.setMode(mode);
+		config.setPort(port);
+
+		Thread serverThread = new Thread(()->{
+			try
+			{
+				new Server(config).run();
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}, "server-under-test");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		Thread.sleep(500);
+	}
+
+	private HistogramLogWriter openLog() throws FileNotFoundException
+	{
+		long now = System.currentTimeMillis();
+		HistogramLogWriter log = new HistogramLogWriter(hlog);
+		log.outputComment("LoadGenerator protocol=" + protocol + " users=" + users + " rate=" + rate + " dm=" + dm + " churn=" + churn + ", latencies in us");
+		log.outputLogFormatVersion();
+		log.outputStartTime(now);
+		log.setBaseTime(now);
+		log.outputLegend();
+		return log;
+	}
+
+	/*
+	 * stamp method:
+	 * 
+	 * returns the nanoTime after "t=" in the first length bytes of
+	 * message, or -1 for messages that do not carry one (join and
+	 * leave messages, replies from the Server)
+	 */
+	private static long stamp(byte[] message, int offset, int length)
+	{
+		for(int i = offset; i < length - 2; i++)
+		{
+			if(message[i] == STAMP[0] && message[i + 1] == STAMP[1])
+			{
+				long value = 0;
+				int j = i + 2;
+				while(j < length && message[j] >= '0' && message[j] <= '9')
+				{
+					value = value * 10 + (message[j++] - '0');
+				}
+				return j > i + 2 ? value : -1;
+			}
+		}
+		return -1;
+	}
+
+	private static long stamp(String message)
+	{
+		byte[] bytes = message.getBytes(Frame.CHARSET);
+		return stamp(bytes, 0, bytes.length);
+	}
+
+	/*
+	 * USERLOOP CLASS:
+	 * 
+	 * one Selector thread that owns a share of the simulated users, it
+	 * reads everything the Server sends them, keeps to its share of the
+	 * message and churn rates and finishes writes the socket could not
+	 * take at once
+	 */
+	private class UserLoop extends Thread {
+		private final Selector selector;
+		private final InetSocketAddress address;
+		private final double messagesPerSecond;
+		private final double churnPerSecond;
+		private final ArrayList<SimUser> owned = new ArrayList<SimUser>();
+		private final ConcurrentLinkedQueue<SimUser> connecting = new ConcurrentLinkedQueue<SimUser>();
+		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+		private final TextMessage message = new TextMessage();
+		private final String padding;
+
+		private long started;
+		private long messagesSent;
+		private long usersChurned;
+
+
+		UserLoop(String name, InetSocketAddress address, double messagesPerSecond, double churnPerSecond) throws IOException
+		{
+			super(name);
+			setDaemon(true);
+			this.selector = Selector.open();
+			this.address = address;
+			this.messagesPerSecond = messagesPerSecond;
+			this.churnPerSecond = churnPerSecond;
+			char[] filler = new char[Math.max(0, size - 32)];
+			Arrays.fill(filler, 'x');
+			this.padding = new String(filler);
+		}
+
+		//opens the slot's connection from the calling thread, it joins once this loop runs
+		void connect(int slot) throws IOException
+		{
+			String name = "load" + nextId.getAndIncrement();
+			names.set(slot, name);
+			SocketChannel channel = SocketChannel.open(address);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.configureBlocking(false);
+			connecting.add(new SimUser(slot, name, channel));
+			selector.wakeup();
+		}
+
+		@Override
+		public void run()
+		{
+			started = System.nanoTime();
+			while(true)
+			{
+				try
+				{
+					selector.select(1);
+
+					SimUser user;
+					while((user = connecting.poll()) != null)
+					{
+						join(user);
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while(keys.hasNext())
+					{
+						SelectionKey key = keys.next();
+						keys.remove();
+						SimUser ready = (SimUser) key.attachment();
+						try
+						{
+							if(key.isReadable())
+							{
+								read(ready);
+							}
+							if(key.isValid() && key.isWritable())
+							{
+								ready.flush();
+							}
+						}
+						catch (IOException e)
+						{
+							ready.close();
+							disconnected.increment();
+						}
+					}
+
+					long elapsed = System.nanoTime() - started;
+					sendDue(elapsed);
+					churnDue(elapsed);
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private void join(SimUser user) throws IOException
+		{
+			user.key = user.channel.register(selector, SelectionKey.OP_READ, user);
+			owned.add(user);
+			if(user.binary())
+			{
+				user.send(Frame.hello(Frame.VERSION, 0));
+				user.send(Frame.encode(Frame.JOIN, user.name));
+			}
+			else
+			{
+				user.send((user.name + ": enter\n").getBytes(LineDecoder.CHARSET));
+			}
+		}
+
+		/*
+		 * sendDue method:
+		 * 
+		 * sends every message this loop's share of -rate says should have
+		 * been sent by now, each stamped with the time it was due
+		 */
+		private void sendDue(long elapsed)
+		{
+			long due = (long) (elapsed / 1e9 * messagesPerSecond);
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			while(messagesSent < due && !owned.isEmpty())
+			{
+				long scheduled = started + (long) (messagesSent * 1e9 / messagesPerSecond);
+				messagesSent++;
+
+				SimUser user = owned.get(random.nextInt(owned.size()));
+				if(!user.open)
+				{
+					continue;
+				}
+				String text = "t=" + scheduled + " " + padding;
+				if(random.nextDouble() < dm)
+				{
+					user.sendDirect(names.get(random.nextInt(users)), text);
+				}
+				else
+				{
+					user.sendChat(text);
+				}
+				sent.increment();
+			}
+		}
+
+		/*
+		 * churnDue method:
+		 * 
+		 * logs users out at this loop's share of -churn and has a user
+		 * with a new name join in the same slot
+		 */
+		private void churnDue(long elapsed) throws IOException
+		{
+			long due = (long) (elapsed / 1e9 * churnPerSecond);
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			while(usersChurned < due && !owned.isEmpty())
+			{
+				usersChurned++;
+
+				int index = random.nextInt(owned.size());
+				SimUser leaving = owned.get(index);
+				if(leaving.open)
+				{
+					leaving.send(leaving.binary() ? Frame.encode(Frame.LOGOUT) : "logout\n".getBytes(LineDecoder.CHARSET));
+				}
+				leaving.close();
+				owned.remove(index);
+
+				connect(leaving.slot);
+				churned.increment();
+			}
+		}
+
+		private void read(SimUser user) throws IOException
+		{
+			readBuffer.clear();
+			if(user.channel.read(readBuffer) < 0)
+			{
+				throw new IOException("Server closed the connection");
+			}
+			readBuffer.flip();
+
+			long now = System.nanoTime();
+			if(user.binary())
+			{
+				Frame frame;
+				while((frame = user.frames.next(readBuffer)) != null)
+				{
+					if(frame.getOpcode() == Frame.CHAT)
+					{
+						record(chatLatency, stamp(frame.field(0)), now);
+					}
+					else if(frame.getOpcode() == Frame.DIRECT)
+					{
+						directReceived(frame.field(0), stamp(frame.field(2)), now);
+					}
+					else if(frame.getOpcode() == Frame.PING)
+					{
+						user.send(Frame.encode(Frame.PONG));
+					}
+				}
+			}
+			else
+			{
+				while(user.lines.next(readBuffer))
+				{
+					message.parse(user.lines.getLine(), user.lines.getLength());
+					if(message.isPing())
+					{
+						user.send("pong\n".getBytes(LineDecoder.CHARSET));
+						continue;
+					}
+					long stamp = stamp(user.lines.getLine(), 0, user.lines.getLength());
+					if(message.isDirect())
+					{
+						directReceived(message.directSender(), stamp, now);
+					}
+					else if(!message.isUserJoined() && !message.isUserLeft())
+					{
+						record(chatLatency, stamp, now);
+					}
+				}
+			}
+		}
+
+		private void directReceived(String sender, long stamp, long now)
+		{
+			if(stamp < 0 && sender.equals("Server"))
+			{
+				//recipient had churned out, the Server says it is not online
+				undelivered.increment();
+				return;
+			}
+			record(directLatency, stamp, now);
+		}
+
+		private void record(Recorder recorder, long stamp, long now)
+		{
+			if(stamp >= 0)
+			{
+				recorder.recordValue(Math.max(0, (now - stamp) / 1000));
+				delivered.increment();
+			}
+		}
+	}
+
+	/*
+	 * SIMUSER CLASS:
+	 * 
+	 * one simulated Client, its connection, the decoder for what the
+	 * Server sends it and the writes still waiting for socket space
+	 */
+	private class SimUser {
+		final int slot;
+		final String name;
+		final SocketChannel channel;
+		final LineDecoder lines = new LineDecoder();
+		final FrameDecoder frames = new FrameDecoder();
+		final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+		SelectionKey key;
+		boolean open = true;
+
+
+		SimUser(int slot, String name, SocketChannel channel)
+		{
+			this.slot = slot;
+			this.name = name;
+			this.channel = channel;
+		}
+
+		boolean binary()
+		{
+			return protocol.equals("binary");
+		}
+
+		void sendChat(String text)
+		{
+			send(binary() ? Frame.encode(Frame.CHAT, text) : (name + ": " + text + "\n").getBytes(LineDecoder.CHARSET));
+		}
+
+		void sendDirect(String recipient, String text)
+		{
+			send(binary() ? Frame.encode(Frame.DIRECT, name, recipient, text) : (name + "&" + recipient + "&" + text + "\n").getBytes(LineDecoder.CHARSET));
+		}
+
+		//writes what the socket takes now, the rest waits for OP_WRITE
+		void send(byte[] bytes)
+		{
+			pending.add(ByteBuffer.wrap(bytes));
+			try
+			{
+				flush();
+			}
+			catch (IOException e)
+			{
+				close();
+				disconnected.increment();
+			}
+		}
+
+		void flush() throws IOException
+		{
+			while(!pending.isEmpty())
+			{
+				ByteBuffer next = pending.peek();
+				channel.write(next);
+				if(next.hasRemaining())
+				{
+					break;
+				}
+				pending.poll();
+			}
+
+			if(key != null && key.isValid())
+			{
+				key.interestOps(pending.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		void close()
+		{
+			open = false;
+			pending.clear();
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+}